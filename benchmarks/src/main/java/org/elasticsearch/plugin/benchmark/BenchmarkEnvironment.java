@@ -0,0 +1,38 @@
+package org.elasticsearch.plugin.benchmark;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+
+import java.nio.file.Path;
+
+/**
+ * Node and index level settings the filters are created with, outside of a running node
+ */
+final class BenchmarkEnvironment {
+
+    private BenchmarkEnvironment() {}
+
+    static Environment newEnvironment(Path home) {
+        return new Environment(Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), home.toString())
+                .build());
+    }
+
+    /**
+     * @param settings additional index settings (ex: the analysis settings)
+     */
+    static IndexSettings newIndexSettings(Settings settings) {
+        IndexMetaData metaData = IndexMetaData.builder("benchmark")
+                .settings(Settings.builder()
+                        .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                        .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                        .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)
+                        .put(IndexMetaData.SETTING_INDEX_UUID, "benchmark")
+                        .put(settings))
+                .build();
+        return new IndexSettings(metaData, Settings.EMPTY);
+    }
+}
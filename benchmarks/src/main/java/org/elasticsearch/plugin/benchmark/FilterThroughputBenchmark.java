@@ -0,0 +1,181 @@
+package org.elasticsearch.plugin.benchmark;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.IndexAnalyzers;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokens per millisecond through each uber filter, created from the standard parameters, compared to the stock
+ * Elasticsearch filter with the same rules. Each analyzer is a whitespace tokenizer followed by the filter.
+ *
+ * Half of the tokens of the analyzed text match a rule.
+ *
+ * The {@code lexicon} filter splits the rules into stop words, keywords and stemmer overrides. It is compared to the
+ * chain of the three stock filters.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class FilterThroughputBenchmark {
+
+    private static final int TOKENS = 10000;
+
+    @Param({"stop", "keyword_marker", "stemmer_override", "synonym", "synonym_graph", "lexicon"})
+    public String filter;
+
+    @Param({"stock", "uber"})
+    public String implementation;
+
+    @Param({"10000"})
+    public int rules;
+
+    private UberTokenFiltersPlugin plugin;
+    private AnalysisRegistry registry;
+    private IndexAnalyzers indexAnalyzers;
+    private Analyzer analyzer;
+    private String text;
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] words = new String[rules * 2];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = "w" + Integer.toString(i, Character.MAX_RADIX);
+        }
+
+        // the first half of the words are the rules
+        String[] filterRules = new String[rules];
+        for (int i = 0; i < rules; i++) {
+            filterRules[i] = rule(words[i], i);
+        }
+
+        Settings settings = filter.equals("lexicon") ? lexiconSettings(filterRules) : Settings.builder()
+                .put("index.analysis.filter.benchmark.type", implementation.equals("uber") ? "uber_" + filter : filter)
+                .putArray("index.analysis.filter.benchmark." + rulesSetting(), filterRules)
+                .put("index.analysis.analyzer.benchmark.tokenizer", "whitespace")
+                .putArray("index.analysis.analyzer.benchmark.filter", "benchmark")
+                .build();
+
+        Environment environment =
+                BenchmarkEnvironment.newEnvironment(Files.createTempDirectory("uber-filters-benchmark"));
+        plugin = new UberTokenFiltersPlugin();
+        registry = new AnalysisModule(environment, Collections.singletonList(plugin)).getAnalysisRegistry();
+        indexAnalyzers = registry.build(BenchmarkEnvironment.newIndexSettings(settings));
+        analyzer = indexAnalyzers.get("benchmark");
+
+        Random random = new Random(0);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < TOKENS; i++) {
+            builder.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        text = builder.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        indexAnalyzers.close();
+        registry.close();
+        plugin.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS)
+    public int analyze() throws IOException {
+        int tokens = 0;
+        try (TokenStream stream = analyzer.tokenStream("field", text)) {
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens++;
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    /*
+     * A third of the rules in each filter of the chain, or all of them in the lexicon
+     */
+    private Settings lexiconSettings(String[] filterRules) {
+        String[][] split = new String[3][];
+        for (int i = 0; i < split.length; i++) {
+            split[i] = new String[(filterRules.length - i + 2) / 3];
+        }
+        for (int i = 0; i < filterRules.length; i++) {
+            split[i % 3][i / 3] = filterRules[i];
+        }
+
+        Settings.Builder builder = Settings.builder()
+                .put("index.analysis.analyzer.benchmark.tokenizer", "whitespace");
+        if (implementation.equals("uber")) {
+            return builder
+                    .put("index.analysis.filter.benchmark.type", "uber_lexicon")
+                    .putArray("index.analysis.filter.benchmark.stopwords", split[0])
+                    .putArray("index.analysis.filter.benchmark.keywords", split[1])
+                    .putArray("index.analysis.filter.benchmark.rules", split[2])
+                    .putArray("index.analysis.analyzer.benchmark.filter", "benchmark")
+                    .build();
+        }
+        return builder
+                .put("index.analysis.filter.stop.type", "stop")
+                .putArray("index.analysis.filter.stop.stopwords", split[0])
+                .put("index.analysis.filter.keywords.type", "keyword_marker")
+                .putArray("index.analysis.filter.keywords.keywords", split[1])
+                .put("index.analysis.filter.overrides.type", "stemmer_override")
+                .putArray("index.analysis.filter.overrides.rules", split[2])
+                .putArray("index.analysis.analyzer.benchmark.filter", "stop", "keywords", "overrides")
+                .build();
+    }
+
+    private String rulesSetting() {
+        switch (filter) {
+            case "stop":
+                return "stopwords";
+            case "keyword_marker":
+                return "keywords";
+            case "stemmer_override":
+                return "rules";
+            default:
+                return "synonyms";
+        }
+    }
+
+    private String rule(String word, int i) {
+        switch (filter) {
+            case "stemmer_override":
+                return word + " => s" + i;
+            case "lexicon":
+                return i % 3 == 2 ? word + " => s" + i : word;
+            case "synonym":
+            case "synonym_graph":
+                return word + ", s" + i;
+            default:
+                return word;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.elasticsearch.plugin.benchmark;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to create an uber filter loading its rules from an embedded Derby database: querying, building the
+ * {@code CharArraySet}, {@code StemmerOverrideMap} or {@code SynonymMap}, and writing its snapshot. The heap
+ * retained by the rules is printed after each iteration, run with {@code -Xmx} large enough for the biggest size.
+ *
+ * Each rule is a row: stop words, (term, override) rows, or (group id, term) rows with two terms per group.
+ * The database is populated once per trial, which takes a while for the biggest sizes.
+ */
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class RuleBuildBenchmark {
+
+    private static final int BATCH_SIZE = 10000;
+
+    @Param({"stop", "stemmer_override", "synonym"})
+    public String filter;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int rules;
+
+    private Path home;
+    private String url;
+    private Settings filterSettings;
+
+    private UberTokenFiltersPlugin plugin;
+    private AnalysisModule.AnalysisProvider<TokenFilterFactory> provider;
+    private IndexSettings indexSettings;
+    private Environment environment;
+    private long heapBefore;
+
+    private TokenFilterFactory factory;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        home = Files.createTempDirectory("uber-filters-benchmark");
+        url = "jdbc:derby:" + home.resolve("rules") + ";create=true";
+
+        try (Connection connection = DriverManager.getConnection(url)) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE RULES(G INT NOT NULL, T VARCHAR(50) NOT NULL, S VARCHAR(50), " +
+                        "PRIMARY KEY (G, T))");
+            }
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO RULES VALUES (?, ?, ?)")) {
+                for (int i = 0; i < rules; i++) {
+                    insert.setInt(1, i / 2);
+                    insert.setString(2, "w" + Integer.toString(i, Character.MAX_RADIX));
+                    insert.setString(3, "s" + Integer.toString(i, Character.MAX_RADIX));
+                    insert.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+
+        Settings.Builder settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put("type", "uber_" + filter);
+        switch (filter) {
+            case "stop":
+                settings.put("query", "select t from rules");
+                break;
+            case "stemmer_override":
+                settings.put("query", "select t, s from rules").put("columns", true);
+                break;
+            default:
+                settings.put("query", "select g, t from rules order by g").put("columns", true);
+        }
+        filterSettings = settings.build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        try {
+            DriverManager.getConnection("jdbc:derby:;shutdown=true");
+        } catch (SQLException e) {
+            // derby always reports its shutdown as an exception
+        }
+    }
+
+    /**
+     * Each iteration starts from a new node: no rules cached in memory, no snapshot on disk
+     */
+    @Setup(Level.Iteration)
+    public void setUpNode() throws IOException {
+        Settings nodeSettings = Settings.builder()
+                .put("uber_filters.jdbc.driver", "org.apache.derby.jdbc.EmbeddedDriver")
+                .put("uber_filters.jdbc.url", url)
+                .put("uber_filters.jdbc.fetchsize", 1000)
+                .build();
+
+        environment = BenchmarkEnvironment.newEnvironment(Files.createTempDirectory(home, "node"));
+        indexSettings = BenchmarkEnvironment.newIndexSettings(nodeSettings);
+        plugin = new UberTokenFiltersPlugin(nodeSettings);
+        provider = plugin.getTokenFilters().get("uber_" + filter);
+        heapBefore = usedHeap();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownNode() throws IOException {
+        System.out.printf("%n%d %s rules retain %.1f MB of heap%n", rules, filter,
+                (usedHeap() - heapBefore) / (1024.0 * 1024.0));
+        factory = null;
+        plugin.close();
+    }
+
+    @Benchmark
+    public TokenFilterFactory build() throws IOException {
+        factory = provider.get(indexSettings, environment, filter, filterSettings);
+        return factory;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,90 @@
+package org.elasticsearch.plugin.benchmark;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.plugin.index.analysis.analysis.UberSynonymTokenFilterFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of creating an {@code uber_synonym} filter with standard synonyms (no database), when every filter
+ * builds its own analysis registry compared to the registry shared by the plugin.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class SynonymFilterCreationBenchmark {
+
+    private static final String NAME = "synonym";
+
+    private Environment environment;
+    private IndexSettings indexSettings;
+    private Settings filterSettings;
+
+    private UberTokenFiltersPlugin plugin;
+    private UberFiltersService service;
+    private AnalysisModule.AnalysisProvider<TokenFilterFactory> provider;
+
+    @Setup
+    public void setUp() throws IOException {
+        environment = BenchmarkEnvironment.newEnvironment(Files.createTempDirectory("uber-filters-benchmark"));
+        indexSettings = BenchmarkEnvironment.newIndexSettings(Settings.EMPTY);
+        filterSettings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put("type", "uber_synonym")
+                .putArray("synonyms", "i-pod, i pod => ipod", "universe, cosmos")
+                .build();
+
+        plugin = new UberTokenFiltersPlugin();
+        service = new UberFiltersService(Settings.EMPTY);
+        provider = plugin.getTokenFilters().get("uber_synonym");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        plugin.close();
+        service.close();
+    }
+
+    /**
+     * What every filter used to do: build a new registry, with all the built-in analysis components
+     */
+    @Benchmark
+    public TokenFilterFactory registryPerFilter() throws IOException {
+        try (AnalysisRegistry registry = new AnalysisModule(environment, Collections.singletonList(plugin))
+                .getAnalysisRegistry()) {
+            return new UberSynonymTokenFilterFactory(indexSettings, environment, registry, NAME, filterSettings,
+                    service);
+        }
+    }
+
+    @Benchmark
+    public TokenFilterFactory sharedRegistry() throws IOException {
+        return provider.get(indexSettings, environment, NAME, filterSettings);
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.plugin.benchmark;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.elasticsearch.plugin.rules.TermSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup throughput of the term sets of the stop and keyword marker filters: the default {@link CharArraySet}
+ * ({@code hash}) compared to the compact {@link TermSet}s ({@code fst} and {@code mmap}).
+ *
+ * The heap retained by each set is printed on setup, run with {@code -Xmx} large enough for the biggest size.
+ */
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TermSetBenchmark {
+
+    private static final int PROBES = 1024;
+
+    @Param({"hash", "fst", "mmap"})
+    public String termSet;
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    private CharArraySet hashSet;
+    private TermSet.Matcher matcher;
+
+    // half of the probes are in the set
+    private char[][] probes;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(0);
+        String[] terms = new String[size];
+        for (int i = 0; i < size; i++) {
+            terms[i] = randomTerm(random);
+        }
+
+        long before = usedHeap();
+        if (termSet.equals("hash")) {
+            hashSet = new CharArraySet(size, true);
+            for (String term : terms) {
+                hashSet.add(term);
+            }
+        } else {
+            TermSet.Builder builder = new TermSet.Builder(true);
+            for (String term : terms) {
+                builder.add(term);
+            }
+            TermSet set = termSet.equals("fst") ? builder.buildFst() :
+                    builder.buildMapped(Files.createTempDirectory("uber-filters-benchmark"));
+            // only the set is retained
+            builder = null;
+            matcher = set.newMatcher();
+        }
+        System.out.printf("%n%s set of %d terms retains %.1f MB of heap%n", termSet, size,
+                (usedHeap() - before) / (1024.0 * 1024.0));
+
+        probes = new char[PROBES][];
+        for (int i = 0; i < PROBES; i++) {
+            String term = terms[random.nextInt(size)];
+            probes[i] = (i % 2 == 0 ? term : term + "x").toCharArray();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int contains() throws IOException {
+        int found = 0;
+        for (char[] probe : probes) {
+            boolean contains = hashSet != null ? hashSet.contains(probe, 0, probe.length) :
+                    matcher.contains(probe, 0, probe.length);
+            if (contains) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static String randomTerm(Random random) {
+        char[] term = new char[5 + random.nextInt(8)];
+        for (int i = 0; i < term.length; i++) {
+            term[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(term);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
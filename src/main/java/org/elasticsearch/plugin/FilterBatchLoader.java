@@ -0,0 +1,165 @@
+package org.elasticsearch.plugin;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Creates all the uber filters of an index together, concurrently, instead of one after another.
+ *
+ * Elasticsearch creates the token filters of an index sequentially. The first uber filter requested for an index
+ * submits the creation of every uber filter declared in the index settings to the {@code uber_filters_load}
+ * thread pool (or the one of the datasource of the filter), the following requests only wait for their own filter,
+ * at most {@code uber_filters.create_timeout}. Without a thread pool (ex: in unit tests), filters are created
+ * sequentially by the calling thread.
+ *
+ * A batch only serves the analysis settings it was created from. The analysis of an index is built again with the
+ * same uuid (ex: when the index is reopened, or its settings are verified), and the creation of the index may fail
+ * before all its uber filters were requested: the filters left over are discarded by {@link #discard(String)} before
+ * the analysis of the index is built again.
+ */
+class FilterBatchLoader {
+
+    public static final Setting<TimeValue> CREATE_TIMEOUT =
+            Setting.timeSetting("uber_filters.create_timeout", TimeValue.timeValueMinutes(10),
+                    Setting.Property.NodeScope);
+
+    private static final Logger logger = Loggers.getLogger(FilterBatchLoader.class);
+
+    // the settings the filters depend on: their own, and the tokenizers of the synonym filters
+    private static final String ANALYSIS_PREFIX = "index.analysis.";
+
+    private final UberFiltersService service;
+    private final Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> providers;
+    private final TimeValue timeout;
+
+    // pending filters per index uuid and analysis settings, by filter name
+    private final Map<Tuple<String, Settings>, Map<String, Future<TokenFilterFactory>>> batches = new HashMap<>();
+
+    /**
+     * @param providers the providers of the uber filters, by filter type
+     * @param timeout how long a request waits for its filter
+     */
+    FilterBatchLoader(UberFiltersService service, Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>>
+            providers, TimeValue timeout) {
+        this.service = service;
+        this.providers = providers;
+        this.timeout = timeout;
+    }
+
+    TokenFilterFactory get(String type, IndexSettings indexSettings, Environment environment, String name,
+                           Settings settings) throws IOException {
+        ThreadPool threadPool = service.getThreadPool();
+        if (threadPool == null) {
+            return providers.get(type).get(indexSettings, environment, name, settings);
+        }
+
+        Tuple<String, Settings> key = new Tuple<>(indexSettings.getUUID(),
+                indexSettings.getSettings().getByPrefix(ANALYSIS_PREFIX));
+        Future<TokenFilterFactory> future;
+        synchronized (batches) {
+            Map<String, Future<TokenFilterFactory>> batch = batches.computeIfAbsent(key,
+                    k -> submitBatch(threadPool, indexSettings, environment));
+            future = batch.remove(name);
+            if (batch.isEmpty()) {
+                batches.remove(key);
+            }
+        }
+
+        if (future == null) {
+            // not declared in the index settings the batch was created from
+            return providers.get(type).get(indexSettings, environment, name, settings);
+        }
+
+        try {
+            return future.get(timeout.millis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            discard(key.v1());
+            throw new IllegalStateException("interrupted while creating filter [" + name + "]", e);
+        } catch (TimeoutException e) {
+            discard(key.v1());
+            throw new ElasticsearchTimeoutException("timed out after [" + timeout + "] creating filter [" + name +
+                    "]", e);
+        } catch (ExecutionException e) {
+            // the creation of the index fails, the other filters of the batch will never be requested
+            discard(key.v1());
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("failed to create filter [" + name + "]", cause);
+        }
+    }
+
+    /**
+     * Discards the filters of the index that were not requested, the ones not created yet are not created
+     */
+    void discard(String uuid) {
+        List<Future<TokenFilterFactory>> discarded = new ArrayList<>();
+        synchronized (batches) {
+            Iterator<Map.Entry<Tuple<String, Settings>, Map<String, Future<TokenFilterFactory>>>> iterator =
+                    batches.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Tuple<String, Settings>, Map<String, Future<TokenFilterFactory>>> batch = iterator.next();
+                if (batch.getKey().v1().equals(uuid)) {
+                    discarded.addAll(batch.getValue().values());
+                    iterator.remove();
+                }
+            }
+        }
+
+        if (!discarded.isEmpty()) {
+            logger.debug("discard {} uber filters of index [{}] that were not requested", discarded.size(), uuid);
+            discarded.forEach(future -> future.cancel(false));
+        }
+    }
+
+    private Map<String, Future<TokenFilterFactory>> submitBatch(ThreadPool threadPool, IndexSettings indexSettings,
+                                                               Environment environment) {
+        Map<String, Future<TokenFilterFactory>> batch = new HashMap<>();
+
+        Map<String, Settings> filters = indexSettings.getSettings().getGroups(AnalysisRegistry.INDEX_ANALYSIS_FILTER);
+        for (Map.Entry<String, Settings> filter : filters.entrySet()) {
+            AnalysisModule.AnalysisProvider<TokenFilterFactory> provider = providers.get(filter.getValue().get("type"));
+            if (provider != null) {
+                String name = filter.getKey();
+                // same settings as the ones the analysis registry provides
+                Settings settings = AnalysisRegistry.getSettingsFromIndexSettings(indexSettings,
+                        AnalysisRegistry.INDEX_ANALYSIS_FILTER + "." + name);
+                // each datasource has its own thread pool
+                ExecutorService executor = threadPool.executor(service.loadExecutor(settings));
+                batch.put(name, executor.submit(() -> provider.get(indexSettings, environment, name, settings)));
+            }
+        }
+
+        logger.debug("creating {} uber filters of {} concurrently", batch.size(), indexSettings.getIndex());
+        return batch;
+    }
+}
@@ -0,0 +1,447 @@
+package org.elasticsearch.plugin;
+
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.action.FetchRulesAction;
+import org.elasticsearch.plugin.action.FetchRulesRequest;
+import org.elasticsearch.plugin.action.FetchRulesResponse;
+import org.elasticsearch.plugin.action.FilterStats;
+import org.elasticsearch.plugin.cache.RuleCache;
+import org.elasticsearch.plugin.cache.RuleSnapshots;
+import org.elasticsearch.plugin.loader.DataSources;
+import org.elasticsearch.plugin.loader.ObjectStoreClient;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.RuleCodec;
+import org.elasticsearch.plugin.rules.RuleMemoryBreaker;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Node level components shared by all the uber filters of the node
+ */
+public class UberFiltersService implements Closeable {
+
+    /**
+     * Thread pool loading the rules, on creation of the filters as well as on refresh. The filters of each named
+     * datasource have their own thread pool, see {@link #loadExecutor(String)}.
+     */
+    public static final String LOAD_THREAD_POOL = "uber_filters_load";
+
+    /**
+     * Where the rules are loaded: by each node ({@code node}), or by the elected master only ({@code master}), the
+     * other nodes fetching the compiled rules from the master
+     */
+    public static final Setting<LoadOn> LOAD_ON =
+            new Setting<>("uber_filters.load_on", LoadOn.NODE.toString(), LoadOn::parse, Setting.Property.NodeScope);
+
+    /**
+     * How long a node waits for the rules of a filter from the master, their load on the master included
+     */
+    public static final Setting<TimeValue> FETCH_TIMEOUT =
+            Setting.timeSetting("uber_filters.fetch_timeout", TimeValue.timeValueMinutes(5), Setting.Property.NodeScope);
+
+    public enum LoadOn {
+        NODE, MASTER;
+
+        static LoadOn parse(String value) {
+            switch (value) {
+                case "node":
+                    return NODE;
+                case "master":
+                    return MASTER;
+                default:
+                    throw new IllegalArgumentException("Unknown uber_filters.load_on [" + value +
+                            "], expected one of [node, master]");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final String SNAPSHOTS_DIRECTORY = "uber_filters";
+
+    private final Settings settings;
+    private final LoadOn loadOn;
+    private final TimeValue fetchTimeout;
+
+    private final RuleCache ruleCache;
+    private final DataSources dataSources;
+    private final ObjectStoreClient objectStoreClient;
+    private final RuleMemoryBreaker breaker;
+
+    private static final String TERM_SETS_DIRECTORY = "term_sets";
+
+    // the filters the elected master creates for other nodes hold their rules under their own uuid
+    private static final String PUBLISHED_UUID_SUFFIX = "_published";
+
+    private RuleSnapshots ruleSnapshots;
+
+    private Path termSetDirectory;
+
+    private volatile ThreadPool threadPool;
+
+    // null until the node components are created
+    private volatile Client client;
+    private volatile BooleanSupplier localNodeElectedMaster;
+
+    private volatile Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> providers;
+    private Environment environment;
+
+    // the rules used by each filter of the indices of the node, by index and filter name
+    private final ConcurrentMap<Index, ConcurrentMap<String, RegisteredFilter<?>>> filters = new ConcurrentHashMap<>();
+    // the indices the elected master created filters for, only to publish their rules
+    private final Set<Index> publishedIndices = ConcurrentHashMap.newKeySet();
+
+    public UberFiltersService(Settings settings) {
+        this.settings = settings;
+        this.loadOn = LOAD_ON.get(settings);
+        this.fetchTimeout = FETCH_TIMEOUT.get(settings);
+        this.ruleCache = new RuleCache();
+        this.dataSources = new DataSources(settings);
+        this.objectStoreClient = new ObjectStoreClient(settings);
+        this.breaker = new RuleMemoryBreaker(settings);
+    }
+
+    public RuleCache getRuleCache() {
+        return ruleCache;
+    }
+
+    public DataSources getDataSources() {
+        return dataSources;
+    }
+
+    /**
+     * The thread pool loading the rules of the filters of a datasource
+     *
+     * @param dataSource the name of the datasource, null for the default one
+     */
+    public static String loadExecutor(String dataSource) {
+        return dataSource == null ? LOAD_THREAD_POOL : LOAD_THREAD_POOL + "_" + dataSource;
+    }
+
+    /**
+     * The thread pool loading the rules of a filter: the one of its datasource, if it is defined
+     */
+    public String loadExecutor(Settings filterSettings) {
+        String dataSource = filterSettings.get("datasource");
+        if (filterSettings.get("query") == null || !dataSources.exists(dataSource)) {
+            return LOAD_THREAD_POOL;
+        }
+        return loadExecutor(dataSource);
+    }
+
+    public ObjectStoreClient getObjectStoreClient() {
+        return objectStoreClient;
+    }
+
+    /**
+     * Accounts for the heap used by the rules of the node, and by their loads in progress
+     */
+    public RuleMemoryBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * The thread pool of the node, null until the node components are created (ex: in unit tests)
+     */
+    public ThreadPool getThreadPool() {
+        return threadPool;
+    }
+
+    public void setThreadPool(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Gives access to the elected master, to fetch the rules from it
+     *
+     * @param localNodeElectedMaster whether this node is currently the elected master
+     */
+    public void setCluster(Client client, BooleanSupplier localNodeElectedMaster) {
+        this.client = client;
+        this.localNodeElectedMaster = localNodeElectedMaster;
+    }
+
+    /**
+     * The providers creating the filters, by filter type. The master creates the filters other nodes fetch the
+     * rules of.
+     */
+    public void setFilterProviders(Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> providers) {
+        this.providers = providers;
+    }
+
+    public LoadOn getLoadOn() {
+        return loadOn;
+    }
+
+    /**
+     * How long a node waits for the rules of the master
+     */
+    public TimeValue getFetchTimeout() {
+        return fetchTimeout;
+    }
+
+    /**
+     * Whether the filters of this node fetch their rules from the elected master instead of loading them
+     */
+    public boolean fetchesRulesFromMaster() {
+        BooleanSupplier electedMaster = localNodeElectedMaster;
+        return loadOn == LoadOn.MASTER && client != null && !electedMaster.getAsBoolean();
+    }
+
+    /**
+     * Fetches the compiled rules of a filter from the elected master
+     *
+     * @param knownHash the hash of the rules this node already has, or null
+     * @throws ElasticsearchTimeoutException if the master did not answer within {@code uber_filters.fetch_timeout}
+     */
+    public FetchRulesResponse fetchRules(IndexSettings indexSettings, String name, String knownHash) {
+        FetchRulesRequest request = new FetchRulesRequest(indexSettings.getIndex(),
+                indexSettings.getIndexMetaData().getSettings(), name, knownHash);
+        request.masterNodeTimeout(fetchTimeout);
+
+        // the rules are fetched on the load thread pool, not by the cluster state thread creating the filter
+        CompletableFuture<FetchRulesResponse> response = new CompletableFuture<>();
+        client.execute(FetchRulesAction.INSTANCE, request,
+                ActionListener.wrap(response::complete, response::completeExceptionally));
+        try {
+            return response.get(fetchTimeout.millis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new ElasticsearchTimeoutException("no rules from the master for [" + name + "] of " +
+                    indexSettings.getIndex() + " after " + fetchTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while fetching the rules of [" + name + "]", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ElasticsearchException("failed to fetch the rules of [" + name + "]", e.getCause());
+        }
+    }
+
+    /**
+     * Serializes the rules of a filter for another node, on the elected master. The filter of the index on this node
+     * is used if its rules are loaded, otherwise the filter is created, and its rules loaded, once. The filters
+     * created only to publish their rules hold them in the rule cache until {@link #releasePublishedRules(Predicate)},
+     * and load them right away, whatever their {@code lazy} and {@code async} settings: the fetch requests run on the
+     * load thread pool, they must not wait for a load queued behind them.
+     *
+     * @param indexSettings the settings of the index, without the settings of the requesting node
+     * @param knownHash the hash of the rules the requesting node already has, they are not sent again
+     */
+    public FetchRulesResponse publishRules(Index index, Settings indexSettings, String name, String knownHash)
+            throws IOException {
+        // the filter settings do not depend on the uuid
+        Index publishing = publishingIndex(index);
+        IndexSettings settings = new IndexSettings(IndexMetaData.builder(index.getName()).settings(Settings.builder()
+                .put(indexSettings)
+                .put(IndexMetaData.SETTING_INDEX_UUID, publishing.getUUID()))
+                .build(), this.settings);
+        Settings filterSettings = AnalysisRegistry.getSettingsFromIndexSettings(settings,
+                AnalysisRegistry.INDEX_ANALYSIS_FILTER + "." + name);
+        Settings.Builder published = Settings.builder().put(filterSettings);
+        published.remove("lazy");
+        published.remove("async");
+        Settings publishedSettings = published.build();
+
+        RegisteredFilter<?> filter = getRegisteredFilter(index, name, filterSettings);
+        if (filter == null || !filter.rules.isLoaded()) {
+            filter = getRegisteredFilter(publishing, name, publishedSettings);
+        }
+        if (filter == null) {
+            Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> providers = this.providers;
+            AnalysisModule.AnalysisProvider<TokenFilterFactory> provider =
+                    providers == null ? null : providers.get(filterSettings.get("type"));
+            if (provider == null) {
+                throw new IllegalArgumentException("[" + name + "] of " + index + " is not an uber filter");
+            }
+            publishedIndices.add(index);
+            provider.get(settings, getEnvironment(), name, publishedSettings);
+            filter = getRegisteredFilter(publishing, name, publishedSettings);
+            if (filter == null) {
+                throw new IllegalStateException("[" + name + "] of " + index + " was created without its rules");
+            }
+        }
+        if (filter.codec == null) {
+            throw new IllegalArgumentException("the rules of [" + name + "] of " + index +
+                    " are not loaded by a query or from an object store");
+        }
+        return filter.publish(knownHash);
+    }
+
+    /**
+     * Releases the rules the elected master holds for other nodes, for the indices matching the predicate (ex: closed
+     * or deleted, or all of them once this node is no longer the master). They are loaded again if they are asked for.
+     */
+    public void releasePublishedRules(Predicate<Index> released) {
+        for (Index index : publishedIndices) {
+            if (released.test(index) && publishedIndices.remove(index)) {
+                Index publishing = publishingIndex(index);
+                ruleCache.release(publishing);
+                unregisterFilters(publishing);
+            }
+        }
+    }
+
+    private static Index publishingIndex(Index index) {
+        return new Index(index.getName(), index.getUUID() + PUBLISHED_UUID_SUFFIX);
+    }
+
+    private RegisteredFilter<?> getRegisteredFilter(Index index, String name, Settings filterSettings) {
+        Map<String, RegisteredFilter<?>> indexFilters = filters.get(index);
+        RegisteredFilter<?> filter = indexFilters == null ? null : indexFilters.get(name);
+        // the filter may have been created from other settings, before the index was closed and updated
+        return filter != null && filter.settings.equals(filterSettings) ? filter : null;
+    }
+
+    private synchronized Environment getEnvironment() {
+        if (environment == null) {
+            environment = new Environment(settings);
+        }
+        return environment;
+    }
+
+    /**
+     * The snapshots are stored under the first data path of the node
+     */
+    public synchronized RuleSnapshots getRuleSnapshots(Environment environment) {
+        if (ruleSnapshots == null) {
+            ruleSnapshots = new RuleSnapshots(environment.dataFiles()[0].resolve(SNAPSHOTS_DIRECTORY));
+        }
+        return ruleSnapshots;
+    }
+
+    /**
+     * Where the memory mapped term sets are written, under the first data path of the node. The files are deleted
+     * as soon as they are mapped, the ones left over by a previous run of the node are deleted on first access.
+     */
+    public synchronized Path getTermSetDirectory(Environment environment) throws IOException {
+        if (termSetDirectory == null) {
+            Path directory = environment.dataFiles()[0].resolve(SNAPSHOTS_DIRECTORY)
+                    .resolve(TERM_SETS_DIRECTORY);
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    IOUtils.deleteFilesIgnoringExceptions(file);
+                }
+            }
+            termSetDirectory = directory;
+        }
+        return termSetDirectory;
+    }
+
+    /**
+     * Records the rules used by a filter, for its stats and for the nodes fetching them from this one. A filter
+     * created again (ex: on index settings update) replaces the previous one.
+     *
+     * @param settings the settings of the filter
+     * @param codec serializes the rules, null if they are not loaded by a query or from an object store
+     */
+    public <T> void registerFilter(Index index, String name, String type, Settings settings, RefreshableRules<T> rules,
+                                   RuleCodec<T> codec) {
+        filters.computeIfAbsent(index, i -> new ConcurrentHashMap<>())
+                .put(name, new RegisteredFilter<>(type, settings, rules, codec));
+    }
+
+    public void unregisterFilters(Index index) {
+        filters.remove(index);
+    }
+
+    /**
+     * The stats of the last load of the rules of each filter of the node
+     */
+    public List<FilterStats> getFilterStats() {
+        List<FilterStats> stats = new ArrayList<>();
+        for (Map.Entry<Index, ConcurrentMap<String, RegisteredFilter<?>>> index : filters.entrySet()) {
+            for (Map.Entry<String, RegisteredFilter<?>> filter : index.getValue().entrySet()) {
+                LoadStats loadStats = filter.getValue().rules.getStats();
+                if (loadStats != null) {
+                    stats.add(new FilterStats(index.getKey().getName(), filter.getKey(), filter.getValue().type,
+                            loadStats));
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        dataSources.close();
+    }
+
+    private static class RegisteredFilter<T> {
+
+        private final String type;
+        private final Settings settings;
+        private final RefreshableRules<T> rules;
+        private final RuleCodec<T> codec;
+
+        // the last rules serialized for other nodes
+        private T published;
+        private String publishedHash;
+        private BytesReference publishedBytes;
+
+        RegisteredFilter(String type, Settings settings, RefreshableRules<T> rules, RuleCodec<T> codec) {
+            this.type = type;
+            this.settings = settings;
+            this.rules = rules;
+            this.codec = codec;
+        }
+
+        /*
+         * The rules are only serialized again once they are refreshed
+         */
+        synchronized FetchRulesResponse publish(String knownHash) throws IOException {
+            T current = rules.get();
+            if (current != published) {
+                BytesStreamOutput out = new BytesStreamOutput();
+                codec.write(new OutputStreamDataOutput(out), current);
+                publishedBytes = out.bytes();
+                publishedHash = MessageDigests.toHexString(
+                        MessageDigests.sha256().digest(BytesReference.toBytes(publishedBytes)));
+                published = current;
+            }
+            return new FetchRulesResponse(publishedHash, publishedHash.equals(knownHash) ? null : publishedBytes);
+        }
+    }
+}
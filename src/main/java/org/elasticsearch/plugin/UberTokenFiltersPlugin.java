@@ -1,41 +1,147 @@
 package org.elasticsearch.plugin;
 
+import org.elasticsearch.plugin.action.FetchRulesAction;
+import org.elasticsearch.plugin.action.RestUberFiltersStatsAction;
+import org.elasticsearch.plugin.action.TransportFetchRulesAction;
+import org.elasticsearch.plugin.action.TransportUberFiltersStatsAction;
+import org.elasticsearch.plugin.action.UberFiltersStatsAction;
 import org.elasticsearch.plugin.index.analysis.analysis.UberKeywordMarkerTokenFilterFactory;
+import org.elasticsearch.plugin.index.analysis.analysis.UberLexiconTokenFilterFactory;
 import org.elasticsearch.plugin.index.analysis.analysis.UberStemmerOverrideTokenFilterFactory;
 import org.elasticsearch.plugin.index.analysis.analysis.UberStopTokenFilterFactory;
+import org.elasticsearch.plugin.index.analysis.analysis.UberSynonymGraphTokenFilterFactory;
 import org.elasticsearch.plugin.index.analysis.analysis.UberSynonymTokenFilterFactory;
+import org.elasticsearch.plugin.loader.ConnectionPool;
+import org.elasticsearch.plugin.loader.DataSourceBreaker;
+import org.elasticsearch.plugin.loader.DataSources;
+import org.elasticsearch.plugin.loader.ObjectStoreClient;
+import org.elasticsearch.plugin.rules.RuleMemoryBreaker;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.shard.IndexEventListener;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
-public class UberTokenFiltersPlugin extends Plugin implements AnalysisPlugin {
+public class UberTokenFiltersPlugin extends Plugin implements AnalysisPlugin, ActionPlugin {
 
+    private static final TimeValue EVICTION_INTERVAL = TimeValue.timeValueMinutes(1);
+
+    private final UberFiltersService service;
+
+    private final Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> tokenFilters;
+
+    private FilterBatchLoader batchLoader;
+
+    private ThreadPool.Cancellable evictionTask;
+
+    private AnalysisRegistry analysisRegistry;
+
+    // whether this node is the elected master, as of the cluster state being applied
+    private volatile boolean electedMaster;
+
+    public UberTokenFiltersPlugin() {
+        this(Settings.EMPTY);
+    }
+
+    public UberTokenFiltersPlugin(Settings settings) {
+        this.service = new UberFiltersService(settings);
+        this.tokenFilters = buildTokenFilters(settings);
+    }
+
+    /**
+     * The providers are built once, the analysis registry of the synonym filters asks for them again
+     */
     @Override
     public Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
+        return tokenFilters;
+    }
+
+    private Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> buildTokenFilters(Settings nodeSettings) {
+        Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> providers = new HashMap<>();
+
+        providers.put("uber_keyword_marker", (indexSettings, environment, name, settings) ->
+                new UberKeywordMarkerTokenFilterFactory(indexSettings, environment, name, settings, service));
+        providers.put("uber_lexicon", (indexSettings, environment, name, settings) ->
+                new UberLexiconTokenFilterFactory(indexSettings, environment, name, settings, service));
+        providers.put("uber_stemmer_override", (indexSettings, environment, name, settings) ->
+                new UberStemmerOverrideTokenFilterFactory(indexSettings, environment, name, settings, service));
+        providers.put("uber_stop", (indexSettings, environment, name, settings) ->
+                new UberStopTokenFilterFactory(indexSettings, environment, name, settings, service));
+        providers.put("uber_synonym", (indexSettings, environment, name, settings) ->
+                new UberSynonymTokenFilterFactory(indexSettings, environment, getAnalysisRegistry(environment), name,
+                        settings, service));
+        providers.put("uber_synonym_graph", (indexSettings, environment, name, settings) ->
+                new UberSynonymGraphTokenFilterFactory(indexSettings, environment, getAnalysisRegistry(environment),
+                        name, settings, service));
+
+        // the master creates the filters other nodes fetch the rules of
+        service.setFilterProviders(providers);
+
+        // all the uber filters of an index are created together
+        batchLoader = new FilterBatchLoader(service, providers, FilterBatchLoader.CREATE_TIMEOUT.get(nodeSettings));
+
         Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> filters = new HashMap<>();
+        for (String type : providers.keySet()) {
+            filters.put(type, requiresAnalysisSettings((indexSettings, environment, name, settings) ->
+                    batchLoader.get(type, indexSettings, environment, name, settings)));
+        }
 
-        filters.put("uber_keyword_marker", requiresAnalysisSettings(UberKeywordMarkerTokenFilterFactory::new));
-        filters.put("uber_stemmer_override", requiresAnalysisSettings(UberStemmerOverrideTokenFilterFactory::new));
-        filters.put("uber_stop", requiresAnalysisSettings(UberStopTokenFilterFactory::new));
-        filters.put("uber_synonym", requiresAnalysisSettings((indexSettings, environment, name, settings) ->
-                new UberSynonymTokenFilterFactory(indexSettings, environment, new AnalysisModule(environment, Collections
-                        .singletonList(this)).getAnalysisRegistry(), name, settings)
-        ));
+        return Collections.unmodifiableMap(filters);
+    }
 
-        return filters;
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // at most one query per database connection
+        List<ExecutorBuilder<?>> executors = new ArrayList<>();
+        executors.add(new FixedExecutorBuilder(settings, UberFiltersService.LOAD_THREAD_POOL,
+                ConnectionPool.MAX_SIZE.get(settings), -1, "uber_filters.load"));
+        for (String dataSource : DataSources.names(settings)) {
+            Settings poolSettings = DataSources.poolSettings(settings,
+                    DataSources.DATASOURCES.get(settings).getAsSettings(dataSource));
+            executors.add(new FixedExecutorBuilder(settings, UberFiltersService.loadExecutor(dataSource),
+                    ConnectionPool.MAX_SIZE.get(poolSettings), -1, DataSources.PREFIX + dataSource + ".load"));
+        }
+        return executors;
     }
 
     @Override
@@ -52,10 +158,122 @@ public class UberTokenFiltersPlugin extends Plugin implements AnalysisPlugin {
                 Setting.Property.NodeScope));
         settings.add(new Setting<>("uber_filters.jdbc.fetchsize", "", Function.identity(),
                 Setting.Property.NodeScope));
+        settings.add(ConnectionPool.MAX_SIZE);
+        settings.add(ConnectionPool.IDLE_TIMEOUT);
+        settings.add(ConnectionPool.MAX_LIFETIME);
+        settings.add(ConnectionPool.VALIDATION_TIMEOUT);
+        settings.add(ConnectionPool.ACQUIRE_TIMEOUT);
+        settings.add(ConnectionPool.STATEMENT_CACHE_SIZE);
+        settings.add(ConnectionPool.CONNECT_TIMEOUT);
+        settings.add(ConnectionPool.QUERY_TIMEOUT);
+        settings.add(ConnectionPool.REPLICAS);
+        settings.add(DataSources.DATASOURCES);
+        settings.add(DataSourceBreaker.FAILURE_THRESHOLD);
+        settings.add(DataSourceBreaker.RESET_TIMEOUT);
+        settings.add(RuleMemoryBreaker.LIMIT);
+        settings.add(RuleMemoryBreaker.OVERHEAD);
+        settings.add(ObjectStoreClient.ENDPOINT);
+        settings.add(ObjectStoreClient.REGION);
+        settings.add(ObjectStoreClient.CONNECT_TIMEOUT);
+        settings.add(ObjectStoreClient.READ_TIMEOUT);
+        settings.add(ObjectStoreClient.ACCESS_KEY);
+        settings.add(ObjectStoreClient.SECRET_KEY);
+        settings.add(UberFiltersService.LOAD_ON);
+        settings.add(UberFiltersService.FETCH_TIMEOUT);
+        settings.add(FilterBatchLoader.CREATE_TIMEOUT);
 
         return settings;
     }
 
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(
+                new ActionHandler<>(UberFiltersStatsAction.INSTANCE, TransportUberFiltersStatsAction.class),
+                new ActionHandler<>(FetchRulesAction.INSTANCE, TransportFetchRulesAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+                                             ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
+                                             SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestUberFiltersStatsAction(settings, restController));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService,
+                                               ScriptService scriptService, NamedXContentRegistry xContentRegistry) {
+        service.setThreadPool(threadPool);
+        // filters are created while a cluster state is applied, when reading the current state is not allowed. The
+        // flag is updated before the indices of the new state are created.
+        clusterService.addHighPriorityApplier(event -> electedMaster = event.localNodeMaster());
+        service.setCluster(client, () -> electedMaster);
+
+        if (service.getLoadOn() == UberFiltersService.LoadOn.MASTER) {
+            // the master may not hold the indices it publishes rules for, release them once the index is closed or
+            // deleted, or once another node is elected
+            clusterService.addListener(event -> {
+                if (!event.localNodeMaster()) {
+                    service.releasePublishedRules(index -> true);
+                    return;
+                }
+                List<Index> deleted = event.indicesDeleted();
+                MetaData metaData = event.state().metaData();
+                service.releasePublishedRules(index -> deleted.contains(index) || (metaData.index(index) != null &&
+                        metaData.index(index).getState() == IndexMetaData.State.CLOSE));
+            });
+        }
+
+        // close the connections nobody used for a while
+        DataSources dataSources = service.getDataSources();
+        evictionTask = threadPool.scheduleWithFixedDelay(dataSources::evictIdle, EVICTION_INTERVAL,
+                ThreadPool.Names.GENERIC);
+        return Collections.singletonList(service);
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // the analysis of the index is about to be built (again), the filters left over by a previous build are stale
+        batchLoader.discard(indexModule.getIndex().getUUID());
+
+        // compiled rules are shared between indices, release them once the index is gone from this node
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(Index index, IndexSettings indexSettings,
+                                          IndicesClusterStateService.AllocatedIndices.IndexRemovalReason reason) {
+                batchLoader.discard(index.getUUID());
+                service.getRuleCache().release(index);
+                service.unregisterFilters(index);
+            }
+        });
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (evictionTask != null) {
+            evictionTask.cancel();
+        }
+        synchronized (this) {
+            if (analysisRegistry != null) {
+                analysisRegistry.close();
+            }
+        }
+        service.close();
+    }
+
+    /*
+     * The synonym filters resolve their tokenizer through an analysis registry. Building one wires every built-in
+     * analysis component (and the hunspell dictionaries), so it is only built once, by the first synonym filter.
+     */
+    private synchronized AnalysisRegistry getAnalysisRegistry(Environment environment) throws IOException {
+        if (analysisRegistry == null) {
+            analysisRegistry = new AnalysisModule(environment, Collections.singletonList(this)).getAnalysisRegistry();
+        }
+        return analysisRegistry;
+    }
 
     /*
      * Borrowed from {@link org.elasticsearch.index.analysis.AnalysisRegistry#requiresAnalysisSettings(AnalysisModule.AnalysisProvider)}
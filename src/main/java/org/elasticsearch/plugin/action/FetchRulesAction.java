@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Fetches the compiled rules of a filter from the elected master, when {@code uber_filters.load_on} is {@code master}
+ */
+public class FetchRulesAction extends Action<FetchRulesRequest, FetchRulesResponse, FetchRulesRequestBuilder> {
+
+    public static final FetchRulesAction INSTANCE = new FetchRulesAction();
+    public static final String NAME = "cluster:internal/uber_filters/rules/fetch";
+
+    private FetchRulesAction() {
+        super(NAME);
+    }
+
+    @Override
+    public FetchRulesRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new FetchRulesRequestBuilder(client, this);
+    }
+
+    @Override
+    public FetchRulesResponse newResponse() {
+        return new FetchRulesResponse();
+    }
+}
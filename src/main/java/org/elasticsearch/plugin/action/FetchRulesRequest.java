@@ -0,0 +1,86 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.master.MasterNodeReadRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Asks the elected master for the compiled rules of a filter of an index.
+ *
+ * The request carries the settings of the index: the master may not have applied the cluster state creating the
+ * index yet, while the other nodes are already creating its filters.
+ */
+public class FetchRulesRequest extends MasterNodeReadRequest<FetchRulesRequest> {
+
+    private Index index;
+    private Settings indexSettings;
+    private String filter;
+    private String knownHash;
+
+    FetchRulesRequest() {
+    }
+
+    /**
+     * @param indexSettings the settings of the index only, without the settings of the node
+     * @param knownHash the hash of the rules the node already has, or null
+     */
+    public FetchRulesRequest(Index index, Settings indexSettings, String filter, String knownHash) {
+        this.index = index;
+        this.indexSettings = indexSettings;
+        this.filter = filter;
+        this.knownHash = knownHash;
+    }
+
+    public Index getIndex() {
+        return index;
+    }
+
+    public Settings getIndexSettings() {
+        return indexSettings;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public String getKnownHash() {
+        return knownHash;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (index == null) {
+            validationException = addValidationError("index is missing", validationException);
+        }
+        if (filter == null) {
+            validationException = addValidationError("filter is missing", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = new Index(in);
+        indexSettings = Settings.readSettingsFromStream(in);
+        filter = in.readString();
+        knownHash = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        index.writeTo(out);
+        Settings.writeSettingsToStream(indexSettings, out);
+        out.writeString(filter);
+        out.writeOptionalString(knownHash);
+    }
+}
@@ -0,0 +1,12 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.support.master.MasterNodeReadOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class FetchRulesRequestBuilder extends MasterNodeReadOperationRequestBuilder<FetchRulesRequest,
+        FetchRulesResponse, FetchRulesRequestBuilder> {
+
+    public FetchRulesRequestBuilder(ElasticsearchClient client, FetchRulesAction action) {
+        super(client, action, new FetchRulesRequest());
+    }
+}
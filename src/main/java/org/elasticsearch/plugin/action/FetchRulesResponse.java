@@ -0,0 +1,57 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * The compiled rules of a filter, serialized by their codec and identified by the hash of the serialized bytes.
+ * The rules are left out when the requesting node already has them.
+ */
+public class FetchRulesResponse extends ActionResponse {
+
+    private String hash;
+    private BytesReference rules;
+
+    FetchRulesResponse() {
+    }
+
+    /**
+     * @param rules the serialized rules, null if they did not change
+     */
+    public FetchRulesResponse(String hash, BytesReference rules) {
+        this.hash = hash;
+        this.rules = rules;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * The serialized rules, null if the requesting node already has the rules of this hash
+     */
+    public BytesReference getRules() {
+        return rules;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        hash = in.readString();
+        rules = in.readBoolean() ? in.readBytesReference() : null;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(hash);
+        out.writeBoolean(rules != null);
+        if (rules != null) {
+            out.writeBytesReference(rules);
+        }
+    }
+}
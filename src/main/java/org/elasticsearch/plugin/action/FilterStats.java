@@ -0,0 +1,69 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.plugin.rules.LoadStats;
+
+import java.io.IOException;
+
+/**
+ * The stats of the last load of the rules of an uber filter of an index
+ */
+public class FilterStats implements Writeable, ToXContentObject {
+
+    private final String index;
+    private final String name;
+    private final String type;
+    private final LoadStats loadStats;
+
+    public FilterStats(String index, String name, String type, LoadStats loadStats) {
+        this.index = index;
+        this.name = name;
+        this.type = type;
+        this.loadStats = loadStats;
+    }
+
+    public FilterStats(StreamInput in) throws IOException {
+        this.index = in.readString();
+        this.name = in.readString();
+        this.type = in.readString();
+        this.loadStats = new LoadStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeString(name);
+        out.writeString(type);
+        loadStats.writeTo(out);
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("index", index);
+        builder.field("name", name);
+        builder.field("type", type);
+        loadStats.toXContent(builder, params);
+        return builder.endObject();
+    }
+}
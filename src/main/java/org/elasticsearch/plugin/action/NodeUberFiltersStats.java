@@ -0,0 +1,77 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.indices.breaker.CircuitBreakerStats;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The stats of the uber filters of a node
+ */
+public class NodeUberFiltersStats extends BaseNodeResponse implements ToXContent {
+
+    private List<FilterStats> filters;
+
+    private CircuitBreakerStats breaker;
+
+    NodeUberFiltersStats() {
+        this.filters = Collections.emptyList();
+    }
+
+    /**
+     * @param breaker the stats of the breaker accounting for the memory of the rules
+     */
+    public NodeUberFiltersStats(DiscoveryNode node, List<FilterStats> filters, CircuitBreakerStats breaker) {
+        super(node);
+        this.filters = filters;
+        this.breaker = breaker;
+    }
+
+    public static NodeUberFiltersStats readNodeStats(StreamInput in) throws IOException {
+        NodeUberFiltersStats stats = new NodeUberFiltersStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public List<FilterStats> getFilters() {
+        return filters;
+    }
+
+    public CircuitBreakerStats getBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        filters = in.readList(FilterStats::new);
+        breaker = new CircuitBreakerStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeList(filters);
+        breaker.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().getName());
+        builder.startArray("filters");
+        for (FilterStats filter : filters) {
+            filter.toXContent(builder, params);
+        }
+        builder.endArray();
+        builder.startObject("breakers");
+        breaker.toXContent(builder, params);
+        return builder.endObject();
+    }
+}
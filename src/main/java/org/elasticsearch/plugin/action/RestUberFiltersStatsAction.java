@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * {@code GET /_uber_filters/stats} and {@code GET /_uber_filters/{node_id}/stats}
+ */
+public class RestUberFiltersStatsAction extends BaseRestHandler {
+
+    public RestUberFiltersStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_uber_filters/stats", this);
+        controller.registerHandler(GET, "/_uber_filters/{node_id}/stats", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String[] nodesIds = Strings.splitStringByCommaToArray(request.param("node_id"));
+        UberFiltersStatsRequest statsRequest = new UberFiltersStatsRequest(nodesIds);
+        statsRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(UberFiltersStatsAction.INSTANCE, statsRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,61 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.master.TransportMasterNodeReadAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Serves the compiled rules of the filters to the other nodes, on the elected master. The rules are loaded by the
+ * master the first time they are requested, on the {@code uber_filters_load} thread pool.
+ */
+public class TransportFetchRulesAction extends TransportMasterNodeReadAction<FetchRulesRequest, FetchRulesResponse> {
+
+    private final UberFiltersService service;
+
+    @Inject
+    public TransportFetchRulesAction(Settings settings, TransportService transportService,
+                                     ClusterService clusterService, ThreadPool threadPool, ActionFilters actionFilters,
+                                     IndexNameExpressionResolver indexNameExpressionResolver,
+                                     UberFiltersService service) {
+        super(settings, FetchRulesAction.NAME, transportService, clusterService, threadPool, actionFilters,
+                indexNameExpressionResolver, FetchRulesRequest::new);
+        this.service = service;
+    }
+
+    @Override
+    protected String executor() {
+        return UberFiltersService.LOAD_THREAD_POOL;
+    }
+
+    @Override
+    protected FetchRulesResponse newResponse() {
+        return new FetchRulesResponse();
+    }
+
+    @Override
+    protected ClusterBlockException checkBlock(FetchRulesRequest request, ClusterState state) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_READ);
+    }
+
+    @Override
+    protected void masterOperation(FetchRulesRequest request, ClusterState state,
+                                   ActionListener<FetchRulesResponse> listener) throws Exception {
+        // the index may not be in the cluster state yet, but it must not come back once deleted
+        if (state.metaData().indexGraveyard().containsIndex(request.getIndex())) {
+            throw new IndexNotFoundException(request.getIndex());
+        }
+        listener.onResponse(service.publishRules(request.getIndex(), request.getIndexSettings(), request.getFilter(),
+                request.getKnownHash()));
+    }
+}
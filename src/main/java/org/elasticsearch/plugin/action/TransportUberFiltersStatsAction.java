@@ -0,0 +1,67 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+/**
+ * Collects the stats of the uber filters of each node
+ */
+public class TransportUberFiltersStatsAction extends TransportNodesAction<UberFiltersStatsRequest,
+        UberFiltersStatsResponse, TransportUberFiltersStatsAction.NodeRequest, NodeUberFiltersStats> {
+
+    private final UberFiltersService service;
+
+    @Inject
+    public TransportUberFiltersStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                           TransportService transportService, ActionFilters actionFilters,
+                                           IndexNameExpressionResolver indexNameExpressionResolver,
+                                           UberFiltersService service) {
+        super(settings, UberFiltersStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, UberFiltersStatsRequest::new, NodeRequest::new,
+                ThreadPool.Names.MANAGEMENT, NodeUberFiltersStats.class);
+        this.service = service;
+    }
+
+    @Override
+    protected UberFiltersStatsResponse newResponse(UberFiltersStatsRequest request, List<NodeUberFiltersStats> nodes,
+                                                   List<FailedNodeException> failures) {
+        return new UberFiltersStatsResponse(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, UberFiltersStatsRequest request) {
+        return new NodeRequest(nodeId);
+    }
+
+    @Override
+    protected NodeUberFiltersStats newNodeResponse() {
+        return new NodeUberFiltersStats();
+    }
+
+    @Override
+    protected NodeUberFiltersStats nodeOperation(NodeRequest request) {
+        return new NodeUberFiltersStats(clusterService.localNode(), service.getFilterStats(),
+                service.getBreaker().stats());
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class UberFiltersStatsAction
+        extends Action<UberFiltersStatsRequest, UberFiltersStatsResponse, UberFiltersStatsRequestBuilder> {
+
+    public static final UberFiltersStatsAction INSTANCE = new UberFiltersStatsAction();
+    public static final String NAME = "cluster:monitor/uber_filters/stats";
+
+    private UberFiltersStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public UberFiltersStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new UberFiltersStatsRequestBuilder(client, this);
+    }
+
+    @Override
+    public UberFiltersStatsResponse newResponse() {
+        return new UberFiltersStatsResponse();
+    }
+}
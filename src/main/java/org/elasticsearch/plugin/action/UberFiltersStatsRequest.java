@@ -0,0 +1,13 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+/**
+ * Asks the given nodes (all of them by default) for the stats of their uber filters
+ */
+public class UberFiltersStatsRequest extends BaseNodesRequest<UberFiltersStatsRequest> {
+
+    public UberFiltersStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
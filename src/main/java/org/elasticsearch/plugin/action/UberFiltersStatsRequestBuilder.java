@@ -0,0 +1,12 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class UberFiltersStatsRequestBuilder extends NodesOperationRequestBuilder<UberFiltersStatsRequest,
+        UberFiltersStatsResponse, UberFiltersStatsRequestBuilder> {
+
+    public UberFiltersStatsRequestBuilder(ElasticsearchClient client, UberFiltersStatsAction action) {
+        super(client, action, new UberFiltersStatsRequest());
+    }
+}
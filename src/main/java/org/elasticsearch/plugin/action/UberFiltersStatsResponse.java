@@ -0,0 +1,44 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+public class UberFiltersStatsResponse extends BaseNodesResponse<NodeUberFiltersStats> implements ToXContent {
+
+    UberFiltersStatsResponse() {
+    }
+
+    public UberFiltersStatsResponse(ClusterName clusterName, List<NodeUberFiltersStats> nodes,
+                                    List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeUberFiltersStats> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeUberFiltersStats::readNodeStats);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeUberFiltersStats> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeUberFiltersStats node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+}
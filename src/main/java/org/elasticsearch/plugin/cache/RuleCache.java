@@ -0,0 +1,120 @@
+package org.elasticsearch.plugin.cache;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.index.Index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Node level cache of compiled rule structures ({@code CharArraySet}, {@code StemmerOverrideMap},
+ * {@code SynonymMap}...).
+ *
+ * Filters with an identical {@link RuleKey} share a single immutable instance, no matter how many
+ * indices declare them. Each entry keeps track of the indices referencing it and is evicted once the
+ * last of those indices is removed from the node. Evicted rules implementing {@link Closeable} are closed
+ * (ex: to stop refreshing them).
+ */
+public class RuleCache {
+
+    private static final Logger logger = Loggers.getLogger(RuleCache.class);
+
+    private final Map<RuleKey, Entry> entries = new HashMap<>();
+
+    /**
+     * Returns the cached rules for the key, building them with the loader if no other index
+     * has done so yet. The index is registered as a user of the entry until {@link #release(Index)}
+     */
+    public <T> T acquire(Index index, RuleKey key, CheckedSupplier<T, IOException> loader) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.computeIfAbsent(key, Entry::new);
+            entry.indices.add(index.getUUID());
+        }
+
+        try {
+            return entry.get(loader);
+        } catch (IOException | RuntimeException e) {
+            // do not keep a reference to rules that were never built
+            synchronized (this) {
+                entry.indices.remove(index.getUUID());
+                if (entry.indices.isEmpty()) {
+                    entries.remove(key, entry);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases every entry held by the index, evicting the ones no longer used by any index
+     */
+    public void release(Index index) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.indices.remove(index.getUUID()) && entry.indices.isEmpty()) {
+                    logger.debug("evict {} after removal of {}", entry.key, index);
+                    iterator.remove();
+                    evicted.add(entry);
+                }
+            }
+        }
+
+        for (Entry entry : evicted) {
+            entry.close();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+
+        private final RuleKey key;
+        private final Set<String> indices = new HashSet<>();
+        private volatile Object rules;
+
+        Entry(RuleKey key) {
+            this.key = key;
+        }
+
+        /*
+         * Builds outside of the cache lock, so that different rules can be compiled concurrently,
+         * but only once per entry
+         */
+        @SuppressWarnings("unchecked")
+        synchronized <T> T get(CheckedSupplier<T, IOException> loader) throws IOException {
+            if (rules == null) {
+                logger.debug("compile {}", key);
+                rules = loader.get();
+            } else {
+                logger.debug("reuse {}", key);
+            }
+            return (T) rules;
+        }
+
+        void close() {
+            Object current = rules;
+            if (current instanceof Closeable) {
+                try {
+                    ((Closeable) current).close();
+                } catch (IOException e) {
+                    logger.warn("failed to close evicted {}", key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.elasticsearch.plugin.cache;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Identifies a compiled rule structure independently of the index that declared it.
+ *
+ * Two filters share a key when they are of the same rule type, load from the same source and are
+ * configured with identical settings (query, params, ignore_case, expand, format, tokenizer...).
+ */
+public final class RuleKey {
+
+    private final String type;
+    private final String source;
+    private final Map<String, String> settings;
+
+    public RuleKey(String type, String source, Settings... settings) {
+        this.type = type;
+        this.source = source;
+        this.settings = new TreeMap<>();
+
+        for (int i = 0; i < settings.length; i++) {
+            for (Map.Entry<String, String> entry : settings[i].getAsMap().entrySet()) {
+                this.settings.put(i + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        // the token filter type is not part of the compiled rules
+        this.settings.remove("0.type");
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RuleKey ruleKey = (RuleKey) o;
+        return type.equals(ruleKey.type) &&
+                Objects.equals(source, ruleKey.source) &&
+                settings.equals(ruleKey.settings);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, source, settings);
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + source + "]" + settings;
+    }
+}
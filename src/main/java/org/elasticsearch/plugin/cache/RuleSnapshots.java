@@ -0,0 +1,151 @@
+package org.elasticsearch.plugin.cache;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Supplier;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.plugin.rules.RuleCodec;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Optional;
+
+/**
+ * Persists compiled rules on the local disk, so that they can be restored without querying the database
+ * and compiling them again.
+ *
+ * Each snapshot is stored in its own file, named after its {@link RuleKey}, and records the version of the rules
+ * (as returned by the filter's {@code version_query}) along with a checksum of the whole file.
+ */
+public class RuleSnapshots {
+
+    private static final Logger logger = Loggers.getLogger(RuleSnapshots.class);
+
+    private static final String CODEC = "uber_filters_rules";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    private static final String EXTENSION = ".rules";
+
+    private final Path path;
+
+    public RuleSnapshots(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the snapshot of the rules
+     *
+     * @param version the expected version of the rules, or null to accept any version (last known good rules)
+     */
+    public <T> Optional<T> read(RuleKey key, String version, RuleCodec<T> codec) {
+        String name = fileName(key);
+
+        try (Directory directory = FSDirectory.open(path);
+             ChecksumIndexInput in = directory.openChecksumInput(name, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+
+            String snapshotKey = in.readString();
+            String snapshotVersion = in.readString();
+            if (!snapshotKey.equals(key.toString())) {
+                logger.debug("snapshot {} belongs to different rules", name);
+                return Optional.empty();
+            }
+            if (version != null && !version.equals(snapshotVersion)) {
+                logger.debug("snapshot {} is outdated: version {}, expected {}", name, snapshotVersion, version);
+                return Optional.empty();
+            }
+
+            T rules = codec.read(in);
+            CodecUtil.checkFooter(in);
+
+            logger.debug("restored {} version {} from snapshot {}", key, snapshotVersion, name);
+            return Optional.of(rules);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException | RuntimeException e) {
+            logger.warn((Supplier<?>) () -> new ParameterizedMessage("ignore unreadable snapshot {}", name), e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads the version of the snapshot of the rules, without reading the rules
+     *
+     * @return empty if there is no snapshot of the rules, or its version is unknown
+     */
+    public Optional<String> readVersion(RuleKey key) {
+        String name = fileName(key);
+
+        try (Directory directory = FSDirectory.open(path);
+             ChecksumIndexInput in = directory.openChecksumInput(name, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+
+            String snapshotKey = in.readString();
+            String snapshotVersion = in.readString();
+            if (!snapshotKey.equals(key.toString()) || snapshotVersion.isEmpty()) {
+                return Optional.empty();
+            }
+            return Optional.of(snapshotVersion);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException | RuntimeException e) {
+            logger.warn((Supplier<?>) () -> new ParameterizedMessage("ignore unreadable snapshot {}", name), e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes the snapshot of the rules, replacing any previous snapshot of the same rules
+     *
+     * @param version the version of the rules, or null if unknown
+     */
+    public <T> void write(RuleKey key, String version, T rules, RuleCodec<T> codec) {
+        String name = fileName(key);
+
+        try (Directory directory = FSDirectory.open(path)) {
+            String tmpName = null;
+            boolean success = false;
+            try {
+                try (IndexOutput out = directory.createTempOutput(name, "tmp", IOContext.DEFAULT)) {
+                    tmpName = out.getName();
+                    CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+                    out.writeString(key.toString());
+                    out.writeString(version == null ? "" : version);
+                    codec.write(out, rules);
+                    CodecUtil.writeFooter(out);
+                }
+
+                directory.sync(Collections.singleton(tmpName));
+                directory.rename(tmpName, name);
+                directory.syncMetaData();
+                success = true;
+            } finally {
+                if (!success && tmpName != null) {
+                    IOUtils.deleteFilesIgnoringExceptions(directory, tmpName);
+                }
+            }
+
+            logger.debug("wrote snapshot {} of {} version {}", name, key, version);
+        } catch (IOException | RuntimeException e) {
+            // the rules are usable anyway, they will be loaded from the database next time
+            logger.warn((Supplier<?>) () -> new ParameterizedMessage("could not write snapshot {}", name), e);
+        }
+    }
+
+    private static String fileName(RuleKey key) {
+        byte[] digest = MessageDigests.sha256().digest(key.toString().getBytes(StandardCharsets.UTF_8));
+        return MessageDigests.toHexString(digest) + EXTENSION;
+    }
+}
@@ -0,0 +1,122 @@
+package org.elasticsearch.plugin.cli;
+
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.Version;
+import org.elasticsearch.cli.EnvironmentAwareCommand;
+import org.elasticsearch.cli.ExitCodes;
+import org.elasticsearch.cli.Terminal;
+import org.elasticsearch.cli.UserException;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.plugin.index.analysis.analysis.AbstractUberTokenFilterFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the rules of an uber filter offline, from its rule table or its rule file, so that nodes load them with
+ * {@code compiled} enabled as a single blob instead of compiling them.
+ *
+ * The filter is created from the settings of its index, with the node settings (ex: the datasources) of the
+ * Elasticsearch installation the tool runs from.
+ */
+public class CompileRulesCommand extends EnvironmentAwareCommand {
+
+    // the settings that delay or replace the load of the rules, the compiled rules are loaded right away
+    private static final List<String> LOAD_SETTINGS = Arrays.asList("compiled", "lazy", "async", "async_placeholder",
+            "async_timeout", "refresh_interval");
+
+    private final OptionSpec<String> indexSettingsOption;
+    private final OptionSpec<String> filterOption;
+    private final OptionSpec<String> outputOption;
+
+    public CompileRulesCommand() {
+        super("Compiles the rules of an uber filter, to be loaded by its query with compiled enabled");
+        indexSettingsOption = parser.accepts("index-settings", "The settings of the index of the filter (json or yaml)")
+                .withRequiredArg().required();
+        filterOption = parser.accepts("filter", "The name of the filter").withRequiredArg().required();
+        outputOption = parser.accepts("output", "The file the compiled rules are written to")
+                .withRequiredArg().required();
+    }
+
+    public static void main(String[] args) throws Exception {
+        exit(new CompileRulesCommand().main(args, Terminal.DEFAULT));
+    }
+
+    @Override
+    protected void execute(Terminal terminal, OptionSet options, Environment env) throws Exception {
+        String name = filterOption.value(options);
+        Path output = PathUtils.get(outputOption.value(options));
+
+        // the snapshots of the rules must not end up in the data of the node
+        Path dataPath = Files.createTempDirectory("uber-filters-compile");
+        Settings nodeSettings = Settings.builder().put(env.settings()).put(Environment.PATH_DATA_SETTING.getKey(),
+                dataPath.toString()).build();
+        Environment environment = new Environment(nodeSettings);
+        IndexSettings indexSettings = indexSettings(PathUtils.get(indexSettingsOption.value(options)), name,
+                nodeSettings);
+
+        UberTokenFiltersPlugin plugin = new UberTokenFiltersPlugin(nodeSettings);
+        AnalysisRegistry registry = new AnalysisModule(environment, Collections.singletonList(plugin))
+                .getAnalysisRegistry();
+        try {
+            TokenFilterFactory filter = registry.buildTokenFilterFactories(indexSettings).get(name);
+            if (filter == null) {
+                throw new UserException(ExitCodes.USAGE, "the index has no filter [" + name + "]");
+            }
+            if (!(filter instanceof AbstractUberTokenFilterFactory)) {
+                throw new UserException(ExitCodes.USAGE, "[" + name + "] is not an uber filter");
+            }
+
+            byte[] compiled = ((AbstractUberTokenFilterFactory) filter).compile();
+            Files.write(output, compiled);
+            terminal.println("compiled the rules of [" + name + "] to " + output + " (" + compiled.length + " bytes)");
+        } finally {
+            IOUtils.close(registry, plugin);
+            IOUtils.rm(dataPath);
+        }
+    }
+
+    /*
+     * Only the settings of the filter to compile are kept, among the filters of the index. The filter loads its rules
+     * right away and fails if it cannot, rather than falling back to its standard parameters.
+     */
+    private static IndexSettings indexSettings(Path file, String name, Settings nodeSettings) throws Exception {
+        if (!Files.exists(file)) {
+            throw new UserException(ExitCodes.NO_INPUT, "index settings [" + file + "] not found");
+        }
+        Settings loaded = Settings.builder().loadFromPath(file).normalizePrefix(IndexMetaData.INDEX_SETTING_PREFIX)
+                .build();
+
+        String filters = AnalysisRegistry.INDEX_ANALYSIS_FILTER + ".";
+        String filter = filters + name + ".";
+        Settings.Builder settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0);
+        for (Map.Entry<String, String> entry : loaded.getAsMap().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(filters) || (key.startsWith(filter) &&
+                    !LOAD_SETTINGS.contains(key.substring(filter.length())))) {
+                settings.put(key, entry.getValue());
+            }
+        }
+        settings.put(filter + "strict", true);
+
+        IndexMetaData metaData = IndexMetaData.builder("compile").settings(settings).build();
+        return new IndexSettings(metaData, nodeSettings);
+    }
+}
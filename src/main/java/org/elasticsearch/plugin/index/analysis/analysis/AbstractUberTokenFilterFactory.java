@@ -1,31 +1,168 @@
 package org.elasticsearch.plugin.index.analysis.analysis;
 
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Supplier;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.store.InputStreamDataInput;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.action.FetchRulesResponse;
+import org.elasticsearch.plugin.cache.RuleKey;
+import org.elasticsearch.plugin.cache.RuleSnapshots;
 import org.elasticsearch.plugin.loader.DatabaseTermLoader;
+import org.elasticsearch.plugin.loader.ObjectStoreTermLoader;
 import org.elasticsearch.plugin.loader.TermLoader;
+import org.elasticsearch.plugin.rules.CompiledRules;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.RuleCodec;
+import org.elasticsearch.plugin.rules.RuleCodecs;
+import org.elasticsearch.plugin.rules.RuleRamUsage;
+import org.elasticsearch.plugin.rules.TermSet;
+import org.elasticsearch.plugin.rules.TermSetChanges;
 import org.apache.lucene.analysis.TokenStream;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.threadpool.ThreadPool;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
 
 public abstract class AbstractUberTokenFilterFactory extends AbstractTokenFilterFactory {
 
-    private static final String PLUGIN_PREFIX = "uber_filters";
+    private static final String TERM_SET_HASH = "hash";
+    private static final String TERM_SET_FST = "fst";
+    private static final String TERM_SET_MMAP = "mmap";
+
+    // the source of the rules fetched from the elected master
+    private static final String MASTER_SOURCE = "master";
+
+    // the estimated heap used by a row, besides its chars, until the rules are built (ex: its entry in the builder)
+    private static final long ROW_OVERHEAD_BYTES = 64;
+    private static final long CHARGE_BATCH_BYTES = 1024 * 1024;
+
+    // the filter settings compiled rules depend on, they must be the same to use them
+    private static final Set<String> COMPILE_SETTINGS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "ignore_case", "expand", "format", "tokenizer", "term_set", "patterns", "max_determinized_states")));
+
+    private final UberFiltersService service;
+
+    private final Settings settings;
+
+    private final Environment env;
+
+    private final TimeValue refreshInterval;
+
+    private final String termSet;
+
+    private final boolean strict;
+
+    // the rules are loaded on the first use of the filter rather than on its creation
+    private final boolean lazy;
+
+    // the rules are loaded in the background, the placeholder applies until they are
+    private final AsyncRules.Placeholder asyncPlaceholder;
+
+    private final TimeValue asyncTimeout;
+
+    // the query, or the object, returns the rules compiled offline as a single blob
+    private final boolean compiled;
 
     private TermLoader termLoader;
 
-    AbstractUberTokenFilterFactory(IndexSettings indexSettings, String name, Settings settings) {
+    // the rules are loaded by the elected master, this node fetches them compiled
+    private boolean fromMaster;
+
+    // set while the rules are built from the standard parameters because the term loader failed
+    private boolean useStandardRules;
+
+    private volatile String lastHash;
+
+    // progress of the current load, for its stats
+    private long firstRowNanos;
+    private long rowsAccepted;
+    // whether the rows streamed are kept by the builder of the rules, rather than only hashed
+    private boolean building;
+    // the heap used by the rows of the current load, charged to the breaker or not yet
+    private long chargedBytes;
+    private long unchargedBytes;
+
+    // serializes the current rules with the settings they depend on, see compile()
+    private CheckedSupplier<byte[], IOException> compiler;
+
+    AbstractUberTokenFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings,
+                                   UberFiltersService service) {
         super(indexSettings, name, settings);
+        this.service = service;
+        this.settings = settings;
+        this.env = env;
 
         logger.info("Creating {} for {}", name, indexSettings.getIndex().getName());
 
-        // only the query is needed from the settings
-        // the if block is useful in the future if different loaders are defined (ex S3 loader)
+        TimeValue interval = settings.getAsTime("refresh_interval", null);
+        this.refreshInterval = interval != null && interval.millis() > 0 ? interval : null;
+
+        this.termSet = settings.get("term_set", TERM_SET_HASH);
+        if (!termSet.equals(TERM_SET_HASH) && !termSet.equals(TERM_SET_FST) && !termSet.equals(TERM_SET_MMAP)) {
+            throw new IllegalArgumentException("Unknown term_set [" + termSet + "], expected one of [" +
+                    TERM_SET_HASH + ", " + TERM_SET_FST + ", " + TERM_SET_MMAP + "]");
+        }
+
+        this.strict = settings.getAsBoolean("strict", true);
+        this.lazy = settings.getAsBoolean("lazy", false);
+        if (settings.getAsBoolean("async", false)) {
+            if (lazy) {
+                throw new IllegalArgumentException("rules are loaded either lazily or asynchronously, not both");
+            }
+            this.asyncPlaceholder = AsyncRules.Placeholder.parse(settings.get("async_placeholder", "wait"));
+            this.asyncTimeout = settings.getAsTime("async_timeout", TimeValue.timeValueMinutes(1));
+        } else {
+            this.asyncPlaceholder = null;
+            this.asyncTimeout = null;
+        }
+
+        // the rules come from a database query, or from an object store
         String query = settings.get("query", null);
-        if (query != null) {
-            termLoader = new DatabaseTermLoader(indexSettings, settings, PLUGIN_PREFIX);
+        boolean objectStore = settings.get("s3.key") != null || settings.get("s3.bucket") != null;
+        if (query != null && objectStore) {
+            throw new IllegalArgumentException("rules are loaded either by a query or from an object store (s3.*), " +
+                    "not both");
+        }
+        this.compiled = settings.getAsBoolean("compiled", false);
+        if (compiled && query == null && !objectStore) {
+            throw new IllegalArgumentException("compiled rules are loaded by a query or from an object store");
+        }
+        if ((query != null || objectStore) && service.fetchesRulesFromMaster()) {
+            logger.debug("rules of {} are loaded by the elected master", name);
+            fromMaster = true;
+        } else if (query != null) {
+            // the partitions of the query run on the generic thread pool, the loading thread waits for them
+            ThreadPool threadPool = service.getThreadPool();
+            Executor executor = threadPool == null ? Runnable::run : threadPool.generic();
+            termLoader = new DatabaseTermLoader(settings, service.getDataSources().get(settings.get("datasource")),
+                    executor);
+        } else if (objectStore) {
+            termLoader = new ObjectStoreTermLoader(settings, service.getObjectStoreClient());
         } else {
             logger.warn("No term loader created");
         }
@@ -33,14 +170,538 @@ public abstract class AbstractUberTokenFilterFactory extends AbstractTokenFilter
 
     public abstract TokenStream create(TokenStream tokenStream);
 
-    Optional<Collection<String>> loadTerms() {
-        if (termLoader != null) {
-            Collection<String> value = termLoader.loadTerms();
-            logger.debug("Found {} terms", value.size());
-            return Optional.of(value);
+    /**
+     * Applies the rules to the token stream. Refreshable rules are re-read whenever the stream is reset. Lazy rules
+     * are loaded by the first call, rules still loading in the background are replaced by their placeholder.
+     */
+    <T> TokenStream create(TokenStream tokenStream, RefreshableRules<T> rules,
+                           BiFunction<TokenStream, T, TokenStream> filterFactory) {
+        if (rules instanceof LazyRules) {
+            rules = ((LazyRules<T>) rules).resolve();
+        } else if (rules instanceof AsyncRules) {
+            AsyncRules<T> asyncRules = (AsyncRules<T>) rules;
+            RefreshableRules<T> loaded = asyncRules.loaded();
+            if (loaded == null) {
+                return new RefreshingTokenFilter<>(tokenStream, asyncRules::current, filterFactory);
+            }
+            rules = loaded;
+        }
+        if (rules.isRefreshable()) {
+            return new RefreshingTokenFilter<>(tokenStream, rules::get, filterFactory);
+        }
+        return filterFactory.apply(tokenStream, rules.get());
+    }
+
+    /**
+     * Streams the terms of the term loader to the consumer, as they are loaded
+     *
+     * @return false if no term loader is defined, the standard parameters should be used instead
+     */
+    boolean streamTerms(CheckedConsumer<String, IOException> consumer) {
+        if (termLoader != null && !useStandardRules) {
+            ContentHash hash = new ContentHash();
+            termLoader.streamTerms(term -> {
+                onRow(term.length());
+                hash.add(term.getBytes(StandardCharsets.UTF_8));
+                consumer.accept(term);
+            });
+            // loads of a filter never overlap: on creation, then by its single refresh task
+            lastHash = hash.toString();
+            return true;
+        } else {
+            logger.warn("No term loader defined");
+            return false;
+        }
+    }
+
+    /**
+     * Same as {@link #streamTerms(CheckedConsumer)} for rules spread over several columns of the query, each row
+     * is pushed as the values of its columns. The array is reused for the next row.
+     */
+    boolean streamRows(int columns, CheckedConsumer<String[], IOException> consumer) {
+        if (termLoader != null && !useStandardRules) {
+            ContentHash hash = new ContentHash();
+            termLoader.streamRows(columns, row -> {
+                long chars = 0;
+                for (String value : row) {
+                    chars += value.length();
+                }
+                onRow(chars);
+                hash.add(String.join("\t", row).getBytes(StandardCharsets.UTF_8));
+                consumer.accept(row);
+            });
+            lastHash = hash.toString();
+            return true;
         } else {
             logger.warn("No term loader defined");
-            return Optional.empty();
+            return false;
+        }
+    }
+
+    /*
+     * Charges the row to the breaker, in batches: until the rules are built, the builder holds about as much as the
+     * rows read. The rows only hashed are not kept, nor charged.
+     */
+    private void onRow(long chars) {
+        if (!building) {
+            return;
+        }
+        if (rowsAccepted++ == 0) {
+            firstRowNanos = System.nanoTime();
+        }
+        unchargedBytes += ROW_OVERHEAD_BYTES + 2 * chars;
+        if (unchargedBytes >= CHARGE_BATCH_BYTES) {
+            service.getBreaker().addEstimateBytesAndMaybeBreak(unchargedBytes, "load of [" + name() + "]");
+            chargedBytes += unchargedBytes;
+            unchargedBytes = 0;
+        }
+    }
+
+    /*
+     * Once the rules are built, or the load failed
+     */
+    private void releaseLoad() {
+        service.getBreaker().addWithoutBreaking(-chargedBytes);
+        chargedBytes = 0;
+        unchargedBytes = 0;
+    }
+
+    /**
+     * Builds the rules of this filter, or reuses the instance already compiled on this node for an
+     * identical filter. The returned rules are shared and must not be modified.
+     *
+     * Only rules coming from a term loader are shared, the standard parameters are cheap to build.
+     * Rules coming from a term loader are also persisted on disk. They are restored from disk instead of
+     * being loaded and compiled when the {@code version_query} reports they did not change, or when they
+     * cannot be loaded at all. When a {@code refresh_interval} is set, they are reloaded in the background.
+     * Rules that can neither be loaded nor restored fail the creation of the filter, unless {@code strict} is
+     * disabled: the standard parameters are used instead. With {@code lazy} enabled, all of this happens on the
+     * first use of the filter, with {@code async} enabled, or when the rules are fetched from the elected master,
+     * in the background.
+     *
+     * @param type the kind of rules, filters of different types never share rules
+     * @param codec serializes the rules to disk
+     * @param extraSettings additional settings the rules depend on (ex: the synonym tokenizer)
+     */
+    <T> RefreshableRules<T> loadRules(String type, RuleCodec<T> codec, CheckedSupplier<T, IOException> builder,
+                                      Settings... extraSettings) throws IOException {
+        return loadRules(type, codec, builder, null, extraSettings);
+    }
+
+    /**
+     * Same as {@link #loadRules(String, RuleCodec, CheckedSupplier, Settings...)} for a set of terms. When the term
+     * loader tracks changes (ex: {@code delta_query}), a refresh only loads the changes and applies them to the
+     * current set.
+     */
+    RefreshableRules<CharArraySet> loadTermSet(String type, boolean ignoreCase,
+                                               CheckedSupplier<CharArraySet, IOException> builder) throws IOException {
+        return loadRules(type, RuleCodecs.charArraySet(ignoreCase), builder, current -> {
+            TermSetChanges changes = new TermSetChanges(ignoreCase);
+            if (!termLoader.streamChanges(changes::add)) {
+                return null;
+            }
+            logger.debug("loaded {} changes", changes.size());
+            return changes.isEmpty() ? current : changes.applyTo(current);
+        });
+    }
+
+    /**
+     * Whether the {@code term_set} setting asks for a compact {@link TermSet} ({@code fst} or {@code mmap})
+     * rather than a {@link CharArraySet} ({@code hash}, the default)
+     */
+    boolean useCompactTermSet() {
+        return !termSet.equals(TERM_SET_HASH);
+    }
+
+    /**
+     * Same as {@link #loadTermSet(String, boolean, CheckedSupplier)} for a compact set: an FST on heap, or sorted
+     * terms mapped off heap. The terms are streamed straight into the set, a refresh always reloads all of them.
+     *
+     * @param defaults the terms of the standard parameters, used when no term loader is defined
+     */
+    RefreshableRules<TermSet> loadCompactTermSet(String type, boolean ignoreCase,
+                                                 CheckedSupplier<Iterable<?>, IOException> defaults) throws IOException {
+        Path directory = termSet.equals(TERM_SET_MMAP) ? service.getTermSetDirectory(env) : null;
+        return loadRules(type, RuleCodecs.termSet(ignoreCase, directory), () -> {
+            TermSet.Builder builder = new TermSet.Builder(ignoreCase);
+            if (!streamTerms(builder::add)) {
+                for (Object term : defaults.get()) {
+                    builder.add(term);
+                }
+            }
+            return directory == null ? builder.buildFst() : builder.buildMapped(directory);
+        });
+    }
+
+    /*
+     * The updater applies the latest changes to the current rules, it returns null if the rules have to be
+     * fully reloaded
+     */
+    private <T> RefreshableRules<T> loadRules(String type, RuleCodec<T> codec, CheckedSupplier<T, IOException> builder,
+                                              CheckedFunction<T, T, IOException> updater, Settings... extraSettings)
+            throws IOException {
+        // compiled rules are always fully reloaded, the standard parameters remain the fallback
+        CheckedSupplier<T, IOException> rulesBuilder = !compiled ? builder :
+                () -> useStandardRules ? builder.get() : readCompiled(type, codec, extraSettings);
+        CheckedFunction<T, T, IOException> rulesUpdater = compiled ? null : updater;
+
+        RefreshableRules<T> rules;
+        if (lazy) {
+            logger.debug("rules of {} are loaded on first use", name());
+            rules = new LazyRules<>(() -> acquireRules(type, codec, rulesBuilder, rulesUpdater, extraSettings));
+        } else if (asyncPlaceholder != null || fromMaster) {
+            // the filters may be created by the cluster state thread, which must not wait for the master
+            logger.debug("rules of {} are loaded in the background", name());
+            ThreadPool threadPool = service.getThreadPool();
+            // without a thread pool (ex: in unit tests), the rules are loaded right away
+            Executor executor = threadPool == null ? Runnable::run :
+                    threadPool.executor(service.loadExecutor(settings));
+            rules = new AsyncRules<>(name(), () -> acquireRules(type, codec, rulesBuilder, rulesUpdater, extraSettings),
+                    executor, asyncPlaceholder != null ? asyncPlaceholder : AsyncRules.Placeholder.WAIT,
+                    asyncTimeout != null ? asyncTimeout : service.getFetchTimeout());
+        } else {
+            rules = acquireRules(type, codec, rulesBuilder, rulesUpdater, extraSettings);
+        }
+        // rules built from the standard parameters are not published to other nodes
+        RuleCodec<T> publishedCodec = termLoader == null && !fromMaster ? null : codec;
+        service.registerFilter(index(), name(), type, settings, rules, publishedCodec);
+
+        RefreshableRules<T> loaded = rules;
+        compiler = () -> CompiledRules.write(type, compileSettings(extraSettings), loaded.get(), codec);
+        return rules;
+    }
+
+    /**
+     * Compiles the rules of this filter, for filters with {@code compiled} enabled to load them as a single blob
+     * (see the {@code uber-filters-compile} tool)
+     */
+    public byte[] compile() throws IOException {
+        if (compiled || lazy || asyncPlaceholder != null) {
+            throw new IllegalArgumentException("the rules of [" + name() + "] must be loaded right away to be " +
+                    "compiled, without compiled, lazy or async");
+        }
+        return compiler.get();
+    }
+
+    private <T> T readCompiled(String type, RuleCodec<T> codec, Settings... extraSettings) throws IOException {
+        byte[] blob = termLoader.loadBlob();
+        // charged as many bytes as the blob, which is on the heap until its rules are read
+        onRow(blob.length / 2);
+        lastHash = MessageDigests.toHexString(MessageDigests.sha256().digest(blob));
+        return CompiledRules.read(blob, type, compileSettings(extraSettings), codec);
+    }
+
+    /*
+     * The filter settings the rules depend on, and the extra settings prefixed by their position
+     */
+    private Map<String, String> compileSettings(Settings... extraSettings) {
+        Map<String, String> compileSettings = new HashMap<>();
+        for (String key : COMPILE_SETTINGS) {
+            String value = settings.get(key);
+            if (value != null) {
+                compileSettings.put(key, value);
+            }
+        }
+        for (int i = 0; i < extraSettings.length; i++) {
+            for (Map.Entry<String, String> entry : ruleSettings(extraSettings[i]).getAsMap().entrySet()) {
+                compileSettings.put(i + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        return compileSettings;
+    }
+
+    /*
+     * The analysis settings of the index come with its version, which does not change the rules
+     */
+    private static Settings ruleSettings(Settings analysisSettings) {
+        if (analysisSettings.get(IndexMetaData.SETTING_VERSION_CREATED) == null) {
+            return analysisSettings;
+        }
+        Settings.Builder builder = Settings.builder().put(analysisSettings);
+        builder.remove(IndexMetaData.SETTING_VERSION_CREATED);
+        return builder.build();
+    }
+
+    private <T> RefreshableRules<T> acquireRules(String type, RuleCodec<T> codec,
+                                                 CheckedSupplier<T, IOException> builder,
+                                                 CheckedFunction<T, T, IOException> updater, Settings... extraSettings)
+            throws IOException {
+        if (termLoader == null && !fromMaster) {
+            RefreshableRules<T> rules = new RefreshableRules<>(null, null, null);
+            rules.swap(build(builder, rules), null, null);
+            return rules;
+        }
+
+        // indices created on other versions share the rules
+        Settings[] keySettings = new Settings[extraSettings.length + 1];
+        keySettings[0] = ruleSettings(settings);
+        for (int i = 0; i < extraSettings.length; i++) {
+            keySettings[i + 1] = ruleSettings(extraSettings[i]);
+        }
+
+        RuleKey key = new RuleKey(type, fromMaster ? MASTER_SOURCE : termLoader.getSource(), keySettings);
+        return service.getRuleCache().acquire(index(), key, () -> {
+            RefreshableRules<T> rules = fromMaster ? fetchOrRestore(key, codec, builder) :
+                    loadOrRestore(key, codec, builder);
+            if (refreshInterval != null) {
+                scheduleRefresh(key, codec, builder, updater, rules);
+            }
+            return rules;
+        });
+    }
+
+    private <T> RefreshableRules<T> loadOrRestore(RuleKey key, RuleCodec<T> codec,
+                                                  CheckedSupplier<T, IOException> builder) throws IOException {
+        RuleSnapshots snapshots = service.getRuleSnapshots(env);
+        RefreshableRules<T> rules = accountedRules();
+        long start = System.nanoTime();
+
+        String version;
+        try {
+            version = termLoader.loadVersion();
+        } catch (RuntimeException e) {
+            rules.swap(restoreLastSnapshot(key, codec, builder, snapshots, e, rules, start), null, null);
+            return rules;
+        }
+
+        if (version != null) {
+            Optional<T> snapshot = snapshots.read(key, version, codec);
+            if (snapshot.isPresent()) {
+                logger.debug("rules did not change since version {}, restored from snapshot", version);
+                rules.swap(snapshot.get(), version, null);
+                rules.setStats(restoredStats(snapshot.get(), start));
+                return rules;
+            }
+        }
+
+        T built;
+        try {
+            built = build(builder, rules);
+        } catch (RuntimeException e) {
+            rules.swap(restoreLastSnapshot(key, codec, builder, snapshots, e, rules, start), null, null);
+            return rules;
+        }
+
+        snapshots.write(key, version, built, codec);
+        rules.swap(built, version, lastHash);
+        return rules;
+    }
+
+    /*
+     * The shared rules are charged to the breaker until they are evicted from the rule cache
+     */
+    private <T> RefreshableRules<T> accountedRules() {
+        RefreshableRules<T> rules = new RefreshableRules<>(null, null, null);
+        rules.account(service.getBreaker(), "rules of [" + name() + "]");
+        return rules;
+    }
+
+    /*
+     * The version of the snapshot of rules fetched from the master is the hash the master published them with
+     */
+    private <T> RefreshableRules<T> fetchOrRestore(RuleKey key, RuleCodec<T> codec,
+                                                   CheckedSupplier<T, IOException> builder) throws IOException {
+        RuleSnapshots snapshots = service.getRuleSnapshots(env);
+        RefreshableRules<T> rules = accountedRules();
+        long start = System.nanoTime();
+
+        try {
+            String snapshotHash = snapshots.readVersion(key).orElse(null);
+            if (!fetchFromMaster(key, codec, snapshotHash, rules, snapshots, start)) {
+                Optional<T> snapshot = snapshots.read(key, snapshotHash, codec);
+                if (snapshot.isPresent()) {
+                    logger.debug("rules did not change since hash {}, restored from snapshot", snapshotHash);
+                    rules.swap(snapshot.get(), snapshotHash, null);
+                    rules.setStats(restoredStats(snapshot.get(), start));
+                } else {
+                    fetchFromMaster(key, codec, null, rules, snapshots, start);
+                }
+            }
+        } catch (RuntimeException e) {
+            rules.swap(restoreLastSnapshot(key, codec, builder, snapshots, e, rules, start), null, null);
+        }
+        return rules;
+    }
+
+    /*
+     * Swaps in the rules of the master, unless they are the ones of the known hash
+     *
+     * @return false if the rules did not change
+     */
+    private <T> boolean fetchFromMaster(RuleKey key, RuleCodec<T> codec, String knownHash, RefreshableRules<T> rules,
+                                        RuleSnapshots snapshots, long start) {
+        FetchRulesResponse response = service.fetchRules(indexSettings, name(), knownHash);
+        if (response.getRules() == null) {
+            return false;
+        }
+
+        T fetched;
+        try {
+            fetched = codec.read(new InputStreamDataInput(response.getRules().streamInput()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read the rules of the master", e);
+        }
+        rules.swap(fetched, response.getHash(), null);
+        rules.setStats(new LoadStats(LoadStats.Source.MASTER, System.currentTimeMillis(), 0,
+                System.nanoTime() - start, 0, 0, RuleRamUsage.ramBytesUsed(fetched)));
+        logger.debug("fetched {} hash {} from the master", key, response.getHash());
+
+        snapshots.write(key, response.getHash(), fetched, codec);
+        return true;
+    }
+
+    private <T> T restoreLastSnapshot(RuleKey key, RuleCodec<T> codec, CheckedSupplier<T, IOException> builder,
+                                      RuleSnapshots snapshots, RuntimeException e, RefreshableRules<T> rules,
+                                      long start) {
+        Optional<T> snapshot = snapshots.read(key, null, codec);
+        if (snapshot.isPresent()) {
+            logger.warn("could not load rules, using the last snapshot instead: {}", e.getMessage());
+            rules.setStats(restoredStats(snapshot.get(), start));
+            return snapshot.get();
+        }
+        if (strict) {
+            throw e;
+        }
+
+        logger.warn("could not load rules and no snapshot is available, using the standard parameters instead: {}",
+                e.getMessage());
+        useStandardRules = true;
+        try {
+            return build(builder, rules);
+        } catch (IOException | RuntimeException fallback) {
+            e.addSuppressed(fallback);
+            throw e;
+        } finally {
+            useStandardRules = false;
+        }
+    }
+
+    /*
+     * Builds the rules and records the stats of the load
+     */
+    private <T> T build(CheckedSupplier<T, IOException> builder, RefreshableRules<T> rules) throws IOException {
+        firstRowNanos = 0;
+        rowsAccepted = 0;
+        long start = System.nanoTime();
+        T built;
+        building = true;
+        try {
+            built = builder.get();
+        } finally {
+            building = false;
+            releaseLoad();
+        }
+        long end = System.nanoTime();
+
+        if (termLoader == null || useStandardRules) {
+            LoadStats.Source source = useStandardRules ? LoadStats.Source.FALLBACK : LoadStats.Source.SETTINGS;
+            rules.setStats(new LoadStats(source, System.currentTimeMillis(), 0, end - start, 0, 0,
+                    RuleRamUsage.ramBytesUsed(built)));
+        } else {
+            long rowCount = termLoader.getLastRowCount();
+            rules.setStats(new LoadStats(LoadStats.Source.QUERY, System.currentTimeMillis(),
+                    (firstRowNanos == 0 ? end : firstRowNanos) - start, end - start, rowCount,
+                    Math.max(0, rowCount - rowsAccepted), RuleRamUsage.ramBytesUsed(built)));
+        }
+        return built;
+    }
+
+    private static LoadStats restoredStats(Object rules, long start) {
+        return new LoadStats(LoadStats.Source.SNAPSHOT, System.currentTimeMillis(), 0, System.nanoTime() - start, 0, 0,
+                RuleRamUsage.ramBytesUsed(rules));
+    }
+
+    private <T> void scheduleRefresh(RuleKey key, RuleCodec<T> codec, CheckedSupplier<T, IOException> builder,
+                                     CheckedFunction<T, T, IOException> updater, RefreshableRules<T> rules) {
+        ThreadPool threadPool = service.getThreadPool();
+        if (threadPool == null) {
+            logger.warn("no thread pool available, rules will not be refreshed");
+            return;
+        }
+
+        rules.setRefreshTask(threadPool.scheduleWithFixedDelay(() -> refresh(key, codec, builder, updater, rules),
+                refreshInterval, service.loadExecutor(settings)));
+    }
+
+    /*
+     * Runs in the background: the current rules remain in use until the new ones are fully built
+     */
+    private <T> void refresh(RuleKey key, RuleCodec<T> codec, CheckedSupplier<T, IOException> builder,
+                             CheckedFunction<T, T, IOException> updater, RefreshableRules<T> rules) {
+        try {
+            if (fromMaster) {
+                if (fetchFromMaster(key, codec, rules.getVersion(), rules, service.getRuleSnapshots(env),
+                        System.nanoTime())) {
+                    logger.info("refreshed {}", key);
+                } else {
+                    logger.trace("{} did not change since hash {}", key, rules.getVersion());
+                }
+                return;
+            }
+
+            if (updater != null) {
+                T current = rules.get();
+                long start = System.nanoTime();
+                T updated = updater.apply(current);
+                if (updated != null) {
+                    if (updated != current) {
+                        long changes = termLoader.getLastRowCount();
+                        rules.swap(updated, null, null);
+                        rules.setStats(new LoadStats(LoadStats.Source.DELTA, System.currentTimeMillis(), 0,
+                                System.nanoTime() - start, changes, 0, RuleRamUsage.ramBytesUsed(updated)));
+                        logger.info("applied changes to {}", key);
+                        service.getRuleSnapshots(env).write(key, null, updated, codec);
+                    }
+                    return;
+                }
+            }
+
+            String version = termLoader.loadVersion();
+            if (version != null && version.equals(rules.getVersion())) {
+                logger.trace("{} did not change since version {}", key, version);
+                return;
+            }
+
+            LoadStats stats = rules.getStats();
+            T refreshed = build(builder, rules);
+            if (rules.getHash() != null && rules.getHash().equals(lastHash)) {
+                // the rules built from the same rows are dropped, the current ones remain charged and cached
+                logger.trace("{} did not change", key);
+                rules.swap(rules.get(), version, lastHash);
+                rules.setStats(stats);
+                return;
+            }
+            rules.swap(refreshed, version, lastHash);
+            logger.info("refreshed {}", key);
+
+            service.getRuleSnapshots(env).write(key, version, refreshed, codec);
+        } catch (Exception e) {
+            logger.warn((Supplier<?>) () -> new ParameterizedMessage("failed to refresh {}, keeping the current rules",
+                    key), e);
+        }
+    }
+
+    /**
+     * Hash of the rows of a load that does not depend on their order, which partitioned queries do not keep: the
+     * 128 bits murmur3 hashes of the rows are summed, along with their count
+     */
+    private static final class ContentHash {
+
+        private final MurmurHash3.Hash128 rowHash = new MurmurHash3.Hash128();
+        private long rows;
+        private long h1;
+        private long h2;
+
+        void add(byte[] row) {
+            MurmurHash3.hash128(row, 0, row.length, 0, rowHash);
+            rows++;
+            h1 += rowHash.h1;
+            h2 += rowHash.h2;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%016x%016x%016x", rows, h1, h2);
         }
     }
-}
\ No newline at end of file
+}
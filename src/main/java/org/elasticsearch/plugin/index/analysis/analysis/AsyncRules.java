@@ -0,0 +1,202 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.Supplier;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Rules loaded in the background ({@code async} setting), so that creating their filter does not wait for them.
+ *
+ * Until they are loaded, the {@link Placeholder} decides what token streams do, and the stats report the rules as
+ * {@link LoadStats.Source#UNLOADED}. {@link #get()} always waits for the load, for the consumers other than the token
+ * streams. A load that fails is started again in the background by the next use of the rules, at most every
+ * {@link #RETRY_DELAY}, the placeholder applying meanwhile.
+ */
+final class AsyncRules<T> extends RefreshableRules<T> {
+
+    private static final Logger logger = Loggers.getLogger(AsyncRules.class);
+
+    static final TimeValue RETRY_DELAY = TimeValue.timeValueSeconds(10);
+
+    /**
+     * What token streams do while the rules are loading
+     */
+    enum Placeholder {
+        /** wait for the rules, up to the timeout */
+        WAIT,
+        /** let the tokens through unchanged */
+        PASS,
+        /** fail the analysis */
+        FAIL;
+
+        static Placeholder parse(String value) {
+            for (Placeholder placeholder : values()) {
+                if (placeholder.name().toLowerCase(Locale.ROOT).equals(value)) {
+                    return placeholder;
+                }
+            }
+            throw new IllegalArgumentException("Unknown async_placeholder [" + value + "], expected one of " +
+                    "[wait, pass, fail]");
+        }
+    }
+
+    private final String name;
+    private final CheckedSupplier<RefreshableRules<T>, IOException> loader;
+    private final Executor executor;
+    private final Placeholder placeholder;
+    private final TimeValue timeout;
+    private final long retryDelayNanos;
+
+    private volatile CompletableFuture<RefreshableRules<T>> future;
+    // when the last load failed, or the first one started, for the stats
+    private volatile long unloadedSince;
+    private volatile long failedAtNanos;
+    // whether letting the tokens through was logged since the last load started
+    private volatile boolean passLogged;
+
+    /**
+     * Starts loading the rules
+     *
+     * @param name the name of the filter, for errors
+     */
+    AsyncRules(String name, CheckedSupplier<RefreshableRules<T>, IOException> loader, Executor executor,
+               Placeholder placeholder, TimeValue timeout) {
+        this(name, loader, executor, placeholder, timeout, RETRY_DELAY);
+    }
+
+    AsyncRules(String name, CheckedSupplier<RefreshableRules<T>, IOException> loader, Executor executor,
+               Placeholder placeholder, TimeValue timeout, TimeValue retryDelay) {
+        super(null, null, null);
+        this.name = name;
+        this.loader = loader;
+        this.executor = executor;
+        this.placeholder = placeholder;
+        this.timeout = timeout;
+        this.retryDelayNanos = retryDelay.nanos();
+        this.unloadedSince = System.currentTimeMillis();
+        this.future = load();
+    }
+
+    private CompletableFuture<RefreshableRules<T>> load() {
+        CompletableFuture<RefreshableRules<T>> load = new CompletableFuture<>();
+        passLogged = false;
+        executor.execute(() -> {
+            try {
+                load.complete(loader.get());
+            } catch (Exception e) {
+                logger.warn((Supplier<?>) () -> new ParameterizedMessage("failed to load the rules of [{}], the {} " +
+                        "placeholder applies until they are loaded", name, placeholder), e);
+                unloadedSince = System.currentTimeMillis();
+                failedAtNanos = System.nanoTime();
+                load.completeExceptionally(e);
+            }
+        });
+        return load;
+    }
+
+    /**
+     * The loaded rules, null while they are loading, or if their last load failed: it is started again
+     */
+    RefreshableRules<T> loaded() {
+        CompletableFuture<RefreshableRules<T>> current = future;
+        if (!current.isDone()) {
+            return null;
+        }
+        if (current.isCompletedExceptionally()) {
+            retry(current);
+            return null;
+        }
+        return current.join();
+    }
+
+    /**
+     * The current version of the rules for the token streams, null if they should let the tokens through
+     */
+    T current() {
+        RefreshableRules<T> rules = loaded();
+        if (rules != null) {
+            return rules.get();
+        }
+        switch (placeholder) {
+            case PASS:
+                if (!passLogged) {
+                    passLogged = true;
+                    logger.warn("the rules of [{}] are not loaded, the tokens are let through unfiltered", name);
+                }
+                return null;
+            case FAIL:
+                throw new IllegalStateException("the rules of [" + name + "] are still loading");
+            default:
+                return await(future).get();
+        }
+    }
+
+    @Override
+    public T get() {
+        return await(future).get();
+    }
+
+    @Override
+    public LoadStats getStats() {
+        CompletableFuture<RefreshableRules<T>> current = future;
+        if (!current.isDone() || current.isCompletedExceptionally()) {
+            return new LoadStats(LoadStats.Source.UNLOADED, unloadedSince, 0, 0, 0, 0, 0);
+        }
+        return current.join().getStats();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        CompletableFuture<RefreshableRules<T>> current = future;
+        return current.isDone() && !current.isCompletedExceptionally();
+    }
+
+    @Override
+    public boolean isRefreshable() {
+        // the rules of the token streams change once loaded
+        return true;
+    }
+
+    private RefreshableRules<T> await(CompletableFuture<RefreshableRules<T>> load) {
+        try {
+            return load.get(timeout.millis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the rules of [" + name + "]", e);
+        } catch (TimeoutException e) {
+            throw new ElasticsearchTimeoutException("the rules of [{}] were not loaded within [{}]", name, timeout);
+        } catch (ExecutionException e) {
+            retry(load);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof IOException) {
+                throw new UncheckedIOException("failed to load the rules of [" + name + "]", (IOException) cause);
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("failed to load the rules of [" + name + "]", cause);
+        }
+    }
+
+    private synchronized void retry(CompletableFuture<RefreshableRules<T>> failed) {
+        if (future == failed && System.nanoTime() - failedAtNanos >= retryDelayNanos) {
+            future = load();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.miscellaneous.KeywordMarkerFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.elasticsearch.plugin.rules.KeywordPatterns;
+
+/**
+ * Marks the tokens matching any of the keyword patterns as keywords. Unlike the
+ * {@link org.apache.lucene.analysis.miscellaneous.PatternKeywordMarkerFilter}, all the patterns are matched at once,
+ * in a single pass over the token.
+ */
+final class AutomatonKeywordMarkerFilter extends KeywordMarkerFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final KeywordPatterns patterns;
+    private final boolean ignoreCase;
+
+    private char[] lowerCase = new char[0];
+
+    AutomatonKeywordMarkerFilter(TokenStream in, KeywordPatterns patterns, boolean ignoreCase) {
+        super(in);
+        this.patterns = patterns;
+        this.ignoreCase = ignoreCase;
+    }
+
+    @Override
+    protected boolean isKeyword() {
+        if (!ignoreCase) {
+            return patterns.matches(termAtt.buffer(), 0, termAtt.length());
+        }
+
+        // the patterns are expected to be lower cased
+        int length = termAtt.length();
+        lowerCase = ArrayUtil.grow(lowerCase, length);
+        char[] buffer = termAtt.buffer();
+        for (int i = 0; i < length; i++) {
+            lowerCase[i] = Character.toLowerCase(buffer[i]);
+        }
+        return patterns.matches(lowerCase, 0, length);
+    }
+}
@@ -0,0 +1,68 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Rules loaded on the first use of their filter ({@code lazy} setting) rather than when the filter is created.
+ *
+ * Concurrent first uses wait for a single load. A load that fails is attempted again by the next use. Once loaded,
+ * the filters apply the loaded rules directly, this instance only stands for them until then.
+ */
+final class LazyRules<T> extends RefreshableRules<T> {
+
+    private final CheckedSupplier<RefreshableRules<T>, IOException> loader;
+
+    private volatile RefreshableRules<T> loaded;
+
+    LazyRules(CheckedSupplier<RefreshableRules<T>, IOException> loader) {
+        super(null, null, null);
+        this.loader = loader;
+    }
+
+    /**
+     * The loaded rules, loading them if needed
+     */
+    RefreshableRules<T> resolve() {
+        RefreshableRules<T> rules = loaded;
+        if (rules == null) {
+            synchronized (this) {
+                rules = loaded;
+                if (rules == null) {
+                    try {
+                        rules = loader.get();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("failed to load rules", e);
+                    }
+                    loaded = rules;
+                }
+            }
+        }
+        return rules;
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return loaded != null;
+    }
+
+    @Override
+    public T get() {
+        return resolve().get();
+    }
+
+    @Override
+    public LoadStats getStats() {
+        RefreshableRules<T> rules = loaded;
+        return rules == null ? null : rules.getStats();
+    }
+
+    @Override
+    public boolean isRefreshable() {
+        return resolve().isRefreshable();
+    }
+}
@@ -0,0 +1,44 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.FilteringTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.elasticsearch.plugin.rules.LexiconRules;
+
+import java.io.IOException;
+
+/**
+ * Applies the stop words, keywords and stemmer overrides of {@link LexiconRules} with a single lookup per token,
+ * the equivalent of a {@link org.apache.lucene.analysis.StopFilter}, a
+ * {@link org.apache.lucene.analysis.miscellaneous.SetKeywordMarkerFilter} and a
+ * {@link org.apache.lucene.analysis.miscellaneous.StemmerOverrideFilter} in that order
+ */
+final class LexiconFilter extends FilteringTokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final KeywordAttribute keywordAtt = addAttribute(KeywordAttribute.class);
+    private final LexiconRules.Matcher lexicon;
+
+    LexiconFilter(TokenStream in, LexiconRules lexicon) {
+        super(in);
+        this.lexicon = lexicon.newMatcher();
+    }
+
+    @Override
+    protected boolean accept() throws IOException {
+        int flags = lexicon.find(termAtt.buffer(), termAtt.length());
+        if ((flags & LexiconRules.STOP) != 0) {
+            return false;
+        }
+        if ((flags & LexiconRules.KEYWORD) != 0) {
+            keywordAtt.setKeyword(true);
+        } else if ((flags & LexiconRules.OVERRIDE) != 0 && !keywordAtt.isKeyword()) {
+            // like the stemmer override filter, the overridden term must not be stemmed either
+            char[] override = lexicon.override();
+            termAtt.copyBuffer(override, 0, override.length);
+            keywordAtt.setKeyword(true);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+
+import java.io.IOException;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Applies the current version of refreshable rules.
+ *
+ * Analyzers reuse their token streams, so the rules captured when the stream was created would be used forever.
+ * Instead, the filter built on the rules is replaced when the stream is reset after a refresh. The replacement
+ * consumes the same input and shares its attributes. While there are no rules yet (ex: they are still loading), the
+ * tokens go through unchanged.
+ */
+final class RefreshingTokenFilter<T> extends TokenFilter {
+
+    private final Supplier<T> rules;
+    private final BiFunction<TokenStream, T, TokenStream> filterFactory;
+
+    private T current;
+    private TokenStream filter;
+
+    /**
+     * @param rules the current version of the rules, null if there are none yet
+     */
+    RefreshingTokenFilter(TokenStream input, Supplier<T> rules, BiFunction<TokenStream, T, TokenStream> filterFactory) {
+        super(input);
+        this.rules = rules;
+        this.filterFactory = filterFactory;
+        this.current = rules.get();
+        this.filter = current == null ? input : filterFactory.apply(input, current);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        return filter.incrementToken();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        T latest = rules.get();
+        if (latest != current) {
+            current = latest;
+            filter = latest == null ? input : filterFactory.apply(input, latest);
+        }
+        filter.reset();
+    }
+
+    @Override
+    public void end() throws IOException {
+        filter.end();
+    }
+
+    @Override
+    public void close() throws IOException {
+        filter.close();
+    }
+}
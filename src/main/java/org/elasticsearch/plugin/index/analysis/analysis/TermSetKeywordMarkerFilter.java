@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.miscellaneous.KeywordMarkerFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.plugin.rules.TermSet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Marks the tokens of a compact {@link TermSet} as keywords, the equivalent of the
+ * {@link org.apache.lucene.analysis.miscellaneous.SetKeywordMarkerFilter}
+ */
+final class TermSetKeywordMarkerFilter extends KeywordMarkerFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final TermSet.Matcher keywords;
+
+    TermSetKeywordMarkerFilter(TokenStream in, TermSet keywords) {
+        super(in);
+        this.keywords = keywords.newMatcher();
+    }
+
+    @Override
+    protected boolean isKeyword() {
+        try {
+            return keywords.contains(termAtt.buffer(), 0, termAtt.length());
+        } catch (IOException e) {
+            // isKeyword cannot throw checked exceptions
+            throw new UncheckedIOException(e);
+        }
+    }
+}
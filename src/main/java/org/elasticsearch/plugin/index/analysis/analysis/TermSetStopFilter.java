@@ -0,0 +1,28 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.FilteringTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.plugin.rules.TermSet;
+
+import java.io.IOException;
+
+/**
+ * Removes the stop words of a compact {@link TermSet}, the equivalent of the
+ * {@link org.apache.lucene.analysis.StopFilter}
+ */
+final class TermSetStopFilter extends FilteringTokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final TermSet.Matcher stopWords;
+
+    TermSetStopFilter(TokenStream in, TermSet stopWords) {
+        super(in);
+        this.stopWords = stopWords.newMatcher();
+    }
+
+    @Override
+    protected boolean accept() throws IOException {
+        return !stopWords.contains(termAtt.buffer(), 0, termAtt.length());
+    }
+}
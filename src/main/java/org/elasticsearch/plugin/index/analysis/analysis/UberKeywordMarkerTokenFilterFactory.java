@@ -8,60 +8,116 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.Analysis;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.rules.KeywordPatterns;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.RuleCodecs;
+import org.elasticsearch.plugin.rules.TermSet;
 
+import java.io.IOException;
 import java.util.Collection;
-import java.util.Optional;
 
 /**
  * A factory for creating keyword marker token filters that prevent tokens from
  * being modified by stemmers.  Two types of keyword marker filters are available:
- * the {@link SetKeywordMarkerFilter} and the {@link PatternKeywordMarkerFilter}.
+ * the {@link SetKeywordMarkerFilter} and the {@link AutomatonKeywordMarkerFilter}.
  *
  * The {@link SetKeywordMarkerFilter} uses a set of keywords to denote which tokens
  * should be excluded from stemming.  This filter is created if the settings include
  * {@code keywords}, which contains the list of keywords, or {@code `keywords_path`},
- * which contains a path to a file in the config directory with the keywords.
+ * which contains a path to a file in the config directory with the keywords. With {@code term_set}
+ * set to {@code fst} or {@code mmap}, a {@link TermSetKeywordMarkerFilter} looks up a compact set instead.
  *
- * The {@link PatternKeywordMarkerFilter} uses a regular expression pattern to match
- * against tokens that should be excluded from stemming.  This filter is created if
- * the settings include {@code keywords_pattern}, which contains the regular expression
- * to match against.
+ * The {@link AutomatonKeywordMarkerFilter} uses regular expression patterns (Lucene syntax)
+ * to match against tokens that should be excluded from stemming.  This filter is created if
+ * {@code patterns} is true, in which case each row of the query is a pattern, or if the settings
+ * include {@code keywords_pattern}, which contains the regular expression to match against.
+ * Unlike the {@link PatternKeywordMarkerFilter}, all the patterns are compiled into a single automaton.
  */
 public class UberKeywordMarkerTokenFilterFactory extends AbstractUberTokenFilterFactory {
 
-    private final CharArraySet keywordLookup;
+    // thousands of patterns easily exceed the default limit of lucene
+    private static final int DEFAULT_MAX_DETERMINIZED_STATES = 100000;
+
+    private final RefreshableRules<CharArraySet> keywordLookup;
+
+    private final RefreshableRules<TermSet> compactKeywordLookup;
+
+    private final RefreshableRules<KeywordPatterns> keywordPatterns;
+
+    private final boolean ignoreCase;
 
     public UberKeywordMarkerTokenFilterFactory(IndexSettings indexSettings, Environment env, String name,
-                                               Settings settings) {
-        super(indexSettings, name, settings);
+                                               Settings settings, UberFiltersService service) throws IOException {
+        super(indexSettings, env, name, settings, service);
 
-        boolean ignoreCase = settings.getAsBoolean("ignore_case", false);
+        ignoreCase = settings.getAsBoolean("ignore_case", false);
 
-        Collection<?> rules = null;
+        if (settings.getAsBoolean("patterns", false) || settings.get("keywords_pattern") != null) {
+            int maxDeterminizedStates = settings.getAsInt("max_determinized_states", DEFAULT_MAX_DETERMINIZED_STATES);
+            keywordPatterns = loadRules("keyword_pattern", RuleCodecs.KEYWORD_PATTERNS,
+                    () -> buildKeywordPatterns(settings, maxDeterminizedStates));
+            keywordLookup = null;
+            compactKeywordLookup = null;
+        } else if (useCompactTermSet()) {
+            compactKeywordLookup = loadCompactTermSet("keyword_marker", ignoreCase, () -> getKeywords(env, settings));
+            keywordLookup = null;
+            keywordPatterns = null;
+        } else {
+            keywordLookup = loadTermSet("keyword_marker", ignoreCase,
+                    () -> buildKeywordLookup(env, settings, ignoreCase));
+            compactKeywordLookup = null;
+            keywordPatterns = null;
+        }
+    }
 
-        Optional<Collection<String>> terms = loadTerms();
-        if (terms.isPresent()) {
-            rules = terms.get();
+    private KeywordPatterns buildKeywordPatterns(Settings settings, int maxDeterminizedStates) {
+        KeywordPatterns.Builder builder = new KeywordPatterns.Builder(maxDeterminizedStates);
+        if (streamTerms(builder::add)) {
+            return builder.build();
         }
 
-        // if term loader did not return results or failed to process
-        // TODO: define strict mode
-        if (rules == null) {
-            rules = Analysis.getWordSet(env, settings, "keywords");
+        // no term loader, or it failed with strict disabled and no snapshot to restore
+        String pattern = settings.get("keywords_pattern");
+        if (pattern == null) {
+            throw new IllegalArgumentException(
+                    "uber keyword filter requires either `query` or `keywords_pattern` to be configured with patterns");
         }
+        builder.add(pattern);
+        return builder.build();
+    }
+
+    private CharArraySet buildKeywordLookup(Environment env, Settings settings, boolean ignoreCase) {
+        CharArraySet terms = new CharArraySet(16, ignoreCase);
+        if (streamTerms(terms::add)) {
+            return CharArraySet.unmodifiableSet(terms);
+        }
+
+        // no term loader, or it failed with strict disabled and no snapshot to restore
+        // a set of keywords (or a path to them) is specified
+        return CharArraySet.unmodifiableSet(new CharArraySet(getKeywords(env, settings), ignoreCase));
+    }
+
+    private Collection<?> getKeywords(Environment env, Settings settings) {
+        Collection<?> rules = Analysis.getWordSet(env, settings, "keywords");
 
         if (rules == null) {
             throw new IllegalArgumentException(
                     "uber keyword filter requires either `query` `keywords`, `keywords_path`, " +
                             "or `keywords_pattern` to be configured");
         }
-        // a set of keywords (or a path to them) is specified
-        keywordLookup = new CharArraySet(rules, ignoreCase);
-
+        return rules;
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new SetKeywordMarkerFilter(tokenStream, keywordLookup);
+        if (keywordPatterns != null) {
+            return create(tokenStream, keywordPatterns,
+                    (stream, patterns) -> new AutomatonKeywordMarkerFilter(stream, patterns, ignoreCase));
+        }
+        if (compactKeywordLookup != null) {
+            return create(tokenStream, compactKeywordLookup, TermSetKeywordMarkerFilter::new);
+        }
+        return create(tokenStream, keywordLookup, SetKeywordMarkerFilter::new);
     }
 }
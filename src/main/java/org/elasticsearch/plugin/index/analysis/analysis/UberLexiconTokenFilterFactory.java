@@ -0,0 +1,72 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.Analysis;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.rules.LexiconRules;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.RuleCodecs;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A factory for lexicon filters, which replace an {@code uber_stop}, {@code uber_keyword_marker} and
+ * {@code uber_stemmer_override} chain with a single filter. Each row of the query is a term, an action
+ * ({@code stop}, {@code keyword} or {@code override}) and the override of the term. Without a query, the
+ * standard parameters are {@code stopwords}, {@code keywords} and {@code rules} ({@code key => override}).
+ */
+public class UberLexiconTokenFilterFactory extends AbstractUberTokenFilterFactory {
+
+    private final RefreshableRules<LexiconRules> lexicon;
+
+    public UberLexiconTokenFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings,
+                                         UberFiltersService service) throws IOException {
+        super(indexSettings, env, name, settings, service);
+
+        boolean ignoreCase = settings.getAsBoolean("ignore_case", false);
+        lexicon = loadRules("lexicon", RuleCodecs.LEXICON, () -> buildLexicon(env, settings, ignoreCase));
+    }
+
+    private LexiconRules buildLexicon(Environment env, Settings settings, boolean ignoreCase) throws IOException {
+        LexiconRules.Builder builder = new LexiconRules.Builder(ignoreCase);
+        if (streamRows(3, row -> builder.add(row[0], row[1], row[2]))) {
+            return builder.build();
+        }
+
+        // no term loader, or it failed with strict disabled and no snapshot to restore
+        List<String> stopWords = Analysis.getWordList(env, settings, "stopwords");
+        List<String> keywords = Analysis.getWordList(env, settings, "keywords");
+        List<String> rules = Analysis.getWordList(env, settings, "rules");
+        if (stopWords == null && keywords == null && rules == null) {
+            throw new IllegalArgumentException("uber lexicon filter requires either `query`, `stopwords`, " +
+                    "`keywords` or `rules` (or their `_path`) to be configured");
+        }
+
+        if (stopWords != null) {
+            stopWords.forEach(builder::addStopWord);
+        }
+        if (keywords != null) {
+            keywords.forEach(builder::addKeyword);
+        }
+        if (rules != null) {
+            for (String rule : rules) {
+                List<String> mapping = Strings.splitSmart(rule, "=>", false);
+                if (mapping.size() != 2) {
+                    throw new IllegalArgumentException("Invalid lexicon override rule: " + rule);
+                }
+                builder.addOverride(mapping.get(0).trim(), mapping.get(1).trim());
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return create(tokenStream, lexicon, LexiconFilter::new);
+    }
+}
@@ -2,72 +2,78 @@ package org.elasticsearch.plugin.index.analysis.analysis;
 
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.miscellaneous.StemmerOverrideFilter;
-import org.apache.lucene.analysis.miscellaneous.StemmerOverrideFilter.StemmerOverrideMap;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.Analysis;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.RuleCodecs;
+import org.elasticsearch.plugin.rules.StemmerOverrideRules;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.Optional;
 
+/**
+ * A factory for stemmer override filters. Each row of the query is a {@code key => override} rule, or, with
+ * {@code columns} set to true, the key and its override in two separate columns.
+ */
 public class UberStemmerOverrideTokenFilterFactory extends AbstractUberTokenFilterFactory {
 
-    private final StemmerOverrideMap overrideMap;
+    private final RefreshableRules<StemmerOverrideRules> overrideRules;
 
     public UberStemmerOverrideTokenFilterFactory(IndexSettings indexSettings, Environment env, String name,
-                                                 Settings settings) throws IOException {
-        super(indexSettings, name, settings);
+                                                 Settings settings, UberFiltersService service) throws IOException {
+        super(indexSettings, env, name, settings, service);
 
-        List<String> rules = null;
+        boolean columns = settings.getAsBoolean("columns", false);
+        overrideRules = loadRules("stemmer_override", RuleCodecs.STEMMER_OVERRIDES,
+                () -> buildOverrideRules(env, settings, columns));
+    }
 
-        Optional<Collection<String>> terms = loadTerms();
-        if (terms.isPresent()) {
-            rules = new ArrayList<>(terms.get());
-        }
-
-        // if term loader did not return results or failed to process
-        // TODO: define strict mode
-        if (rules == null) {
-            rules = Analysis.getWordList(env, settings, "rules");
+    private StemmerOverrideRules buildOverrideRules(Environment env, Settings settings, boolean columns)
+            throws IOException {
+        StemmerOverrideRules.Builder builder = new StemmerOverrideRules.Builder();
+        // no need to concatenate the columns in the query, then split them again
+        boolean loaded = columns ? streamRows(2, row -> addRule(row[0], row[1], builder)) :
+                streamTerms(rule -> parseRule(rule, builder, "=>"));
+        if (loaded) {
+            return builder.build();
         }
 
+        // no term loader, or it failed with strict disabled and no snapshot to restore
+        List<String> rules = Analysis.getWordList(env, settings, "rules");
         if (rules == null) {
             throw new IllegalArgumentException("uber stemmer override filter requires either `query` " +
                     "`rules` or `rules_path` to be configured");
         }
 
-        StemmerOverrideFilter.Builder builder = new StemmerOverrideFilter.Builder(false);
-        parseRules(rules, builder, "=>");
-        overrideMap = builder.build();
+        for (String rule : rules) {
+            parseRule(rule, builder, "=>");
+        }
+        return builder.build();
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new StemmerOverrideFilter(tokenStream, overrideMap);
+        return create(tokenStream, overrideRules, (stream, rules) -> new StemmerOverrideFilter(stream, rules.getMap()));
     }
 
-    private static void parseRules(List<String> rules, StemmerOverrideFilter.Builder builder, String
-            mappingSep) {
-        for (String rule : rules) {
-            String key, override;
-            List<String> mapping = Strings.splitSmart(rule, mappingSep, false);
-            if (mapping.size() == 2) {
-                key = mapping.get(0).trim();
-                override = mapping.get(1).trim();
-            } else {
-                throw new RuntimeException("Invalid Keyword override Rule:" + rule);
-            }
+    private static void parseRule(String rule, StemmerOverrideRules.Builder builder, String mappingSep) {
+        List<String> mapping = Strings.splitSmart(rule, mappingSep, false);
+        if (mapping.size() == 2) {
+            addRule(mapping.get(0).trim(), mapping.get(1).trim(), builder);
+        } else {
+            throw new RuntimeException("Invalid Keyword override Rule:" + rule);
+        }
+    }
 
-            if (key.isEmpty() || override.isEmpty()) {
-                throw new RuntimeException("Invalid Keyword override Rule:" + rule);
-            } else {
-                builder.add(key, override);
-            }
+    private static void addRule(String key, String override, StemmerOverrideRules.Builder builder) {
+        if (key.isEmpty() || override.isEmpty()) {
+            throw new RuntimeException("Invalid Keyword override Rule:" + key + " => " + override);
+        } else {
+            builder.add(key, override);
         }
     }
 }
\ No newline at end of file
@@ -9,25 +9,40 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.Analysis;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.TermSet;
 
-import java.util.Collection;
-import java.util.Optional;
+import java.io.IOException;
 
 public class UberStopTokenFilterFactory extends AbstractUberTokenFilterFactory {
 
-    private CharArraySet stopWords;
+    private final RefreshableRules<CharArraySet> stopWords;
+
+    private final RefreshableRules<TermSet> compactStopWords;
 
     private final boolean ignoreCase;
 
     private final boolean removeTrailing;
 
-    public UberStopTokenFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings) {
-        super(indexSettings, name, settings);
+    public UberStopTokenFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings,
+                                      UberFiltersService service) throws IOException {
+        super(indexSettings, env, name, settings, service);
 
         this.ignoreCase = settings.getAsBoolean("ignore_case", false);
         this.removeTrailing = settings.getAsBoolean("remove_trailing", true);
 
-        this.stopWords = initStopWords(env, settings);
+        if (useCompactTermSet()) {
+            if (!removeTrailing) {
+                throw new IllegalArgumentException("remove_trailing cannot be disabled with a compact term_set");
+            }
+            this.compactStopWords = loadCompactTermSet("stop", ignoreCase,
+                    () -> Analysis.parseStopWords(env, settings, StopAnalyzer.ENGLISH_STOP_WORDS_SET, ignoreCase));
+            this.stopWords = null;
+        } else {
+            this.stopWords = loadTermSet("stop", ignoreCase, () -> initStopWords(env, settings));
+            this.compactStopWords = null;
+        }
 
         if (settings.get("enable_position_increments") != null) {
             throw new IllegalArgumentException("enable_position_increments is not supported anymore. Please fix your analysis chain");
@@ -36,22 +51,25 @@ public class UberStopTokenFilterFactory extends AbstractUberTokenFilterFactory {
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        if (removeTrailing) {
-            return new StopFilter(tokenStream, stopWords);
-        } else {
-            return new SuggestStopFilter(tokenStream, stopWords);
+        if (compactStopWords != null) {
+            return create(tokenStream, compactStopWords, TermSetStopFilter::new);
         }
+        return create(tokenStream, stopWords, (stream, words) -> {
+            if (removeTrailing) {
+                return new StopFilter(stream, words);
+            } else {
+                return new SuggestStopFilter(stream, words);
+            }
+        });
     }
 
     private CharArraySet initStopWords(Environment env, Settings settings) {
-        Optional<Collection<String>> terms = loadTerms();
-        if (terms.isPresent()) {
-            logger.warn("found some stopwords: {}", terms.get());
-            return new CharArraySet(terms.get(), ignoreCase);
+        CharArraySet terms = new CharArraySet(16, ignoreCase);
+        if (streamTerms(terms::add)) {
+            return CharArraySet.unmodifiableSet(terms);
         }
 
-        // if term loader did not return results or failed to process
-        // TODO: define strict mode
+        // no term loader, or it failed with strict disabled and no snapshot to restore
         return Analysis.parseStopWords(env, settings, StopAnalyzer.ENGLISH_STOP_WORDS_SET, ignoreCase);
     }
 
@@ -0,0 +1,31 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.plugin.UberFiltersService;
+
+import java.io.IOException;
+
+/**
+ * Same rules as {@link UberSynonymTokenFilterFactory}, applied with a {@link SynonymGraphFilter} which handles
+ * multi-word synonyms correctly (at query time). Identical rules are compiled once and shared by both types.
+ */
+public class UberSynonymGraphTokenFilterFactory extends UberSynonymTokenFilterFactory {
+
+    public UberSynonymGraphTokenFilterFactory(IndexSettings indexSettings, Environment env,
+                                              AnalysisRegistry analysisRegistry, String name, Settings settings,
+                                              UberFiltersService service) throws IOException {
+        super(indexSettings, env, analysisRegistry, name, settings, service);
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        // fst is null means no synonyms
+        return create(tokenStream, synonymMap, (stream, synonyms) ->
+                synonyms.fst == null ? stream : new SynonymGraphFilter(stream, synonyms, ignoreCase));
+    }
+}
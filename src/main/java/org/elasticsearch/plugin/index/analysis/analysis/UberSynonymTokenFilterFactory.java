@@ -9,6 +9,9 @@ import org.apache.lucene.analysis.synonym.SolrSynonymParser;
 import org.apache.lucene.analysis.synonym.SynonymFilter;
 import org.apache.lucene.analysis.synonym.SynonymMap;
 import org.apache.lucene.analysis.synonym.WordnetSynonymParser;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.elasticsearch.common.CheckedConsumer;
 import org.elasticsearch.common.io.FastStringReader;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
@@ -17,28 +20,43 @@ import org.elasticsearch.index.analysis.Analysis;
 import org.elasticsearch.index.analysis.AnalysisRegistry;
 import org.elasticsearch.index.analysis.TokenizerFactory;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.plugin.rules.RuleCodecs;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Collection;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 
 public class UberSynonymTokenFilterFactory extends AbstractUberTokenFilterFactory {
 
-    private final SynonymMap synonymMap;
-    private final boolean ignoreCase;
+    protected final RefreshableRules<SynonymMap> synonymMap;
+    protected final boolean ignoreCase;
 
     public UberSynonymTokenFilterFactory(IndexSettings indexSettings, Environment env, AnalysisRegistry analysisRegistry,
-                                     String name, Settings settings) throws IOException {
-        super(indexSettings, name, settings);
-
-        Reader rulesReader = getReader(env, settings);
+                                     String name, Settings settings, UberFiltersService service) throws IOException {
+        super(indexSettings, env, name, settings, service);
 
         this.ignoreCase = settings.getAsBoolean("ignore_case", false);
-        boolean expand = settings.getAsBoolean("expand", true);
+
+        if (settings.getAsBoolean("columns", false) && "wordnet".equalsIgnoreCase(settings.get("format"))) {
+            throw new IllegalArgumentException("columns cannot be used with the wordnet format");
+        }
 
         String tokenizerName = settings.get("tokenizer", "whitespace");
+        Settings tokenizerSettings = AnalysisRegistry.getSettingsFromIndexSettings(indexSettings,
+                AnalysisRegistry.INDEX_ANALYSIS_TOKENIZER + "." + tokenizerName);
+
+        this.synonymMap = loadRules("synonym", RuleCodecs.SYNONYM_MAP, () -> buildSynonymMap(indexSettings, env,
+                analysisRegistry, settings, tokenizerName, tokenizerSettings), tokenizerSettings);
+    }
+
+    private SynonymMap buildSynonymMap(IndexSettings indexSettings, Environment env, AnalysisRegistry analysisRegistry,
+                                       Settings settings, String tokenizerName, Settings tokenizerSettings)
+            throws IOException {
+        boolean expand = settings.getAsBoolean("expand", true);
 
         AnalysisModule.AnalysisProvider<TokenizerFactory> tokenizerFactoryFactory =
                 analysisRegistry.getTokenizerProvider(tokenizerName, indexSettings);
@@ -46,8 +64,7 @@ public class UberSynonymTokenFilterFactory extends AbstractUberTokenFilterFactor
             throw new IllegalArgumentException("failed to find tokenizer [" + tokenizerName + "] for synonym token filter");
         }
         final TokenizerFactory tokenizerFactory = tokenizerFactoryFactory.get(indexSettings, env, tokenizerName,
-                AnalysisRegistry.getSettingsFromIndexSettings(indexSettings,
-                        AnalysisRegistry.INDEX_ANALYSIS_TOKENIZER + "." + tokenizerName));
+                tokenizerSettings);
         Analyzer analyzer = new Analyzer() {
             @Override
             protected TokenStreamComponents createComponents(String fieldName) {
@@ -58,17 +75,19 @@ public class UberSynonymTokenFilterFactory extends AbstractUberTokenFilterFactor
         };
 
         try {
-            SynonymMap.Builder parser;
+            RuleParser parser = new RuleParser("wordnet".equalsIgnoreCase(settings.get("format")), expand, analyzer);
 
-            if ("wordnet".equalsIgnoreCase(settings.get("format"))) {
-                parser = new WordnetSynonymParser(true, expand, analyzer);
-                ((WordnetSynonymParser) parser).parse(rulesReader);
+            // each rule is parsed as soon as it is loaded, the rules are never held in memory as a whole
+            boolean loaded = settings.getAsBoolean("columns", false) ? streamRows(2, parser::acceptRow) :
+                    streamTerms(parser);
+            if (loaded) {
+                parser.flush();
             } else {
-                parser = new SolrSynonymParser(true, expand, analyzer);
-                ((SolrSynonymParser) parser).parse(rulesReader);
+                // no term loader, or it failed with strict disabled and no snapshot to restore
+                parser.parse(getDefaultReader(env, settings));
             }
 
-            synonymMap = parser.build();
+            return parser.build();
         } catch (Exception e) {
             throw new IllegalArgumentException("failed to build synonyms", e);
         }
@@ -77,19 +96,8 @@ public class UberSynonymTokenFilterFactory extends AbstractUberTokenFilterFactor
     @Override
     public TokenStream create(TokenStream tokenStream) {
         // fst is null means no synonyms
-        return synonymMap.fst == null ? tokenStream : new SynonymFilter(tokenStream, synonymMap, ignoreCase);
-    }
-
-    private Reader getReader(Environment env, Settings settings) {
-        Optional<Collection<String>> terms = loadTerms();
-
-        if (terms.isPresent()) {
-            return createReaderFromList(terms.get());
-        }
-
-        // if term loader did not return results or failed to process
-        // TODO: define strict mode
-        return getDefaultReader(env, settings);
+        return create(tokenStream, synonymMap,
+                (stream, synonyms) -> synonyms.fst == null ? stream : new SynonymFilter(stream, synonyms, ignoreCase));
     }
 
     private Reader getDefaultReader(Environment env, Settings settings) {
@@ -111,12 +119,105 @@ public class UberSynonymTokenFilterFactory extends AbstractUberTokenFilterFactor
         return rulesReader;
     }
 
-    private Reader createReaderFromList(Collection<String> rules){
-        StringBuilder sb = new StringBuilder();
-        for (String line : rules) {
-            sb.append(line).append(System.getProperty("line.separator"));
+    /**
+     * Parses the rules one at a time, as they are streamed by the term loader.
+     *
+     * Solr rules fit on a single line. The lines of a wordnet synset are grouped until the next synset starts.
+     * Rows of the {@code columns} format, (group id, term), are grouped the same way, and added to the map without
+     * going through the Solr syntax.
+     */
+    private static class RuleParser implements CheckedConsumer<String, IOException> {
+
+        private static final int SYNSET_ID_LENGTH = 9;
+
+        private final SolrSynonymParser solrParser;
+        private final WordnetSynonymParser wordnetParser;
+        private final boolean expand;
+        private final StringBuilder synset = new StringBuilder();
+        private final List<CharsRef> group = new ArrayList<>();
+        private String groupId;
+
+        RuleParser(boolean wordnet, boolean expand, Analyzer analyzer) {
+            this.solrParser = wordnet ? null : new SolrSynonymParser(true, expand, analyzer);
+            this.wordnetParser = wordnet ? new WordnetSynonymParser(true, expand, analyzer) : null;
+            this.expand = expand;
+        }
+
+        @Override
+        public void accept(String rule) throws IOException {
+            if (solrParser != null) {
+                parse(new FastStringReader(rule));
+                return;
+            }
+
+            String id = synsetId(rule);
+            if (groupId != null && !groupId.equals(id)) {
+                flush();
+            }
+            groupId = id;
+            synset.append(rule).append('\n');
+        }
+
+        /**
+         * The synset id of a wordnet prolog rule, {@code s(<synset id>,<word number>,'<word>',<type>,<sense>,<tag>).}
+         * (ex: {@code s(100001740,1,'entity',n,1,11).}), the words of a synset are on consecutive rules. Synset ids
+         * have 9 digits, the Lucene parser relies on it to group the words of the synsets it is given.
+         */
+        static String synsetId(String rule) {
+            int end = rule.indexOf(',');
+            if (!rule.startsWith("s(") || end != SYNSET_ID_LENGTH + 2) {
+                throw new IllegalArgumentException("invalid wordnet rule [" + rule + "], expected " +
+                        "s(<9 digit synset id>,<word number>,'<word>',...)");
+            }
+            return rule.substring(2, end);
+        }
+
+        /**
+         * The terms of a group are equivalent, the same as a {@code a, b, c} Solr rule. The rows of a group must be
+         * consecutive.
+         */
+        void acceptRow(String[] row) throws IOException {
+            if (groupId != null && !groupId.equals(row[0])) {
+                flush();
+            }
+            groupId = row[0];
+            if (!row[1].isEmpty()) {
+                group.add(solrParser.analyze(row[1], new CharsRefBuilder()));
+            }
+        }
+
+        void flush() throws IOException {
+            if (synset.length() > 0) {
+                parse(new FastStringReader(synset.toString()));
+                synset.setLength(0);
+            }
+            if (!group.isEmpty()) {
+                // same mappings as the Solr parser: all to all when expanding, all to the first term otherwise
+                List<CharsRef> outputs = expand ? group : group.subList(0, 1);
+                for (CharsRef input : group) {
+                    for (CharsRef output : outputs) {
+                        solrParser.add(input, output, false);
+                    }
+                }
+                group.clear();
+            }
+            groupId = null;
+        }
+
+        void parse(Reader reader) throws IOException {
+            try {
+                if (solrParser != null) {
+                    solrParser.parse(reader);
+                } else {
+                    wordnetParser.parse(reader);
+                }
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("failed to parse synonyms", e);
+            }
+        }
+
+        SynonymMap build() throws IOException {
+            return solrParser != null ? solrParser.build() : wordnetParser.build();
         }
-        logger.warn("found these values {}", sb.toString());
-        return new FastStringReader(sb.toString());
     }
-}
\ No newline at end of file
+}
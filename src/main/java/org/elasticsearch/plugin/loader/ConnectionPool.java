@@ -0,0 +1,346 @@
+package org.elasticsearch.plugin.loader;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Node level pool of database connections of a datasource, shared by every {@link DatabaseTermLoader} of the
+ * datasource (see {@link DataSources}).
+ *
+ * The pool is bounded by {@code uber_filters.jdbc.pool.max_size}. Idle connections are reused (most recently
+ * used first), validated before being handed out and closed once they exceed the idle timeout or their maximum
+ * lifetime. Each connection caches the statements prepared on it.
+ *
+ * When the url cannot be connected to, new connections are opened to the first of the {@code replicas} urls that
+ * accepts them. The url is tried again once the {@code breaker.reset_timeout} has elapsed.
+ */
+public class ConnectionPool implements Closeable {
+
+    private static final String PREFIX = "uber_filters.jdbc.pool.";
+
+    public static final Setting<Integer> MAX_SIZE =
+            Setting.intSetting(PREFIX + "max_size", 4, 1, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> IDLE_TIMEOUT =
+            Setting.timeSetting(PREFIX + "idle_timeout", TimeValue.timeValueMinutes(10), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> MAX_LIFETIME =
+            Setting.timeSetting(PREFIX + "max_lifetime", TimeValue.timeValueMinutes(30), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> VALIDATION_TIMEOUT =
+            Setting.timeSetting(PREFIX + "validation_timeout", TimeValue.timeValueSeconds(5), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> ACQUIRE_TIMEOUT =
+            Setting.timeSetting(PREFIX + "acquire_timeout", TimeValue.timeValueSeconds(30), Setting.Property.NodeScope);
+    public static final Setting<Integer> STATEMENT_CACHE_SIZE =
+            Setting.intSetting(PREFIX + "statement_cache_size", 32, 1, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> CONNECT_TIMEOUT =
+            Setting.timeSetting("uber_filters.jdbc.connect_timeout", TimeValue.timeValueSeconds(10),
+                    Setting.Property.NodeScope);
+    public static final Setting<TimeValue> QUERY_TIMEOUT =
+            Setting.timeSetting("uber_filters.jdbc.query_timeout", TimeValue.timeValueMinutes(5),
+                    Setting.Property.NodeScope);
+    public static final Setting<List<String>> REPLICAS =
+            Setting.listSetting("uber_filters.jdbc.replicas", Collections.emptyList(), Function.identity(),
+                    Setting.Property.NodeScope);
+
+    private static final Logger logger = Loggers.getLogger(ConnectionPool.class);
+
+    private final String driver;
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int fetchSize;
+
+    // the url followed by the replicas
+    private final List<String> urls;
+    private final long retryUrlNanos;
+
+    private final long idleTimeoutNanos;
+    private final long maxLifetimeNanos;
+    private final int validationTimeoutSeconds;
+    private final TimeValue acquireTimeout;
+    private final int statementCacheSize;
+    private final int connectTimeoutSeconds;
+    private final TimeValue queryTimeout;
+
+    private final DataSourceBreaker breaker;
+
+    private final int maxSize;
+    private final Semaphore permits;
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    private boolean driverLoaded = false;
+    private boolean closed = false;
+
+    // the url new connections are opened to first, and since when, if it is a replica
+    private volatile int currentUrl = 0;
+    private volatile long failoverNanos;
+
+    public ConnectionPool(Settings settings) {
+        Settings jdbcSettings = settings.getByPrefix("uber_filters.jdbc.");
+        this.driver = jdbcSettings.get("driver", "");
+        this.url = jdbcSettings.get("url", "");
+        this.user = jdbcSettings.get("user", "");
+        this.password = jdbcSettings.get("password", "");
+        this.fetchSize = jdbcSettings.getAsInt("fetchsize", 100);
+
+        List<String> urls = new ArrayList<>();
+        urls.add(url);
+        urls.addAll(REPLICAS.get(settings));
+        this.urls = Collections.unmodifiableList(urls);
+        this.retryUrlNanos = DataSourceBreaker.RESET_TIMEOUT.get(settings).nanos();
+
+        this.idleTimeoutNanos = IDLE_TIMEOUT.get(settings).nanos();
+        this.maxLifetimeNanos = MAX_LIFETIME.get(settings).nanos();
+        this.validationTimeoutSeconds = (int) Math.max(1, VALIDATION_TIMEOUT.get(settings).seconds());
+        this.acquireTimeout = ACQUIRE_TIMEOUT.get(settings);
+        this.statementCacheSize = STATEMENT_CACHE_SIZE.get(settings);
+        this.connectTimeoutSeconds = (int) Math.max(1, CONNECT_TIMEOUT.get(settings).seconds());
+        this.queryTimeout = QUERY_TIMEOUT.get(settings);
+        this.breaker = new DataSourceBreaker(url, settings);
+        this.maxSize = MAX_SIZE.get(settings);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public String getDriver() {
+        return driver;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * The url of the database, not the one of a replica the pool failed over to
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * The default timeout of the queries, filters may override it
+     */
+    public TimeValue getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * The maximum number of connections lent at once
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * The number of connections that can be borrowed right now without waiting
+     */
+    public int getAvailableConnections() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * The circuit breaker of the database, shared by all the queries to it
+     */
+    public DataSourceBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Borrows a connection, waiting up to {@code acquire_timeout} when all connections are in use.
+     * Every borrowed connection must be returned with {@link #release(PooledConnection, boolean)}
+     *
+     * @throws AcquireTimeoutException if no connection was lent within the timeout, the database was not queried
+     * @throws IllegalStateException if the pool is closed
+     */
+    PooledConnection borrow() throws SQLException {
+        ensureOpen();
+        try {
+            if (!permits.tryAcquire(acquireTimeout.millis(), TimeUnit.MILLISECONDS)) {
+                throw new AcquireTimeoutException("no database connection available after " + acquireTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            // closed while waiting for a connection
+            ensureOpen();
+            PooledConnection connection;
+            while ((connection = pollIdle()) != null) {
+                if (!isExpired(connection, System.nanoTime()) &&
+                        connection.getConnection().isValid(validationTimeoutSeconds)) {
+                    return connection;
+                }
+                logger.debug("discard stale connection to {}", url);
+                connection.close();
+            }
+
+            return new PooledConnection(connect(), statementCacheSize);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool, or closes it if it might be in an unusable state
+     */
+    void release(PooledConnection connection, boolean broken) {
+        try {
+            boolean keep = false;
+            if (!broken) {
+                connection.touch();
+                synchronized (idle) {
+                    if (!closed) {
+                        idle.push(connection);
+                        keep = true;
+                    }
+                }
+            }
+            if (!keep) {
+                connection.close();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections that exceeded the idle timeout or their maximum lifetime
+     */
+    public void evictIdle() {
+        Deque<PooledConnection> evicted = new ArrayDeque<>();
+        long now = System.nanoTime();
+
+        synchronized (idle) {
+            Iterator<PooledConnection> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledConnection connection = iterator.next();
+                if (isExpired(connection, now)) {
+                    iterator.remove();
+                    evicted.add(connection);
+                }
+            }
+        }
+
+        if (!evicted.isEmpty()) {
+            logger.debug("evict {} idle connections to {}", evicted.size(), url);
+            evicted.forEach(PooledConnection::close);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+            idle.forEach(PooledConnection::close);
+            idle.clear();
+        }
+    }
+
+    private void ensureOpen() {
+        synchronized (idle) {
+            if (closed) {
+                throw new IllegalStateException("connection pool to " + url + " is closed");
+            }
+        }
+    }
+
+    private PooledConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    private boolean isExpired(PooledConnection connection, long now) {
+        return now - connection.getLastUsedNanos() > idleTimeoutNanos ||
+                now - connection.getCreatedNanos() > maxLifetimeNanos;
+    }
+
+    /*
+     * Tries the current url, then the others in order
+     */
+    private Connection connect() throws SQLException {
+        loadDriver();
+
+        int first = currentUrl;
+        if (first != 0 && System.nanoTime() - failoverNanos >= retryUrlNanos) {
+            first = 0;
+        }
+
+        SQLException failure = null;
+        for (int i = 0; i < urls.size(); i++) {
+            int index = (first + i) % urls.size();
+            try {
+                Connection connection = connect(urls.get(index));
+                if (index != currentUrl) {
+                    logger.warn("new connections go to {} instead of {}", urls.get(index), urls.get(currentUrl));
+                }
+                if (index != 0 && index != first) {
+                    failoverNanos = System.nanoTime();
+                }
+                currentUrl = index;
+                return connection;
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    private Connection connect(String url) throws SQLException {
+        logger.debug("open connection to {}", url);
+        if (user.isEmpty()) {
+            return DriverManager.getConnection(url);
+        }
+        return DriverManager.getConnection(url, user, password);
+    }
+
+    private synchronized void loadDriver() throws SQLException {
+        if (!driverLoaded) {
+            logger.debug("Load driver {}", driver);
+            try {
+                Class.forName(driver);
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("could not load driver " + driver, e);
+            }
+            // the only timeout of the connection attempt honored by all drivers, it is global to the JVM
+            DriverManager.setLoginTimeout(connectTimeoutSeconds);
+            driverLoaded = true;
+        }
+    }
+
+    /**
+     * All the connections of the pool stayed in use, which says nothing about the health of the database
+     */
+    static class AcquireTimeoutException extends SQLTimeoutException {
+
+        AcquireTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
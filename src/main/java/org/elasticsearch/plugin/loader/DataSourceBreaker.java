@@ -0,0 +1,103 @@
+package org.elasticsearch.plugin.loader;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops querying a data source that keeps failing, so that filters fail fast (and fall back to their last snapshot)
+ * instead of each waiting for its own timeout.
+ *
+ * The breaker opens after {@code failure_threshold} consecutive failures. Once {@code reset_timeout} has elapsed, a
+ * single query is let through: the breaker closes if it succeeds, or opens again if it fails.
+ */
+public class DataSourceBreaker {
+
+    private static final String PREFIX = "uber_filters.jdbc.breaker.";
+
+    public static final Setting<Integer> FAILURE_THRESHOLD =
+            Setting.intSetting(PREFIX + "failure_threshold", 3, 1, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> RESET_TIMEOUT =
+            Setting.timeSetting(PREFIX + "reset_timeout", TimeValue.timeValueMinutes(1), Setting.Property.NodeScope);
+
+    private static final Logger logger = Loggers.getLogger(DataSourceBreaker.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String source;
+    private final int failureThreshold;
+    private final TimeValue resetTimeout;
+    private final LongSupplier nanoTime;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedNanos;
+
+    public DataSourceBreaker(String source, Settings settings) {
+        this(source, FAILURE_THRESHOLD.get(settings), RESET_TIMEOUT.get(settings), System::nanoTime);
+    }
+
+    DataSourceBreaker(String source, int failureThreshold, TimeValue resetTimeout, LongSupplier nanoTime) {
+        this.source = source;
+        this.failureThreshold = failureThreshold;
+        this.resetTimeout = resetTimeout;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Called before querying the data source
+     *
+     * @throws SQLTransientConnectionException if the breaker is open
+     */
+    public synchronized void ensureClosed() throws SQLException {
+        if (state == State.CLOSED) {
+            return;
+        }
+        if (state == State.OPEN && nanoTime.getAsLong() - openedNanos >= resetTimeout.nanos()) {
+            logger.info("trying {} again after {} failures", source, failures);
+            state = State.HALF_OPEN;
+            return;
+        }
+        throw new SQLTransientConnectionException("circuit breaker open for " + source + " after " + failures +
+                " failures, not querying it for " + resetTimeout);
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("{} is back, closing the circuit breaker", source);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Called when the data source was not queried after all (ex: no connection was available), the next query is
+     * let through instead if this one was the single query of a half open breaker
+     */
+    public synchronized void onSkipped() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized void onFailure(Exception e) {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            logger.warn("opening the circuit breaker of {} after {} failures: {}", source, failures, e.getMessage());
+            state = State.OPEN;
+            openedNanos = nanoTime.getAsLong();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
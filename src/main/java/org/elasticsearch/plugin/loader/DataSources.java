@@ -0,0 +1,109 @@
+package org.elasticsearch.plugin.loader;
+
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The databases the filters load their rules from: the default one ({@code uber_filters.jdbc.*}), and the named
+ * ones ({@code uber_filters.datasources.<name>.*}) filters refer to with their {@code datasource} setting.
+ *
+ * A named datasource accepts the same settings as the default one (ex: {@code uber_filters.datasources.pg.url},
+ * {@code uber_filters.datasources.pg.pool.max_size}). The settings it does not define are the ones of the default
+ * datasource, except its driver, url, replicas and credentials. Each datasource has its own connection pool and
+ * circuit breaker, and its filters are loaded by their own thread pool, so that a slow database does not delay
+ * the filters of the others.
+ */
+public class DataSources implements Closeable {
+
+    public static final String PREFIX = "uber_filters.datasources.";
+
+    public static final Setting<Settings> DATASOURCES = Setting.groupSetting(PREFIX, Setting.Property.NodeScope);
+
+    private static final String JDBC_PREFIX = "uber_filters.jdbc.";
+
+    // the settings a named datasource never inherits from the default one
+    private static final String[] CONNECTION_SETTINGS = {"driver", "url", "replicas", "user", "password"};
+
+    private final ConnectionPool defaultPool;
+    private final Map<String, ConnectionPool> pools;
+
+    public DataSources(Settings settings) {
+        this.defaultPool = new ConnectionPool(settings);
+
+        Map<String, ConnectionPool> named = new TreeMap<>();
+        for (Map.Entry<String, Settings> dataSource : DATASOURCES.get(settings).getAsGroups().entrySet()) {
+            String name = dataSource.getKey();
+            if (dataSource.getValue().get("url") == null || dataSource.getValue().get("driver") == null) {
+                throw new IllegalArgumentException("datasource [" + name + "] requires both " + PREFIX + name +
+                        ".driver and " + PREFIX + name + ".url");
+            }
+            named.put(name, new ConnectionPool(poolSettings(settings, dataSource.getValue())));
+        }
+        this.pools = Collections.unmodifiableMap(named);
+    }
+
+    /**
+     * The names of the datasources defined in the node settings
+     */
+    public static Set<String> names(Settings settings) {
+        return DATASOURCES.get(settings).getAsGroups().keySet();
+    }
+
+    /**
+     * The settings of the pool of a named datasource, as if they were the ones of the default datasource
+     */
+    public static Settings poolSettings(Settings settings, Settings dataSourceSettings) {
+        Settings.Builder builder = Settings.builder().put(settings);
+        for (String key : CONNECTION_SETTINGS) {
+            builder.remove(JDBC_PREFIX + key);
+        }
+        for (Map.Entry<String, String> setting : dataSourceSettings.getAsMap().entrySet()) {
+            builder.put(JDBC_PREFIX + setting.getKey(), setting.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * The pool of a datasource
+     *
+     * @param name the name of the datasource, null for the default one
+     */
+    public ConnectionPool get(String name) {
+        if (name == null) {
+            return defaultPool;
+        }
+        ConnectionPool pool = pools.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown datasource [" + name + "], expected one of " +
+                    pools.keySet());
+        }
+        return pool;
+    }
+
+    /**
+     * Whether a datasource of that name is defined, null being the default one
+     */
+    public boolean exists(String name) {
+        return name == null || pools.containsKey(name);
+    }
+
+    /**
+     * Closes the idle connections of every datasource that exceeded their idle timeout or maximum lifetime
+     */
+    public void evictIdle() {
+        defaultPool.evictIdle();
+        pools.values().forEach(ConnectionPool::evictIdle);
+    }
+
+    @Override
+    public void close() {
+        defaultPool.close();
+        pools.values().forEach(ConnectionPool::close);
+    }
+}
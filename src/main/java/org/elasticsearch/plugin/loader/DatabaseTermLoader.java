@@ -2,153 +2,492 @@ package org.elasticsearch.plugin.loader;
 
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.CheckedConsumer;
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.util.set.Sets;
-import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.common.unit.TimeValue;
 
+import java.io.IOException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DatabaseTermLoader implements TermLoader {
 
-    private static final String[] REQUIRED_SETTINGS_ARRAY = {"jdbc.driver", "jdbc.url"};
-    private static final HashSet<String> REQUIRED_SETTINGS = Sets.newHashSet(REQUIRED_SETTINGS_ARRAY);
-    private static boolean LOADED = false;
-    private static final Logger CLASS_LOGGER = Loggers.getLogger(DatabaseTermLoader.class);
-
     private final Logger logger;
 
-    // General plugin settings
+    // settings of the datasource
     private final String driver;
     private final String url;
 
-    // TODO: use user/password when required/defined
     private final String user;
-    private final String password;
     private final int fetchsize;
 
+    private final ConnectionPool connectionPool;
+
     // filter level settings
     private final String query;
     private final String[] params;
+    private final String versionQuery;
+    private final String deltaQuery;
+    private final int queryTimeoutSeconds;
 
-    public DatabaseTermLoader(IndexSettings indexSettings, Settings settings, String prefix) {
-        logger = Loggers.getLogger(getClass(), settings);
+    // the query is split in partitions of the rows, by the modulo of the partition column
+    private final String partitionColumn;
+    private final int partitions;
+    // runs the partitions in parallel to the loading thread
+    private final Executor executor;
 
-        if (!prefix.endsWith(".")) {
-            prefix = prefix + ".";
-        }
+    // highest watermark loaded so far, null until a full load completed
+    private volatile Object watermark;
+
+    private volatile long lastRowCount;
+
+    /**
+     * @param connectionPool the pool of the datasource of the filter
+     * @param executor runs the partitions of the query in parallel
+     */
+    public DatabaseTermLoader(Settings settings, ConnectionPool connectionPool, Executor executor) {
+        logger = Loggers.getLogger(getClass(), settings);
+        this.connectionPool = connectionPool;
 
-        Settings pluginSettings = indexSettings.getSettings().getByPrefix(prefix);
-        if (!pluginSettings.isEmpty() && pluginSettings.keySet().containsAll(REQUIRED_SETTINGS)) {
-            driver = pluginSettings.get("jdbc.driver");
-            url = pluginSettings.get("jdbc.url");
-            user = pluginSettings.get("jdbc.user");
-            password = pluginSettings.get("jdbc.password");
-            fetchsize = pluginSettings.getAsInt("jdbc.fetchsize", 100);
+        if (!connectionPool.getDriver().isEmpty() && !connectionPool.getUrl().isEmpty()) {
+            driver = connectionPool.getDriver();
+            url = connectionPool.getUrl();
+            user = connectionPool.getUser();
+            fetchsize = connectionPool.getFetchSize();
 
             // filter level settings
             query = settings.get("query", null);
             params = settings.getAsArray("params");
+            versionQuery = settings.get("version_query", null);
+            deltaQuery = settings.get("delta_query", null);
+            TimeValue queryTimeout = settings.getAsTime("query_timeout", connectionPool.getQueryTimeout());
+            // a zero timeout means no timeout for JDBC, round up to the second instead
+            queryTimeoutSeconds = queryTimeout.millis() <= 0 ? 0 : (int) Math.max(1, queryTimeout.seconds());
+            partitionColumn = settings.get("partition_column", null);
+            partitions = settings.getAsInt("partitions", 1);
+            if (partitions < 1) {
+                throw new IllegalArgumentException("partitions must be at least 1, got [" + partitions + "]");
+            }
+            if (partitions > 1 && partitionColumn == null) {
+                throw new IllegalArgumentException("partitions require a partition_column");
+            }
+            this.executor = executor;
 
-            logger.info("load with driver:{} url:{} user:{} password:{}  query:{}", driver, url, user,
-                    password, query);
+            logger.info("load with driver:{} url:{} user:{} query:{}", driver, url, user, query);
         } else {
-            Set<String> expected = new HashSet<>(REQUIRED_SETTINGS);
-            expected.removeAll(pluginSettings.keySet());
-            String error = "Required " + prefix + " settings are not defined: " + expected;
+            List<String> expected = new ArrayList<>();
+            if (connectionPool.getDriver().isEmpty()) {
+                expected.add("jdbc.driver");
+            }
+            if (connectionPool.getUrl().isEmpty()) {
+                expected.add("jdbc.url");
+            }
+            String error = "Required uber_filters. settings are not defined: " + expected;
             throw new IllegalArgumentException(error);
         }
     }
 
-    public Collection<String> loadTerms() {
-        List<String> termList = new ArrayList<>();
+    /**
+     * When a {@code delta_query} is defined, the query must also return the watermark of each term (ex: its last
+     * update time) as second column
+     */
+    @Override
+    public void streamTerms(CheckedConsumer<String, IOException> consumer) {
+        // the partitions of the query push their terms concurrently, a group at a time
+        Object lock = new Object();
+        Object[] maxWatermark = new Object[1];
+        LongAdder rows = new LongAdder();
+        int count = executeQuery(resultSet -> {
+            GroupForwarder<String> forwarder = new GroupForwarder<>(lock, consumer);
+            Object partitionWatermark = null;
+            int terms = 0;
+            while (resultSet.next()) {
+                rows.increment();
+                if (deltaQuery != null) {
+                    partitionWatermark = max(partitionWatermark, resultSet.getObject(2));
+                }
+                String term = resultSet.getString(1).trim();
+                logger.trace("next term: {}", term);
+                if ((term.length() == 0) || term.charAt(0) == '#') {
+                    continue;
+                }
+                forwarder.accept(resultSet, term);
+                terms++;
+            }
+            forwarder.flush();
+            synchronized (lock) {
+                maxWatermark[0] = max(maxWatermark[0], partitionWatermark);
+            }
+            return terms;
+        });
+
+        watermark = maxWatermark[0];
+        lastRowCount = rows.sum();
+        logger.debug("loaded {} terms", count);
+    }
+
+    @Override
+    public void streamRows(int columns, CheckedConsumer<String[], IOException> consumer) {
+        // the partitions of the query push their rows concurrently, a group at a time, each in its own array
+        Object lock = new Object();
+        int count = executeQuery(resultSet -> {
+            int columnCount = resultSet.getMetaData().getColumnCount();
+            if (columnCount < columns) {
+                throw new IllegalArgumentException("query must return " + columns + " columns, got " + columnCount);
+            }
+
+            GroupForwarder<String[]> forwarder = new GroupForwarder<>(lock, consumer);
+            String[] row = new String[columns];
+            int rows = 0;
+            while (resultSet.next()) {
+                for (int i = 0; i < columns; i++) {
+                    String value = resultSet.getString(i + 1);
+                    row[i] = value == null ? "" : value.trim();
+                }
+                // buffered rows keep their own copy
+                forwarder.accept(resultSet, partitions == 1 ? row : row.clone());
+                rows++;
+            }
+            forwarder.flush();
+            return rows;
+        });
+
+        lastRowCount = count;
+        logger.debug("loaded {} rows", count);
+    }
+
+    /**
+     * Runs the {@code delta_query} with the highest watermark loaded so far as its last parameter. Each row returns
+     * a term, its watermark and optionally whether the term was deleted (third column).
+     */
+    @Override
+    public boolean streamChanges(TermChangeConsumer consumer) {
+        Object from = watermark;
+        if (deltaQuery == null || from == null) {
+            return false;
+        }
+
+        Object[] maxWatermark = {from};
+        long[] rows = new long[1];
+        int count = execute(deltaQuery, false, resultSet -> {
+            boolean hasDeletedColumn = resultSet.getMetaData().getColumnCount() > 2;
+            int changes = 0;
+            while (resultSet.next()) {
+                rows[0]++;
+                maxWatermark[0] = max(maxWatermark[0], resultSet.getObject(2));
+                String term = resultSet.getString(1).trim();
+                boolean deleted = hasDeletedColumn && resultSet.getBoolean(3);
+                logger.trace("next change: {} deleted: {}", term, deleted);
+                if ((term.length() == 0) || term.charAt(0) == '#') {
+                    continue;
+                }
+                consumer.accept(term, deleted);
+                changes++;
+            }
+            return changes;
+        }, from);
+
+        watermark = maxWatermark[0];
+        lastRowCount = rows[0];
+        logger.debug("loaded {} changes since {}", count, from);
+        return true;
+    }
+
+    /**
+     * The query must return a single row, the blob being its first column
+     */
+    @Override
+    public byte[] loadBlob() {
+        byte[] blob = execute(query, false, resultSet -> {
+            if (!resultSet.next()) {
+                throw new IllegalArgumentException("query returned no compiled rules");
+            }
+            byte[] value = resultSet.getBytes(1);
+            if (resultSet.next()) {
+                throw new IllegalArgumentException("query must return a single row of compiled rules");
+            }
+            return value;
+        });
+        if (blob == null) {
+            throw new IllegalArgumentException("query returned null compiled rules");
+        }
+
+        lastRowCount = 1;
+        logger.debug("loaded {} bytes of compiled rules", blob.length);
+        return blob;
+    }
+
+    @Override
+    public String loadVersion() {
+        if (versionQuery == null) {
+            return null;
+        }
+
+        // the version query may or may not use the same params as the query
+        String version = execute(versionQuery, true, resultSet -> resultSet.next() ? resultSet.getString(1) : null);
+        logger.debug("version: {}", version);
+        return version == null ? "" : version;
+    }
+
+    @Override
+    public long getLastRowCount() {
+        return lastRowCount;
+    }
+
+    @Override
+    public String getSource() {
+        return url;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object max(Object current, Object value) {
+        if (current == null || (value != null && ((Comparable<Object>) value).compareTo(current) > 0)) {
+            return value;
+        }
+        return current;
+    }
+
+    /*
+     * Runs the query, or its partitions in parallel when a partition_column is set. Each partition is the query
+     * restricted to the rows whose partition column modulo the number of partitions is the partition number, rows
+     * without a value belong to the first one. A partition runs on its own connection, so there are at most as
+     * many concurrent partitions as the pool has free connections, the loading thread running one of them: the
+     * connections used by other loads are not waited for. The handler
+     * is called concurrently, once per partition, and the sum of what it returns is returned.
+     */
+    private int executeQuery(ResultSetHandler<Integer> handler) {
+        if (partitions == 1) {
+            return execute(query, false, handler);
+        }
+
+        String partitionQuery = "select * from (" + query + ") uber_partition where coalesce(mod(abs(" +
+                partitionColumn + "), " + partitions + "), 0) = ?";
+        AtomicInteger nextPartition = new AtomicInteger();
+        AtomicInteger count = new AtomicInteger();
+        Runnable worker = () -> {
+            try {
+                for (int partition = nextPartition.getAndIncrement(); partition < partitions;
+                     partition = nextPartition.getAndIncrement()) {
+                    count.addAndGet(execute(partitionQuery, false, handler, partition));
+                }
+            } catch (RuntimeException e) {
+                // the other workers stop after their current partition
+                nextPartition.set(partitions);
+                throw e;
+            }
+        };
+
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = Math.min(partitions, connectionPool.getAvailableConnections()); i > 1; i--) {
+            workers.add(CompletableFuture.runAsync(worker, executor));
+        }
+        RuntimeException failure = null;
+        try {
+            worker.run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (CompletableFuture<Void> other : workers) {
+            try {
+                other.join();
+            } catch (CompletionException e) {
+                RuntimeException cause = e.getCause() instanceof RuntimeException ?
+                        (RuntimeException) e.getCause() : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        logger.debug("query run in {} partitions", partitions);
+        return count.get();
+    }
 
+    /*
+     * Runs the query on a pooled connection, binding the filter params (only the ones declared by the query
+     * if they are optional), followed by the extra params. Database errors (query timeouts included) trip the circuit
+     * breaker of the database, waiting too long for a pooled connection does not.
+     */
+    private <R> R execute(String sql, boolean optionalParams, ResultSetHandler<R> handler, Object... extraParams) {
         SecurityManager sm = System.getSecurityManager();
 
         if (sm != null) {
             // unprivileged code such as scripts do not have SpecialPermission
             sm.checkPermission(new SpecialPermission());
         }
-        AccessController.doPrivileged((PrivilegedAction<Void>)() -> {
+        DataSourceBreaker breaker = connectionPool.getBreaker();
+        return AccessController.doPrivileged((PrivilegedAction<R>)() -> {
             try {
-                loadDriver(driver);
-
-                Connection connection = null;
-                PreparedStatement statement = null;
-                ResultSet resultSet = null;
+                breaker.ensureClosed();
+                PooledConnection connection;
+                try {
+                    connection = connectionPool.borrow();
+                } catch (ConnectionPool.AcquireTimeoutException e) {
+                    // the connections are in use by other loads, not a failure of the database
+                    breaker.onSkipped();
+                    throw e;
+                } catch (SQLException e) {
+                    breaker.onFailure(e);
+                    throw e;
+                }
+                boolean broken = false;
+                boolean transaction = false;
 
                 try {
-                    connection = DriverManager.getConnection(url);
-                    statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    PreparedStatement statement = connection.prepareStatement(sql);
 
-                    for (int i = 0; i < params.length; i++) {
+                    int parameterCount = !optionalParams ? params.length :
+                            Math.min(params.length, statement.getParameterMetaData().getParameterCount());
+                    for (int i = 0; i < parameterCount; i++) {
                         statement.setString(i + 1, params[i]);
                     }
+                    for (int i = 0; i < extraParams.length; i++) {
+                        statement.setObject(parameterCount + i + 1, extraParams[i]);
+                    }
 
-                    logger.debug("query: {} ", query);
-
-                    statement.setFetchSize(fetchsize);
-                    statement.setQueryTimeout(60 * 20);
-                    statement.executeQuery();
-                    resultSet = statement.getResultSet();
-
-                    if (resultSet != null) {
-                        while (resultSet.next()) {
-                            String term = resultSet.getString(1).trim();
-                            logger.debug("next term: {}", term);
-                            if ((term.length() == 0) || term.charAt(0) == '#') {
-                                continue;
-                            }
-                            termList.add(term);
-                        }
+                    logger.debug("query: {} ", sql);
 
-                    }
-                } finally {
-                    if (resultSet != null) {
+                    transaction = useCursor(connection, statement);
+                    statement.setQueryTimeout(queryTimeoutSeconds);
+
+                    try (ResultSet resultSet = statement.executeQuery()) {
                         try {
-                            resultSet.close();
-                        } catch (SQLException e) { /* ignored */}
+                            return handler.handle(resultSet);
+                        } catch (RuntimeException | IOException e) {
+                            // closing a streamed result set reads the rows left (ex: mysql), unless the query is
+                            // cancelled first
+                            cancel(statement);
+                            throw e;
+                        }
                     }
-                    if (statement != null) {
-                        try {
-                            statement.close();
-                        } catch (SQLException e) { /* ignored */}
+                } catch (SQLException e) {
+                    // the connection might be in an unknown state, do not return it to the pool
+                    broken = true;
+                    breaker.onFailure(e);
+                    throw e;
+                } finally {
+                    // other errors (ex: of the consumer) are not the database's fault
+                    if (!broken) {
+                        breaker.onSuccess();
                     }
-                    if (connection != null) {
-                        try {
-                            connection.close();
-                        } catch (SQLException e) { /* ignored */}
+                    if (transaction && !broken) {
+                        broken = !endTransaction(connection);
                     }
+                    connectionPool.release(connection, broken);
                 }
+            } catch (RuntimeException e) {
+                throw e;
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
-            return null;
         });
+    }
 
+    /*
+     * Makes the driver fetch the rows in batches of fetchsize, instead of buffering the whole result set
+     * in memory, which most drivers only do under specific conditions. Returns true if a transaction was
+     * started for this purpose.
+     */
+    private boolean useCursor(PooledConnection connection, PreparedStatement statement) throws SQLException {
+        String product = connection.getDatabaseProductName();
 
-        logger.debug("loaded {} terms", termList.size());
-        return termList;
+        if (product.startsWith("postgresql")) {
+            // cursor based result sets are only used outside of auto commit mode
+            statement.setFetchSize(fetchsize);
+            if (connection.getConnection().getAutoCommit()) {
+                connection.getConnection().setAutoCommit(false);
+                return true;
+            }
+        } else if ((product.startsWith("mysql") || product.startsWith("mariadb")) && !url.contains("useCursorFetch=true")) {
+            // row by row streaming, the fetch size is only used with server side cursors (useCursorFetch)
+            statement.setFetchSize(Integer.MIN_VALUE);
+        } else {
+            statement.setFetchSize(fetchsize);
+        }
+        return false;
     }
 
-    private static synchronized void loadDriver(String driver) throws ClassNotFoundException {
-        if (!LOADED) {
-            CLASS_LOGGER.debug("Load driver {}", driver);
-            Class.forName(driver);
-            LOADED = true;
-        } else {
-            CLASS_LOGGER.debug("Driver {} already loaded", driver);
+    private void cancel(PreparedStatement statement) {
+        try {
+            statement.cancel();
+        } catch (SQLException e) {
+            logger.debug("failed to cancel the query", e);
+        }
+    }
+
+    private static boolean endTransaction(PooledConnection connection) {
+        try {
+            // nothing was modified
+            connection.getConnection().rollback();
+            connection.getConnection().setAutoCommit(true);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Forwards the rows of a partition to the consumer shared by the partitions. The consecutive rows with the same
+     * partition column value are forwarded together, so that the rows of a group (ex: a synonym group of the
+     * columns format, a wordnet synset) are not interleaved with the rows of other partitions.
+     */
+    private class GroupForwarder<T> {
+
+        private final Object lock;
+        private final CheckedConsumer<T, IOException> consumer;
+        private final List<T> group = new ArrayList<>();
+        private Object groupValue;
+
+        GroupForwarder(Object lock, CheckedConsumer<T, IOException> consumer) {
+            this.lock = lock;
+            this.consumer = consumer;
         }
+
+        void accept(ResultSet resultSet, T row) throws SQLException, IOException {
+            if (partitions == 1) {
+                // a single query, nothing to interleave with
+                consumer.accept(row);
+                return;
+            }
+            Object value = resultSet.getObject(partitionColumn);
+            if (!group.isEmpty() && !Objects.equals(value, groupValue)) {
+                flush();
+            }
+            groupValue = value;
+            group.add(row);
+        }
+
+        void flush() throws IOException {
+            if (group.isEmpty()) {
+                return;
+            }
+            synchronized (lock) {
+                for (T row : group) {
+                    consumer.accept(row);
+                }
+            }
+            group.clear();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ResultSetHandler<R> {
+        R handle(ResultSet resultSet) throws SQLException, IOException;
     }
 }
@@ -0,0 +1,266 @@
+package org.elasticsearch.plugin.loader;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.SecureSetting;
+import org.elasticsearch.common.settings.SecureString;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.AccessController;
+import java.security.GeneralSecurityException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Node level client of an S3 compatible object store (AWS S3, MinIO, Ceph...), shared by every
+ * {@link ObjectStoreTermLoader}.
+ *
+ * Objects are read with plain HTTP requests, path style ({@code <endpoint>/<bucket>/<key>}), signed with AWS
+ * signature version 4 when credentials are defined in the keystore. Otherwise the requests are anonymous.
+ */
+public class ObjectStoreClient {
+
+    private static final String PREFIX = "uber_filters.s3.";
+
+    public static final Setting<String> ENDPOINT =
+            new Setting<>(PREFIX + "endpoint", "https://s3.amazonaws.com", Function.identity(),
+                    Setting.Property.NodeScope);
+    public static final Setting<String> REGION =
+            new Setting<>(PREFIX + "region", "us-east-1", Function.identity(), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> CONNECT_TIMEOUT =
+            Setting.timeSetting(PREFIX + "connect_timeout", TimeValue.timeValueSeconds(10), Setting.Property.NodeScope);
+    public static final Setting<TimeValue> READ_TIMEOUT =
+            Setting.timeSetting(PREFIX + "read_timeout", TimeValue.timeValueSeconds(60), Setting.Property.NodeScope);
+    public static final Setting<SecureString> ACCESS_KEY = SecureSetting.secureString(PREFIX + "access_key", null);
+    public static final Setting<SecureString> SECRET_KEY = SecureSetting.secureString(PREFIX + "secret_key", null);
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String EMPTY_PAYLOAD_HASH = MessageDigests.toHexString(MessageDigests.sha256().digest());
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'", Locale.ROOT);
+
+    private static final Logger logger = Loggers.getLogger(ObjectStoreClient.class);
+
+    private final String endpoint;
+    private final String region;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    // null for anonymous requests
+    private final String accessKey;
+    private final String secretKey;
+
+    /**
+     * The credentials are read from the keystore, which is only available while the node starts
+     */
+    public ObjectStoreClient(Settings settings) {
+        this.endpoint = ENDPOINT.get(settings);
+        this.region = REGION.get(settings);
+        this.connectTimeoutMillis = (int) CONNECT_TIMEOUT.get(settings).millis();
+        this.readTimeoutMillis = (int) READ_TIMEOUT.get(settings).millis();
+
+        try (SecureString access = ACCESS_KEY.get(settings); SecureString secret = SECRET_KEY.get(settings)) {
+            this.accessKey = access.length() == 0 ? null : access.toString();
+            this.secretKey = secret.length() == 0 ? null : secret.toString();
+        }
+        if ((accessKey == null) != (secretKey == null)) {
+            throw new IllegalArgumentException("both " + ACCESS_KEY.getKey() + " and " + SECRET_KEY.getKey() +
+                    " must be defined in the keystore");
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * An object of a bucket, on the node level endpoint and region unless the filter overrides them
+     */
+    public static class ObjectLocation {
+
+        final String endpoint;
+        final String region;
+        final String bucket;
+        final String key;
+
+        public ObjectLocation(String endpoint, String region, String bucket, String key) {
+            this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+            this.region = region;
+            this.bucket = bucket;
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return endpoint + "/" + bucket + "/" + key;
+        }
+    }
+
+    /**
+     * The response of a request on an object, the body is only available for a {@code GET}
+     */
+    public static class ObjectResponse {
+
+        private final String etag;
+        private final String contentEncoding;
+        private final InputStream body;
+
+        ObjectResponse(String etag, String contentEncoding, InputStream body) {
+            this.etag = etag;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Reads the ETag of the object, without transferring it
+     */
+    public String head(ObjectLocation location) throws IOException {
+        return request("HEAD", location, ObjectResponse::getEtag);
+    }
+
+    /**
+     * Reads the object
+     *
+     * @param reader reads the response, the body is closed once it returns
+     */
+    public <R> R get(ObjectLocation location, CheckedFunction<ObjectResponse, R, IOException> reader)
+            throws IOException {
+        return request("GET", location, reader);
+    }
+
+    private <R> R request(String method, ObjectLocation location,
+                          CheckedFunction<ObjectResponse, R, IOException> reader) throws IOException {
+        SecurityManager sm = System.getSecurityManager();
+        if (sm != null) {
+            // unprivileged code such as scripts do not have SpecialPermission
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        try {
+            return AccessController.doPrivileged((PrivilegedExceptionAction<R>) () -> {
+                String path = "/" + uriEncode(location.bucket, false) + "/" + uriEncode(location.key, true);
+                URL url = new URL(location.endpoint + path);
+
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                try {
+                    connection.setRequestMethod(method);
+                    connection.setConnectTimeout(connectTimeoutMillis);
+                    connection.setReadTimeout(readTimeoutMillis);
+                    // the object is decompressed by the loader, if needed
+                    connection.setRequestProperty("Accept-Encoding", "identity");
+                    if (accessKey != null) {
+                        sign(connection, method, url, path, location.region);
+                    }
+
+                    logger.debug("{} {}", method, url);
+                    int status = connection.getResponseCode();
+                    if (status != HttpURLConnection.HTTP_OK) {
+                        throw new IOException(method + " " + location + " failed with status [" + status + "]: " +
+                                connection.getResponseMessage());
+                    }
+
+                    try (InputStream body = method.equals("GET") ? connection.getInputStream() : null) {
+                        return reader.apply(new ObjectResponse(connection.getHeaderField("ETag"),
+                                connection.getHeaderField("Content-Encoding"), body));
+                    }
+                } finally {
+                    connection.disconnect();
+                }
+            });
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getException();
+        }
+    }
+
+    /*
+     * AWS signature version 4, with the headers every request has. The payload of GET and HEAD requests is empty.
+     */
+    private void sign(HttpURLConnection connection, String method, URL url, String path, String region) {
+        String amzDate = AMZ_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+        String date = amzDate.substring(0, 8);
+        String host = url.getPort() == -1 || url.getPort() == url.getDefaultPort() ? url.getHost() :
+                url.getHost() + ":" + url.getPort();
+
+        String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        String canonicalRequest = method + "\n" + path + "\n\n" +
+                "host:" + host + "\n" +
+                "x-amz-content-sha256:" + EMPTY_PAYLOAD_HASH + "\n" +
+                "x-amz-date:" + amzDate + "\n\n" +
+                signedHeaders + "\n" + EMPTY_PAYLOAD_HASH;
+
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" +
+                MessageDigests.toHexString(MessageDigests.sha256().digest(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        key = hmac(key, "aws4_request");
+        String signature = MessageDigests.toHexString(hmac(key, stringToSign));
+
+        connection.setRequestProperty("x-amz-date", amzDate);
+        connection.setRequestProperty("x-amz-content-sha256", EMPTY_PAYLOAD_HASH);
+        connection.setRequestProperty("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope +
+                ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /*
+     * RFC 3986 encoding, as expected by the signature
+     */
+    static String uriEncode(String value, boolean keepSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                    c == '_' || c == '-' || c == '~' || c == '.' || (c == '/' && keepSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(String.format(Locale.ROOT, "%02X", (int) c));
+            }
+        }
+        return encoded.toString();
+    }
+}
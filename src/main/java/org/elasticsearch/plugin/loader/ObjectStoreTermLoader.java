@@ -0,0 +1,194 @@
+package org.elasticsearch.plugin.loader;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads the terms from a text object of an S3 compatible object store, one term per line. Rules spread over
+ * several columns are separated by tabs. Objects compressed with gzip ({@code Content-Encoding: gzip} or a
+ * {@code .gz} key) are decompressed as they are read. With {@code compiled} enabled, the object is the blob of the
+ * rules compiled offline instead.
+ *
+ * The version of the terms is the ETag of the object: checking it only transfers the headers, a refresh finding
+ * the same ETag does not read the object again.
+ */
+public class ObjectStoreTermLoader implements TermLoader {
+
+    private static final String COMPRESSION_AUTO = "auto";
+    private static final String COMPRESSION_NONE = "none";
+    private static final String COMPRESSION_GZIP = "gzip";
+
+    private final Logger logger;
+
+    private final ObjectStoreClient client;
+    private final ObjectStoreClient.ObjectLocation location;
+    private final String compression;
+
+    private volatile long lastRowCount;
+
+    public ObjectStoreTermLoader(Settings settings, ObjectStoreClient client) {
+        logger = Loggers.getLogger(getClass(), settings);
+        this.client = client;
+
+        String bucket = settings.get("s3.bucket");
+        String key = settings.get("s3.key");
+        if (bucket == null || key == null) {
+            throw new IllegalArgumentException("both s3.bucket and s3.key are required to load the rules from " +
+                    "an object store");
+        }
+        this.location = new ObjectStoreClient.ObjectLocation(settings.get("s3.endpoint", client.getEndpoint()),
+                settings.get("s3.region", client.getRegion()), bucket, key);
+
+        this.compression = settings.get("s3.compression", COMPRESSION_AUTO);
+        if (compression.equals("zstd") || (compression.equals(COMPRESSION_AUTO) && key.endsWith(".zst"))) {
+            throw new IllegalArgumentException("zstd compressed rules are not supported, use gzip instead");
+        }
+        if (!Arrays.asList(COMPRESSION_AUTO, COMPRESSION_NONE, COMPRESSION_GZIP).contains(compression)) {
+            throw new IllegalArgumentException("Unknown s3.compression [" + compression + "], expected one of [" +
+                    COMPRESSION_AUTO + ", " + COMPRESSION_NONE + ", " + COMPRESSION_GZIP + "]");
+        }
+
+        logger.info("load from {}", location);
+    }
+
+    @Override
+    public void streamTerms(CheckedConsumer<String, IOException> consumer) {
+        long count = streamLines(line -> {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                return false;
+            }
+            consumer.accept(line);
+            return true;
+        });
+        logger.debug("loaded {} terms", count);
+    }
+
+    @Override
+    public void streamRows(int columns, CheckedConsumer<String[], IOException> consumer) {
+        String[] row = new String[columns];
+        long count = streamLines(line -> {
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                return false;
+            }
+            String[] values = line.split("\t", columns + 1);
+            if (values.length < columns) {
+                throw new IllegalArgumentException("each line must have " + columns + " tab separated columns, got [" +
+                        line + "]");
+            }
+            for (int i = 0; i < columns; i++) {
+                row[i] = values[i].trim();
+            }
+            consumer.accept(row);
+            return true;
+        });
+        logger.debug("loaded {} rows", count);
+    }
+
+    /**
+     * The whole object, decompressed
+     */
+    @Override
+    public byte[] loadBlob() {
+        byte[] blob;
+        try {
+            blob = client.get(location, response -> {
+                InputStream body = response.getBody();
+                if (isCompressed(response.getContentEncoding())) {
+                    body = new GZIPInputStream(body);
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Streams.copy(body, out);
+                return out.toByteArray();
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to load the compiled rules from " + location, e);
+        }
+
+        lastRowCount = 1;
+        logger.debug("loaded {} bytes of compiled rules", blob.length);
+        return blob;
+    }
+
+    @Override
+    public String loadVersion() {
+        try {
+            String etag = client.head(location);
+            logger.debug("version: {}", etag);
+            return etag == null ? "" : etag;
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to read the version of " + location, e);
+        }
+    }
+
+    @Override
+    public long getLastRowCount() {
+        return lastRowCount;
+    }
+
+    @Override
+    public String getSource() {
+        return location.toString();
+    }
+
+    /*
+     * Pushes the trimmed lines of the object to the consumer, which returns false for the skipped ones.
+     * Returns the number of accepted lines.
+     */
+    private long streamLines(LineConsumer consumer) {
+        long[] rows = new long[1];
+        long count;
+        try {
+            count = client.get(location, response -> {
+                InputStream body = response.getBody();
+                if (isCompressed(response.getContentEncoding())) {
+                    body = new GZIPInputStream(body);
+                }
+
+                long accepted = 0;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    rows[0]++;
+                    if (consumer.accept(line.trim())) {
+                        accepted++;
+                    }
+                }
+                return accepted;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to load the rules from " + location, e);
+        }
+
+        lastRowCount = rows[0];
+        return count;
+    }
+
+    private boolean isCompressed(String contentEncoding) {
+        switch (compression) {
+            case COMPRESSION_GZIP:
+                return true;
+            case COMPRESSION_NONE:
+                return false;
+            default:
+                return "gzip".equalsIgnoreCase(contentEncoding) || location.key.endsWith(".gz");
+        }
+    }
+
+    @FunctionalInterface
+    private interface LineConsumer {
+        boolean accept(String line) throws IOException;
+    }
+}
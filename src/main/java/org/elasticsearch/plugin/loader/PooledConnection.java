@@ -0,0 +1,98 @@
+package org.elasticsearch.plugin.loader;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A connection owned by the {@link ConnectionPool}, along with the statements prepared on it.
+ *
+ * Statements are cached per connection (least recently used are closed first) and must not be closed
+ * by the caller. They are closed along with the connection.
+ */
+class PooledConnection {
+
+    private final Connection connection;
+    private final long createdNanos;
+    private final Map<String, PreparedStatement> statements;
+
+    private long lastUsedNanos;
+    private String databaseProductName;
+
+    PooledConnection(Connection connection, int statementCacheSize) {
+        this.connection = connection;
+        this.createdNanos = System.nanoTime();
+        this.lastUsedNanos = createdNanos;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns a forward only, read only statement for the query, reusing the one prepared by a previous load
+     */
+    PreparedStatement prepareStatement(String query) throws SQLException {
+        PreparedStatement statement = statements.get(query);
+        if (statement == null) {
+            statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statements.put(query, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * The lower cased database product name, as reported by the driver
+     */
+    String getDatabaseProductName() throws SQLException {
+        if (databaseProductName == null) {
+            databaseProductName = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+        }
+        return databaseProductName;
+    }
+
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    void close() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+
+        try {
+            connection.close();
+        } catch (SQLException e) { /* ignored */}
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) { /* ignored */}
+    }
+}
@@ -0,0 +1,12 @@
+package org.elasticsearch.plugin.loader;
+
+import java.io.IOException;
+
+/**
+ * Receives the terms inserted or deleted since the last load of a {@link TermLoader}
+ */
+@FunctionalInterface
+public interface TermChangeConsumer {
+
+    void accept(String term, boolean deleted) throws IOException;
+}
@@ -1,8 +1,54 @@
 package org.elasticsearch.plugin.loader;
 
-import java.util.Collection;
+import org.elasticsearch.common.CheckedConsumer;
+
+import java.io.IOException;
 
 public interface TermLoader {
 
-    Collection<String> loadTerms();
-}
\ No newline at end of file
+    /**
+     * Pushes each term to the consumer as soon as it is read, without holding all the terms in memory.
+     * Blank terms and comments (starting with #) are skipped.
+     */
+    void streamTerms(CheckedConsumer<String, IOException> consumer);
+
+    /**
+     * Pushes each row to the consumer as soon as it is read, as the trimmed values of its first columns (empty for
+     * null values). The array is reused for the next row.
+     *
+     * @param columns the number of columns to read
+     */
+    void streamRows(int columns, CheckedConsumer<String[], IOException> consumer);
+
+    /**
+     * Pushes the terms inserted or deleted since the last load to the consumer
+     *
+     * @return false if the loader cannot track changes, the terms must be fully loaded instead
+     */
+    default boolean streamChanges(TermChangeConsumer consumer) {
+        return false;
+    }
+
+    /**
+     * Loads a single binary value (ex: rules compiled offline), instead of terms
+     */
+    byte[] loadBlob();
+
+    /**
+     * The number of rows read by the last load, the skipped ones (blank terms and comments) included
+     */
+    long getLastRowCount();
+
+    /**
+     * Cheaply determines the current version of the terms, without loading them.
+     *
+     * @return the version, or null if the loader cannot tell
+     */
+    String loadVersion();
+
+    /**
+     * Identifies where the terms are loaded from (ex: the jdbc url), so that filters loading
+     * the same rules from the same source can share them
+     */
+    String getSource();
+}
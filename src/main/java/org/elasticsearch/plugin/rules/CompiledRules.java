@@ -0,0 +1,74 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.BufferedChecksumIndexInput;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.elasticsearch.common.lucene.store.ByteArrayIndexInput;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rules compiled offline by the rule compiler and stored as a single blob, so that nodes deserialize them instead
+ * of loading and compiling each rule.
+ *
+ * Besides the rules serialized by their {@link RuleCodec}, the blob records its format version, the kind of rules
+ * and the settings the rules were compiled with (ex: {@code ignore_case}, {@code expand}, the synonym tokenizer).
+ * A filter only accepts rules of its own kind, compiled with its own settings. A checksum covers the whole blob.
+ */
+public final class CompiledRules {
+
+    private static final String CODEC = "uber_filters_compiled";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    private CompiledRules() {
+    }
+
+    /**
+     * @param type the kind of rules, as loaded by the filter (ex: {@code synonym})
+     * @param settings the settings the rules were compiled with
+     */
+    public static <T> byte[] write(String type, Map<String, String> settings, T rules, RuleCodec<T> codec)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (IndexOutput out = new OutputStreamIndexOutput("compiled rules", "compiled", bytes, 8192)) {
+            CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+            out.writeString(type);
+            out.writeMapOfStrings(new TreeMap<>(settings));
+            codec.write(out, rules);
+            CodecUtil.writeFooter(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads compiled rules, checking they are of the expected kind and were compiled with the expected settings
+     *
+     * @throws IllegalArgumentException if the rules cannot be used by the filter
+     */
+    public static <T> T read(byte[] blob, String type, Map<String, String> settings, RuleCodec<T> codec)
+            throws IOException {
+        try (ChecksumIndexInput in = new BufferedChecksumIndexInput(new ByteArrayIndexInput("compiled rules", blob))) {
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+            String compiledType = in.readString();
+            if (!compiledType.equals(type)) {
+                throw new IllegalArgumentException("compiled rules are [" + compiledType + "] rules, expected [" +
+                        type + "] rules");
+            }
+            Map<String, String> compiledSettings = in.readMapOfStrings();
+            if (!compiledSettings.equals(new TreeMap<>(settings))) {
+                throw new IllegalArgumentException("rules compiled with settings " + compiledSettings +
+                        " cannot be used with settings " + new TreeMap<>(settings));
+            }
+
+            T rules = codec.read(in);
+            CodecUtil.checkFooter(in);
+            return rules;
+        }
+    }
+}
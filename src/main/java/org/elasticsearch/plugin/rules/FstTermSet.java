@@ -0,0 +1,96 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.BytesRefFSTEnum;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.Util;
+import org.elasticsearch.common.CheckedConsumer;
+
+import java.io.IOException;
+
+/**
+ * Terms stored as an FST on heap: common prefixes and suffixes are only stored once
+ */
+final class FstTermSet extends TermSet {
+
+    private static final NoOutputs OUTPUTS = NoOutputs.getSingleton();
+
+    // null if the set is empty
+    private final FST<Object> fst;
+
+    private FstTermSet(boolean ignoreCase, int size, FST<Object> fst) {
+        super(ignoreCase, size);
+        this.fst = fst;
+    }
+
+    @Override
+    public Matcher newMatcher() {
+        if (fst == null) {
+            return new Matcher(isIgnoreCase()) {
+                @Override
+                protected boolean contains(BytesRef term) {
+                    return false;
+                }
+            };
+        }
+
+        FST.BytesReader reader = fst.getBytesReader();
+        FST.Arc<Object> arc = new FST.Arc<>();
+        return new Matcher(isIgnoreCase()) {
+            @Override
+            protected boolean contains(BytesRef term) throws IOException {
+                fst.getFirstArc(arc);
+                for (int i = 0; i < term.length; i++) {
+                    if (fst.findTargetArc(term.bytes[term.offset + i] & 0xFF, arc, arc, reader) == null) {
+                        return false;
+                    }
+                }
+                return arc.isFinal();
+            }
+        };
+    }
+
+    @Override
+    public void forEachTerm(CheckedConsumer<BytesRef, IOException> consumer) throws IOException {
+        if (fst == null) {
+            return;
+        }
+        BytesRefFSTEnum<Object> terms = new BytesRefFSTEnum<>(fst);
+        BytesRefFSTEnum.InputOutput<Object> term;
+        while ((term = terms.next()) != null) {
+            consumer.accept(term.input);
+        }
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return fst == null ? 0 : fst.ramBytesUsed();
+    }
+
+    /**
+     * Builds the FST from terms added in UTF-8 byte order
+     */
+    static class Writer {
+
+        private final boolean ignoreCase;
+        private final org.apache.lucene.util.fst.Builder<Object> builder = new org.apache.lucene.util.fst.Builder<>(
+                FST.INPUT_TYPE.BYTE1, OUTPUTS);
+        private final IntsRefBuilder scratch = new IntsRefBuilder();
+        private int size;
+
+        Writer(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        void add(BytesRef term) throws IOException {
+            builder.add(Util.toIntsRef(term, scratch), OUTPUTS.getNoOutput());
+            size++;
+        }
+
+        FstTermSet finish() throws IOException {
+            return new FstTermSet(ignoreCase, size, builder.finish());
+        }
+    }
+}
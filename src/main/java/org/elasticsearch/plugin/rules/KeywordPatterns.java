@@ -0,0 +1,77 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RegExp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyword patterns compiled into a single deterministic automaton, so that matching a token costs the same
+ * no matter how many patterns there are. The automaton remains accessible so that the rules can be serialized.
+ */
+public final class KeywordPatterns implements Accountable {
+
+    private final Automaton automaton;
+    private final CharacterRunAutomaton runAutomaton;
+
+    /**
+     * @param automaton a deterministic automaton
+     */
+    public KeywordPatterns(Automaton automaton) {
+        this.automaton = automaton;
+        this.runAutomaton = new CharacterRunAutomaton(automaton);
+    }
+
+    public Automaton getAutomaton() {
+        return automaton;
+    }
+
+    /**
+     * Whether the whole term matches any of the patterns
+     */
+    public boolean matches(char[] term, int offset, int length) {
+        return runAutomaton.run(term, offset, length);
+    }
+
+    /**
+     * The size of the automaton, the run automaton derived from it is not accounted for
+     */
+    @Override
+    public long ramBytesUsed() {
+        return automaton.ramBytesUsed();
+    }
+
+    /**
+     * Unions patterns using the Lucene {@link RegExp} syntax
+     */
+    public static class Builder {
+
+        private final int maxDeterminizedStates;
+        private final List<Automaton> patterns = new ArrayList<>();
+
+        /**
+         * @param maxDeterminizedStates the maximum number of states of the compiled automaton, patterns that are
+         *                              too complex are rejected
+         */
+        public Builder(int maxDeterminizedStates) {
+            this.maxDeterminizedStates = maxDeterminizedStates;
+        }
+
+        public void add(String pattern) {
+            try {
+                patterns.add(new RegExp(pattern).toAutomaton(maxDeterminizedStates));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid keyword pattern: " + pattern, e);
+            }
+        }
+
+        public KeywordPatterns build() {
+            Automaton union = Operations.union(patterns);
+            return new KeywordPatterns(Operations.determinize(union, maxDeterminizedStates));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiled stop words, keywords and stemmer overrides in a single FST, so that a token is looked up once for all
+ * of them. The output of a term packs its {@link #STOP}, {@link #KEYWORD} and {@link #OVERRIDE} flags with the
+ * ordinal of its override: unlike byte sequences, summing them along the path of the term allocates nothing.
+ */
+public final class LexiconRules implements Accountable {
+
+    public static final int STOP = 1;
+    public static final int KEYWORD = 2;
+    public static final int OVERRIDE = 4;
+
+    private static final int FLAG_BITS = 3;
+    private static final int FLAG_MASK = (1 << FLAG_BITS) - 1;
+
+    // null if there are no rules
+    private final FST<Long> fst;
+    private final char[][] overrides;
+    private final boolean ignoreCase;
+
+    public LexiconRules(FST<Long> fst, char[][] overrides, boolean ignoreCase) {
+        this.fst = fst;
+        this.overrides = overrides;
+        this.ignoreCase = ignoreCase;
+    }
+
+    public FST<Long> getFst() {
+        return fst;
+    }
+
+    public char[][] getOverrides() {
+        return overrides;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Looks up terms, a matcher is not thread safe
+     */
+    public Matcher newMatcher() {
+        return new Matcher();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long size = fst == null ? 0 : fst.ramBytesUsed();
+        for (char[] override : overrides) {
+            size += RamUsageEstimator.sizeOf(override);
+        }
+        return size + RamUsageEstimator.shallowSizeOf(overrides);
+    }
+
+    public final class Matcher {
+
+        private final FST.BytesReader reader = fst == null ? null : fst.getBytesReader();
+        private final FST.Arc<Long> arc = new FST.Arc<>();
+        private long rule;
+
+        private Matcher() {
+        }
+
+        /**
+         * Looks up the rules of a term
+         *
+         * @return the flags of the term, 0 if the term has no rule
+         */
+        public int find(char[] buffer, int length) throws IOException {
+            rule = 0;
+            if (fst == null) {
+                return 0;
+            }
+            long output = 0;
+            fst.getFirstArc(arc);
+            for (int i = 0; i < length; ) {
+                int codePoint = Character.codePointAt(buffer, i, length);
+                if (fst.findTargetArc(ignoreCase ? Character.toLowerCase(codePoint) : codePoint, arc, arc,
+                        reader) == null) {
+                    return 0;
+                }
+                output += arc.output;
+                i += Character.charCount(codePoint);
+            }
+            if (!arc.isFinal()) {
+                return 0;
+            }
+            rule = output + arc.nextFinalOutput;
+            return (int) (rule & FLAG_MASK);
+        }
+
+        /**
+         * The override of the term last found, if it has the {@link #OVERRIDE} flag
+         */
+        public char[] override() {
+            return overrides[(int) (rule >>> FLAG_BITS)];
+        }
+    }
+
+    /**
+     * Collects the rules of the terms. A term may have several rules, the first override of a term wins.
+     */
+    public static class Builder {
+
+        private final boolean ignoreCase;
+        // sorted by their UTF-8 bytes, which is the code point order expected by the fst
+        private final Map<BytesRef, Rule> rules = new TreeMap<>();
+        private final List<char[]> overrides = new ArrayList<>();
+
+        public Builder(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * @param action {@code stop}, {@code keyword} or {@code override}
+         * @param payload the override of the term, ignored by the other actions
+         */
+        public void add(String term, String action, String payload) {
+            if (term.isEmpty()) {
+                throw new IllegalArgumentException("lexicon rule [" + action + "] has no term");
+            }
+            switch (action.toLowerCase(Locale.ROOT)) {
+                case "stop":
+                    addStopWord(term);
+                    break;
+                case "keyword":
+                    addKeyword(term);
+                    break;
+                case "override":
+                    addOverride(term, payload);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown lexicon action [" + action + "] for term [" + term +
+                            "], expected one of [stop, keyword, override]");
+            }
+        }
+
+        public void addStopWord(String term) {
+            rule(term).flags |= STOP;
+        }
+
+        public void addKeyword(String term) {
+            rule(term).flags |= KEYWORD;
+        }
+
+        public void addOverride(String term, String override) {
+            if (override == null || override.isEmpty()) {
+                throw new IllegalArgumentException("lexicon override of term [" + term + "] has no payload");
+            }
+            Rule rule = rule(term);
+            if ((rule.flags & OVERRIDE) == 0) {
+                rule.flags |= OVERRIDE;
+                rule.override = overrides.size();
+                overrides.add(override.toCharArray());
+            }
+        }
+
+        private Rule rule(String term) {
+            return rules.computeIfAbsent(new BytesRef(ignoreCase ? lowerCase(term) : term), key -> new Rule());
+        }
+
+        public LexiconRules build() throws IOException {
+            PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton();
+            org.apache.lucene.util.fst.Builder<Long> builder =
+                    new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE4, outputs);
+
+            IntsRefBuilder scratch = new IntsRefBuilder();
+            for (Map.Entry<BytesRef, Rule> rule : rules.entrySet()) {
+                scratch.copyUTF8Bytes(rule.getKey());
+                builder.add(scratch.get(), ((long) rule.getValue().override << FLAG_BITS) | rule.getValue().flags);
+            }
+            return new LexiconRules(builder.finish(), overrides.toArray(new char[overrides.size()][]), ignoreCase);
+        }
+    }
+
+    private static final class Rule {
+        private int flags;
+        private int override;
+    }
+
+    // the same lower casing as the lookups, code point by code point
+    private static String lowerCase(String term) {
+        StringBuilder lowerCase = new StringBuilder(term.length());
+        term.codePoints().forEach(codePoint -> lowerCase.appendCodePoint(Character.toLowerCase(codePoint)));
+        return lowerCase.toString();
+    }
+}
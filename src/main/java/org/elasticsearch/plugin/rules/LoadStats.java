@@ -0,0 +1,124 @@
+package org.elasticsearch.plugin.rules;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describes the last load of compiled rules: where they came from, how long it took and how big they are
+ */
+public class LoadStats implements Writeable, ToXContent {
+
+    /**
+     * Where the rules were loaded from
+     */
+    public enum Source {
+        /** fully loaded by the term loader */
+        QUERY,
+        /** the changes loaded by the term loader were applied to the previous rules */
+        DELTA,
+        /** restored from the snapshot on disk */
+        SNAPSHOT,
+        /** the standard parameters, no term loader is defined */
+        SETTINGS,
+        /** the standard parameters, the term loader failed and no snapshot was available ({@code strict} disabled) */
+        FALLBACK,
+        /** fetched compiled from the elected master ({@code uber_filters.load_on: master}) */
+        MASTER,
+        /** not loaded yet, or the last load failed ({@code async}): the {@code async_placeholder} applies */
+        UNLOADED
+    }
+
+    private final Source source;
+    private final long timestamp;
+    private final long queryTimeNanos;
+    private final long loadTimeNanos;
+    private final long rowsFetched;
+    private final long rowsSkipped;
+    private final long ramBytesUsed;
+
+    /**
+     * @param timestamp when the load completed, in milliseconds since the epoch
+     * @param queryTimeNanos the time until the first row was read (or the whole load for an empty result)
+     * @param loadTimeNanos the time of the whole load, compilation of the rules included
+     */
+    public LoadStats(Source source, long timestamp, long queryTimeNanos, long loadTimeNanos, long rowsFetched,
+                     long rowsSkipped, long ramBytesUsed) {
+        this.source = source;
+        this.timestamp = timestamp;
+        this.queryTimeNanos = queryTimeNanos;
+        this.loadTimeNanos = loadTimeNanos;
+        this.rowsFetched = rowsFetched;
+        this.rowsSkipped = rowsSkipped;
+        this.ramBytesUsed = ramBytesUsed;
+    }
+
+    public LoadStats(StreamInput in) throws IOException {
+        this.source = Source.values()[in.readVInt()];
+        this.timestamp = in.readLong();
+        this.queryTimeNanos = in.readVLong();
+        this.loadTimeNanos = in.readVLong();
+        this.rowsFetched = in.readVLong();
+        this.rowsSkipped = in.readVLong();
+        this.ramBytesUsed = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(source.ordinal());
+        out.writeLong(timestamp);
+        out.writeVLong(queryTimeNanos);
+        out.writeVLong(loadTimeNanos);
+        out.writeVLong(rowsFetched);
+        out.writeVLong(rowsSkipped);
+        out.writeVLong(ramBytesUsed);
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getQueryTimeNanos() {
+        return queryTimeNanos;
+    }
+
+    public long getLoadTimeNanos() {
+        return loadTimeNanos;
+    }
+
+    public long getRowsFetched() {
+        return rowsFetched;
+    }
+
+    public long getRowsSkipped() {
+        return rowsSkipped;
+    }
+
+    public long getRamBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("source", source.name().toLowerCase(Locale.ROOT));
+        builder.dateField("loaded_at_in_millis", "loaded_at", timestamp);
+        builder.timeValueField("query_time_in_millis", "query_time",
+                TimeUnit.NANOSECONDS.toMillis(queryTimeNanos), TimeUnit.MILLISECONDS);
+        builder.timeValueField("load_time_in_millis", "load_time",
+                TimeUnit.NANOSECONDS.toMillis(loadTimeNanos), TimeUnit.MILLISECONDS);
+        builder.field("rows_fetched", rowsFetched);
+        builder.field("rows_skipped", rowsSkipped);
+        builder.byteSizeField("memory_size_in_bytes", "memory_size", ramBytesUsed);
+        return builder;
+    }
+}
@@ -0,0 +1,176 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.PackedInts;
+import org.apache.lucene.util.packed.PackedLongValues;
+import org.elasticsearch.common.CheckedConsumer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Sorted terms stored in a node local file, memory mapped off heap and looked up with a binary search.
+ *
+ * The file is deleted as soon as it is mapped: the mapping remains valid until it is garbage collected, which
+ * happens once no filter uses the set anymore. It is never explicitly unmapped, since a refresh may replace the set
+ * while a token stream still uses it.
+ */
+final class MappedTermSet extends TermSet {
+
+    private static final String CODEC = "uber_filters_terms";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    private final IndexInput input;
+    private final long offsetsStart;
+
+    private MappedTermSet(boolean ignoreCase, int size, IndexInput input, long offsetsStart) {
+        super(ignoreCase, size);
+        this.input = input;
+        this.offsetsStart = offsetsStart;
+    }
+
+    @Override
+    public Matcher newMatcher() {
+        RandomAccessInput data;
+        try {
+            data = input.randomAccessSlice(0, input.length());
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read mapped terms", e);
+        }
+
+        return new Matcher(isIgnoreCase()) {
+            @Override
+            protected boolean contains(BytesRef term) throws IOException {
+                int low = 0;
+                int high = size() - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    int cmp = compare(data, mid, term);
+                    if (cmp < 0) {
+                        low = mid + 1;
+                    } else if (cmp > 0) {
+                        high = mid - 1;
+                    } else {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private int compare(RandomAccessInput data, int ord, BytesRef term) throws IOException {
+        long start = data.readLong(offsetsStart + ord * Long.BYTES);
+        long end = data.readLong(offsetsStart + (ord + 1) * Long.BYTES);
+        int length = (int) (end - start);
+
+        int common = Math.min(length, term.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (data.readByte(start + i) & 0xFF) - (term.bytes[term.offset + i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length;
+    }
+
+    @Override
+    public void forEachTerm(CheckedConsumer<BytesRef, IOException> consumer) throws IOException {
+        RandomAccessInput data = input.randomAccessSlice(0, input.length());
+        BytesRef term = new BytesRef();
+        for (int ord = 0; ord < size(); ord++) {
+            long start = data.readLong(offsetsStart + ord * Long.BYTES);
+            long end = data.readLong(offsetsStart + (ord + 1) * Long.BYTES);
+            term.bytes = new byte[(int) (end - start)];
+            term.length = term.bytes.length;
+            for (int i = 0; i < term.length; i++) {
+                term.bytes[i] = data.readByte(start + i);
+            }
+            consumer.accept(term);
+        }
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        // the terms are off heap
+        return 0;
+    }
+
+    /**
+     * Writes the terms, added in UTF-8 byte order, to a new file: the terms, followed by their offsets
+     */
+    static class Writer {
+
+        private final Path path;
+        private final Directory directory;
+        private final boolean ignoreCase;
+        private final IndexOutput out;
+        private final PackedLongValues.Builder offsets = PackedLongValues.monotonicBuilder(PackedInts.COMPACT);
+
+        Writer(Path path, boolean ignoreCase) throws IOException {
+            this.path = path;
+            this.directory = FSDirectory.open(path);
+            this.ignoreCase = ignoreCase;
+
+            boolean success = false;
+            try {
+                this.out = directory.createTempOutput("terms", "", IOContext.DEFAULT);
+                CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+                offsets.add(out.getFilePointer());
+                success = true;
+            } finally {
+                if (!success) {
+                    IOUtils.closeWhileHandlingException(directory);
+                }
+            }
+        }
+
+        void add(BytesRef term) throws IOException {
+            out.writeBytes(term.bytes, term.offset, term.length);
+            offsets.add(out.getFilePointer());
+        }
+
+        MappedTermSet finish() throws IOException {
+            PackedLongValues values = offsets.build();
+            int size = (int) values.size() - 1;
+
+            long offsetsStart = out.getFilePointer();
+            PackedLongValues.Iterator iterator = values.iterator();
+            while (iterator.hasNext()) {
+                out.writeLong(iterator.next());
+            }
+            out.writeLong(offsetsStart);
+            out.writeInt(size);
+            CodecUtil.writeFooter(out);
+            out.close();
+
+            String name = out.getName();
+            try (MMapDirectory mapped = new MMapDirectory(path)) {
+                // see the class comment, never unmapped explicitly
+                mapped.setUseUnmap(false);
+                IndexInput input = mapped.openInput(name, IOContext.DEFAULT);
+                CodecUtil.checksumEntireFile(input);
+                return new MappedTermSet(ignoreCase, size, input, offsetsStart);
+            } finally {
+                IOUtils.deleteFilesIgnoringExceptions(directory, name);
+                directory.close();
+            }
+        }
+
+        void abort() {
+            IOUtils.closeWhileHandlingException(out);
+            IOUtils.deleteFilesIgnoringExceptions(directory, out.getName());
+            IOUtils.closeWhileHandlingException(directory);
+        }
+    }
+}
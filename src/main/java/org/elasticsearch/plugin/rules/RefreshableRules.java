@@ -0,0 +1,130 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.util.Accountable;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.Closeable;
+
+/**
+ * Holds the current version of compiled rules. Refreshed rules are built off the hot path and swapped in
+ * atomically, readers never wait for a reload.
+ *
+ * The version and hash describe the content the current rules were built from, they are only used by the
+ * refresh to detect that nothing changed.
+ *
+ * Accounted rules charge the estimated size of the current rules to a circuit breaker, until they are closed.
+ */
+public class RefreshableRules<T> implements Closeable, Accountable {
+
+    private volatile T rules;
+    private volatile String version;
+    private volatile String hash;
+
+    private volatile LoadStats stats;
+
+    private volatile ThreadPool.Cancellable refreshTask;
+
+    private CircuitBreaker breaker;
+    private String label;
+    // the bytes charged to the breaker for the current rules
+    private long chargedBytes;
+
+    /**
+     * @param version the version of the rules (as returned by the {@code version_query}), or null if unknown
+     * @param hash the hash of the loaded terms, or null if unknown
+     */
+    public RefreshableRules(T rules, String version, String hash) {
+        this.rules = rules;
+        this.version = version;
+        this.hash = hash;
+    }
+
+    public T get() {
+        return rules;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Charges the rules swapped in from now on to the breaker
+     *
+     * @param label describes the rules in the message of the breaker
+     */
+    public synchronized void account(CircuitBreaker breaker, String label) {
+        this.breaker = breaker;
+        this.label = label;
+    }
+
+    /**
+     * @throws org.elasticsearch.common.breaker.CircuitBreakingException if the rules are accounted and would exceed
+     * the limit of the breaker, the current rules are kept then
+     */
+    public synchronized void swap(T rules, String version, String hash) {
+        if (breaker != null && rules != this.rules) {
+            // both rules are on the heap until the current ones are no longer used
+            long bytes = RuleRamUsage.ramBytesUsed(rules);
+            breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+            breaker.addWithoutBreaking(-chargedBytes);
+            chargedBytes = bytes;
+        }
+        this.version = version;
+        this.hash = hash;
+        this.rules = rules;
+    }
+
+    /**
+     * The stats of the last load of the rules, null if unknown
+     */
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    public void setStats(LoadStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Records that the rules are reloaded in the background, until they are closed
+     */
+    public void setRefreshTask(ThreadPool.Cancellable refreshTask) {
+        this.refreshTask = refreshTask;
+    }
+
+    public boolean isRefreshable() {
+        return refreshTask != null;
+    }
+
+    /**
+     * Whether the rules can be used without waiting for their load (see the {@code lazy} and {@code async} settings)
+     */
+    public boolean isLoaded() {
+        return true;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RuleRamUsage.ramBytesUsed(rules);
+    }
+
+    @Override
+    public void close() {
+        ThreadPool.Cancellable task = refreshTask;
+        if (task != null) {
+            task.cancel();
+        }
+        synchronized (this) {
+            if (breaker != null) {
+                breaker.addWithoutBreaking(-chargedBytes);
+                chargedBytes = 0;
+                breaker = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+
+import java.io.IOException;
+
+/**
+ * Serializes compiled rules, so that they can be restored without loading and compiling them again
+ */
+public interface RuleCodec<T> {
+
+    void write(DataOutput out, T rules) throws IOException;
+
+    T read(DataInput in) throws IOException;
+}
@@ -0,0 +1,216 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.Transition;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * {@link RuleCodec}s of the compiled rule structures used by the uber filters
+ */
+public final class RuleCodecs {
+
+    public static final RuleCodec<SynonymMap> SYNONYM_MAP = new RuleCodec<SynonymMap>() {
+        @Override
+        public void write(DataOutput out, SynonymMap rules) throws IOException {
+            writeFst(out, rules.fst);
+
+            BytesRef scratch = new BytesRef();
+            out.writeVInt(rules.words.size());
+            for (int i = 0; i < rules.words.size(); i++) {
+                rules.words.get(i, scratch);
+                writeBytesRef(out, scratch);
+            }
+            out.writeVInt(rules.maxHorizontalContext);
+        }
+
+        @Override
+        public SynonymMap read(DataInput in) throws IOException {
+            FST<BytesRef> fst = readFst(in);
+
+            // words are added in the order of their ids, so they keep the ids referenced by the fst outputs
+            BytesRefHash words = new BytesRefHash();
+            int size = in.readVInt();
+            for (int i = 0; i < size; i++) {
+                words.add(readBytesRef(in));
+            }
+            return new SynonymMap(fst, words, in.readVInt());
+        }
+    };
+
+    public static final RuleCodec<StemmerOverrideRules> STEMMER_OVERRIDES = new RuleCodec<StemmerOverrideRules>() {
+        @Override
+        public void write(DataOutput out, StemmerOverrideRules rules) throws IOException {
+            writeFst(out, rules.getFst());
+        }
+
+        @Override
+        public StemmerOverrideRules read(DataInput in) throws IOException {
+            return new StemmerOverrideRules(readFst(in));
+        }
+    };
+
+    public static final RuleCodec<LexiconRules> LEXICON = new RuleCodec<LexiconRules>() {
+        @Override
+        public void write(DataOutput out, LexiconRules rules) throws IOException {
+            out.writeByte((byte) (rules.isIgnoreCase() ? 1 : 0));
+            if (rules.getFst() == null) {
+                out.writeByte((byte) 0);
+            } else {
+                out.writeByte((byte) 1);
+                rules.getFst().save(out);
+            }
+            out.writeVInt(rules.getOverrides().length);
+            for (char[] override : rules.getOverrides()) {
+                out.writeString(new String(override));
+            }
+        }
+
+        @Override
+        public LexiconRules read(DataInput in) throws IOException {
+            boolean ignoreCase = in.readByte() == 1;
+            FST<Long> fst = in.readByte() == 0 ? null : new FST<>(in, PositiveIntOutputs.getSingleton());
+            char[][] overrides = new char[in.readVInt()][];
+            for (int i = 0; i < overrides.length; i++) {
+                overrides[i] = in.readString().toCharArray();
+            }
+            return new LexiconRules(fst, overrides, ignoreCase);
+        }
+    };
+
+    /**
+     * The automaton is stored as its states and transitions, it is already deterministic when read
+     */
+    public static final RuleCodec<KeywordPatterns> KEYWORD_PATTERNS = new RuleCodec<KeywordPatterns>() {
+        @Override
+        public void write(DataOutput out, KeywordPatterns rules) throws IOException {
+            Automaton automaton = rules.getAutomaton();
+            Transition transition = new Transition();
+
+            out.writeVInt(automaton.getNumStates());
+            for (int state = 0; state < automaton.getNumStates(); state++) {
+                out.writeByte((byte) (automaton.isAccept(state) ? 1 : 0));
+                int count = automaton.initTransition(state, transition);
+                out.writeVInt(count);
+                for (int i = 0; i < count; i++) {
+                    automaton.getNextTransition(transition);
+                    out.writeVInt(transition.dest);
+                    out.writeVInt(transition.min);
+                    out.writeVInt(transition.max);
+                }
+            }
+        }
+
+        @Override
+        public KeywordPatterns read(DataInput in) throws IOException {
+            Automaton automaton = new Automaton();
+            int states = in.readVInt();
+            for (int state = 0; state < states; state++) {
+                automaton.createState();
+            }
+            // transitions must be added state by state
+            for (int state = 0; state < states; state++) {
+                automaton.setAccept(state, in.readByte() == 1);
+                int count = in.readVInt();
+                for (int i = 0; i < count; i++) {
+                    int dest = in.readVInt();
+                    int min = in.readVInt();
+                    automaton.addTransition(state, dest, min, in.readVInt());
+                }
+            }
+            automaton.finishState();
+            return new KeywordPatterns(automaton);
+        }
+    };
+
+    private RuleCodecs() {
+    }
+
+    /**
+     * Term sets are stored as plain terms, the hash table is rebuilt when read
+     */
+    public static RuleCodec<CharArraySet> charArraySet(boolean ignoreCase) {
+        return new RuleCodec<CharArraySet>() {
+            @Override
+            public void write(DataOutput out, CharArraySet rules) throws IOException {
+                out.writeVInt(rules.size());
+                for (Object term : rules) {
+                    out.writeString(new String((char[]) term));
+                }
+            }
+
+            @Override
+            public CharArraySet read(DataInput in) throws IOException {
+                int size = in.readVInt();
+                CharArraySet rules = new CharArraySet(size, ignoreCase);
+                for (int i = 0; i < size; i++) {
+                    rules.add(in.readString());
+                }
+                return CharArraySet.unmodifiableSet(rules);
+            }
+        };
+    }
+
+    /**
+     * Compact term sets are stored as their sorted terms, the set is rebuilt when read
+     *
+     * @param directory where the terms are mapped in memory, or null to build an FST
+     */
+    public static RuleCodec<TermSet> termSet(boolean ignoreCase, Path directory) {
+        return new RuleCodec<TermSet>() {
+            @Override
+            public void write(DataOutput out, TermSet rules) throws IOException {
+                out.writeVInt(rules.size());
+                rules.forEachTerm(term -> writeBytesRef(out, term));
+            }
+
+            @Override
+            public TermSet read(DataInput in) throws IOException {
+                int size = in.readVInt();
+                TermSet.Builder builder = new TermSet.Builder(ignoreCase);
+                for (int i = 0; i < size; i++) {
+                    builder.add(readBytesRef(in));
+                }
+                return directory == null ? builder.buildFst() : builder.buildMapped(directory);
+            }
+        };
+    }
+
+    // an empty rule set has no fst
+    private static void writeFst(DataOutput out, FST<BytesRef> fst) throws IOException {
+        if (fst == null) {
+            out.writeByte((byte) 0);
+        } else {
+            out.writeByte((byte) 1);
+            fst.save(out);
+        }
+    }
+
+    private static FST<BytesRef> readFst(DataInput in) throws IOException {
+        if (in.readByte() == 0) {
+            return null;
+        }
+        return new FST<>(in, ByteSequenceOutputs.getSingleton());
+    }
+
+    private static void writeBytesRef(DataOutput out, BytesRef bytes) throws IOException {
+        out.writeVInt(bytes.length);
+        out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    private static BytesRef readBytesRef(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readVInt()];
+        in.readBytes(bytes, 0, bytes.length);
+        return new BytesRef(bytes);
+    }
+}
@@ -0,0 +1,119 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.indices.breaker.CircuitBreakerStats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the heap used by the rules of the node: the compiled rules in use, and the rows of the loads in
+ * progress. A load that would exceed {@code uber_filters.breaker.limit} is aborted, rather than filling the heap
+ * (ex: with a query that accidentally returns millions of rows).
+ *
+ * The estimates are multiplied by {@code uber_filters.breaker.overhead} before being compared to the limit. A limit
+ * of -1 disables the breaker, the memory is still accounted for.
+ */
+public class RuleMemoryBreaker implements CircuitBreaker {
+
+    public static final String NAME = "uber_filters";
+
+    private static final String PREFIX = "uber_filters.breaker.";
+
+    public static final Setting<ByteSizeValue> LIMIT =
+            Setting.memorySizeSetting(PREFIX + "limit", "40%", Setting.Property.NodeScope);
+    public static final Setting<Double> OVERHEAD =
+            Setting.doubleSetting(PREFIX + "overhead", 1.0, 0.0, Setting.Property.NodeScope);
+
+    private static final Logger logger = Loggers.getLogger(RuleMemoryBreaker.class);
+
+    private final long limit;
+    private final double overhead;
+
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong trippedCount = new AtomicLong();
+
+    public RuleMemoryBreaker(Settings settings) {
+        this(LIMIT.get(settings).getBytes(), OVERHEAD.get(settings));
+    }
+
+    RuleMemoryBreaker(long limit, double overhead) {
+        this.limit = limit;
+        this.overhead = overhead;
+    }
+
+    @Override
+    public void circuitBreak(String label, long bytesNeeded) {
+        trippedCount.incrementAndGet();
+        String message = "[" + NAME + "] Data too large, data for [" + label + "] would be [" + bytesNeeded + "/" +
+                new ByteSizeValue(bytesNeeded) + "], which is larger than the limit of [" + limit + "/" +
+                new ByteSizeValue(limit) + "]";
+        logger.debug("{}", message);
+        throw new CircuitBreakingException(message, bytesNeeded, limit);
+    }
+
+    /**
+     * Adds the bytes, unless the estimated memory used would exceed the limit
+     *
+     * @throws CircuitBreakingException if the limit would be exceeded, nothing is added then
+     */
+    @Override
+    public double addEstimateBytesAndMaybeBreak(long bytes, String label) throws CircuitBreakingException {
+        if (limit == -1 || bytes <= 0) {
+            return addWithoutBreaking(bytes);
+        }
+
+        long current;
+        long newUsed;
+        do {
+            current = used.get();
+            newUsed = current + bytes;
+            long estimate = (long) (newUsed * overhead);
+            if (estimate > limit) {
+                circuitBreak(label, estimate);
+            }
+        } while (!used.compareAndSet(current, newUsed));
+        return newUsed;
+    }
+
+    @Override
+    public long addWithoutBreaking(long bytes) {
+        long newUsed = used.addAndGet(bytes);
+        assert newUsed >= 0 : "more memory released than used: " + newUsed;
+        return newUsed;
+    }
+
+    @Override
+    public long getUsed() {
+        return used.get();
+    }
+
+    @Override
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public double getOverhead() {
+        return overhead;
+    }
+
+    @Override
+    public long getTrippedCount() {
+        return trippedCount.get();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    public CircuitBreakerStats stats() {
+        return new CircuitBreakerStats(NAME, limit, used.get(), overhead, trippedCount.get());
+    }
+}
@@ -0,0 +1,52 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Estimates the heap used by compiled rules
+ */
+public final class RuleRamUsage {
+
+    private RuleRamUsage() {
+    }
+
+    /**
+     * @return the estimated size of the rules in bytes, or 0 if the kind of rules is unknown
+     */
+    public static long ramBytesUsed(Object rules) {
+        if (rules instanceof Accountable) {
+            return ((Accountable) rules).ramBytesUsed();
+        } else if (rules instanceof CharArraySet) {
+            return ramBytesUsed((CharArraySet) rules);
+        } else if (rules instanceof SynonymMap) {
+            return ramBytesUsed((SynonymMap) rules);
+        }
+        return 0;
+    }
+
+    private static long ramBytesUsed(CharArraySet set) {
+        long size = 0;
+        for (Object term : set) {
+            size += RamUsageEstimator.sizeOf((char[]) term);
+        }
+        // the keys and values of the hash table, which is kept at most 80% full
+        long capacity = Long.highestOneBit(Math.max(1, set.size() + (set.size() >> 2))) << 1;
+        return size + 2 * RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+                RamUsageEstimator.NUM_BYTES_OBJECT_REF * capacity);
+    }
+
+    private static long ramBytesUsed(SynonymMap map) {
+        long size = map.fst == null ? 0 : map.fst.ramBytesUsed();
+        BytesRef scratch = new BytesRef();
+        for (int i = 0; i < map.words.size(); i++) {
+            map.words.get(i, scratch);
+            // the bytes, their length, the id and the start of the entry
+            size += scratch.length + 2 + 2 * Integer.BYTES;
+        }
+        return size;
+    }
+}
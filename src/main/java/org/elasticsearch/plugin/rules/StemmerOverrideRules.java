@@ -0,0 +1,67 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.miscellaneous.StemmerOverrideFilter;
+import org.apache.lucene.analysis.miscellaneous.StemmerOverrideFilter.StemmerOverrideMap;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiled stemmer overrides. Unlike the {@link StemmerOverrideMap} it wraps, the underlying FST remains
+ * accessible so that the rules can be serialized.
+ */
+public final class StemmerOverrideRules implements Accountable {
+
+    private final FST<BytesRef> fst;
+    private final StemmerOverrideMap map;
+
+    public StemmerOverrideRules(FST<BytesRef> fst) {
+        this.fst = fst;
+        this.map = new StemmerOverrideMap(fst, false);
+    }
+
+    public FST<BytesRef> getFst() {
+        return fst;
+    }
+
+    public StemmerOverrideMap getMap() {
+        return map;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return fst == null ? 0 : fst.ramBytesUsed();
+    }
+
+    /**
+     * Same as {@link StemmerOverrideFilter.Builder} (case sensitive), the first override of a key wins
+     */
+    public static class Builder {
+
+        private final Map<BytesRef, BytesRef> overrides = new TreeMap<>();
+
+        public boolean add(CharSequence key, CharSequence override) {
+            return overrides.putIfAbsent(new BytesRef(key), new BytesRef(override)) == null;
+        }
+
+        public StemmerOverrideRules build() throws IOException {
+            ByteSequenceOutputs outputs = ByteSequenceOutputs.getSingleton();
+            org.apache.lucene.util.fst.Builder<BytesRef> builder =
+                    new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE4, outputs);
+
+            // keys are sorted by their utf-8 bytes, which is the code point order expected by the fst
+            IntsRefBuilder scratch = new IntsRefBuilder();
+            for (Map.Entry<BytesRef, BytesRef> override : overrides.entrySet()) {
+                scratch.copyUTF8Bytes(override.getKey());
+                builder.add(scratch.get(), override.getValue());
+            }
+            return new StemmerOverrideRules(builder.finish());
+        }
+    }
+}
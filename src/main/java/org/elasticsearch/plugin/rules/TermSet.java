@@ -0,0 +1,152 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharacterUtils;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.common.CheckedConsumer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A compact, immutable set of terms, stored as sorted UTF-8 bytes. An alternative to {@code CharArraySet}
+ * (one {@code char[]} per term plus a sparse hash table) for huge term lists.
+ *
+ * Lookups go through a {@link Matcher}, which holds the per thread scratch state.
+ */
+public abstract class TermSet implements Accountable {
+
+    private final boolean ignoreCase;
+    private final int size;
+
+    protected TermSet(boolean ignoreCase, int size) {
+        this.ignoreCase = ignoreCase;
+        this.size = size;
+    }
+
+    public boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A matcher must not be shared between threads
+     */
+    public abstract Matcher newMatcher();
+
+    /**
+     * Pushes the terms (lower cased if the set ignores case) to the consumer, in UTF-8 byte order
+     */
+    public abstract void forEachTerm(CheckedConsumer<BytesRef, IOException> consumer) throws IOException;
+
+    public abstract static class Matcher {
+
+        private final boolean ignoreCase;
+        private final BytesRefBuilder utf8 = new BytesRefBuilder();
+        private char[] lowerCase = new char[0];
+
+        protected Matcher(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        public boolean contains(char[] buffer, int offset, int length) throws IOException {
+            if (ignoreCase) {
+                lowerCase = ArrayUtil.grow(lowerCase, length);
+                System.arraycopy(buffer, offset, lowerCase, 0, length);
+                CharacterUtils.toLowerCase(lowerCase, 0, length);
+                utf8.copyChars(lowerCase, 0, length);
+            } else {
+                utf8.copyChars(buffer, offset, length);
+            }
+            return contains(utf8.get());
+        }
+
+        protected abstract boolean contains(BytesRef term) throws IOException;
+    }
+
+    /**
+     * Collects the terms, in any order, before building the set
+     */
+    public static class Builder {
+
+        private final boolean ignoreCase;
+        private final BytesRefHash terms = new BytesRefHash();
+        private final BytesRefBuilder utf8 = new BytesRefBuilder();
+        private char[] chars = new char[0];
+
+        public Builder(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * @param term a {@code char[]} (as returned by a {@code CharArraySet}) or any char sequence
+         */
+        public void add(Object term) {
+            int length;
+            if (term instanceof char[]) {
+                length = ((char[]) term).length;
+                chars = ArrayUtil.grow(chars, length);
+                System.arraycopy(term, 0, chars, 0, length);
+            } else {
+                String string = term.toString();
+                length = string.length();
+                chars = ArrayUtil.grow(chars, length);
+                string.getChars(0, length, chars, 0);
+            }
+            if (ignoreCase) {
+                CharacterUtils.toLowerCase(chars, 0, length);
+            }
+            utf8.copyChars(chars, 0, length);
+            terms.add(utf8.get());
+        }
+
+        /**
+         * Adds a term as returned by {@link TermSet#forEachTerm}, already in UTF-8 and lower cased
+         */
+        public void add(BytesRef term) {
+            terms.add(term);
+        }
+
+        /**
+         * Builds an FST, kept on heap
+         */
+        public TermSet buildFst() throws IOException {
+            FstTermSet.Writer writer = new FstTermSet.Writer(ignoreCase);
+            forEachSorted(writer::add);
+            return writer.finish();
+        }
+
+        /**
+         * Writes the sorted terms to a new file of the directory and maps it in memory, off heap
+         */
+        public TermSet buildMapped(Path directory) throws IOException {
+            MappedTermSet.Writer writer = new MappedTermSet.Writer(directory, ignoreCase);
+            boolean success = false;
+            try {
+                forEachSorted(writer::add);
+                TermSet termSet = writer.finish();
+                success = true;
+                return termSet;
+            } finally {
+                if (!success) {
+                    writer.abort();
+                }
+            }
+        }
+
+        private void forEachSorted(CheckedConsumer<BytesRef, IOException> consumer) throws IOException {
+            BytesRef scratch = new BytesRef();
+            int count = terms.size();
+            int[] ids = terms.sort();
+            for (int i = 0; i < count; i++) {
+                consumer.accept(terms.get(ids[i], scratch));
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharArrayMap;
+import org.apache.lucene.analysis.CharArraySet;
+
+/**
+ * Terms inserted or deleted since a set of terms was loaded. When a term changed several times, its last change wins.
+ */
+public class TermSetChanges {
+
+    private final boolean ignoreCase;
+    private final CharArrayMap<Boolean> changes;
+
+    public TermSetChanges(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        this.changes = new CharArrayMap<>(16, ignoreCase);
+    }
+
+    public void add(String term, boolean deleted) {
+        changes.put(term, deleted);
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    /**
+     * Returns a new (unmodifiable) set with the changes applied, the current set is shared and left untouched
+     */
+    public CharArraySet applyTo(CharArraySet current) {
+        CharArraySet updated = new CharArraySet(current.size() + changes.size(), ignoreCase);
+        for (Object term : current) {
+            if (!changes.containsKey(term)) {
+                updated.add(term);
+            }
+        }
+        for (CharArrayMap<Boolean>.EntryIterator it = changes.entrySet().iterator(); it.hasNext(); ) {
+            char[] term = it.nextKey();
+            if (!it.currentValue()) {
+                updated.add(term);
+            }
+        }
+        return CharArraySet.unmodifiableSet(updated);
+    }
+}
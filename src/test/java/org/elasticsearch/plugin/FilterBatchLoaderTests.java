@@ -0,0 +1,218 @@
+package org.elasticsearch.plugin;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the concurrent creation of the uber filters of an index, with providers that only record the filters
+ * they create
+ */
+public class FilterBatchLoaderTests extends ESTestCase {
+
+    private ThreadPool threadPool;
+    private UberFiltersService service;
+    private Environment environment;
+
+    // the filters created by the providers
+    private final List<RecordedFilter> created = new CopyOnWriteArrayList<>();
+    private volatile String failingFilter;
+    private volatile CountDownLatch blockingLatch;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        threadPool = new ThreadPool(Settings.builder().put("node.name", "test").build(),
+                new FixedExecutorBuilder(Settings.EMPTY, UberFiltersService.LOAD_THREAD_POOL, 2, -1,
+                        "uber_filters.load"));
+        service = new UberFiltersService(Settings.EMPTY);
+        service.setThreadPool(threadPool);
+        environment = new Environment(Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        if (blockingLatch != null) {
+            blockingLatch.countDown();
+        }
+        service.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        super.tearDown();
+    }
+
+    public void testBatch() throws Exception {
+        FilterBatchLoader loader = loader(TimeValue.timeValueMinutes(1));
+        IndexSettings indexSettings = indexSettings("foo");
+
+        // the first request creates all the uber filters of the index, the others wait for theirs
+        RecordedFilter first = get(loader, indexSettings, "first");
+        assertBusy(() -> assertEquals(2, created.size()));
+        RecordedFilter second = get(loader, indexSettings, "second");
+        assertEquals(2, created.size());
+        assertTrue(created.contains(first));
+        assertTrue(created.contains(second));
+        assertEquals("foo", second.settings.get("stopwords"));
+
+        // the analysis of the index is built again (ex: reopened), the batch was used up
+        RecordedFilter rebuilt = get(loader, indexSettings, "second");
+        assertNotSame(second, rebuilt);
+        get(loader, indexSettings, "first");
+        assertEquals(4, created.size());
+    }
+
+    public void testFilterNotInBatch() throws IOException {
+        FilterBatchLoader loader = loader(TimeValue.timeValueMinutes(1));
+        IndexSettings indexSettings = indexSettings("foo");
+
+        Settings settings = Settings.builder().put("type", "uber_stop").put("stopwords", "bar").build();
+        RecordedFilter filter = (RecordedFilter) loader.get("uber_stop", indexSettings, environment, "other",
+                settings);
+        assertEquals("bar", filter.settings.get("stopwords"));
+    }
+
+    public void testFailureDiscardsBatch() throws IOException {
+        FilterBatchLoader loader = loader(TimeValue.timeValueMinutes(1));
+        IndexSettings indexSettings = indexSettings("foo");
+        failingFilter = "second";
+
+        get(loader, indexSettings, "first");
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> get(loader, indexSettings, "second"));
+        assertEquals("failed to create [second]", thrown.getMessage());
+
+        // the index creation is retried, the first filter is created again
+        failingFilter = null;
+        created.clear();
+        get(loader, indexSettings, "first");
+        get(loader, indexSettings, "second");
+        assertEquals(2, created.size());
+    }
+
+    public void testDiscardLeftOverFilters() throws Exception {
+        FilterBatchLoader loader = loader(TimeValue.timeValueMinutes(1));
+        IndexSettings indexSettings = indexSettings("foo");
+
+        // another filter of the index fails its creation, the second uber filter is never requested
+        get(loader, indexSettings, "first");
+        assertBusy(() -> assertEquals(2, created.size()));
+        RecordedFilter leftOver = created.stream().filter(filter -> filter.name().equals("second")).findFirst().get();
+
+        loader.discard(indexSettings.getUUID());
+        RecordedFilter second = get(loader, indexSettings, "second");
+        assertNotSame(leftOver, second);
+    }
+
+    public void testSettingsChange() throws Exception {
+        FilterBatchLoader loader = loader(TimeValue.timeValueMinutes(1));
+        IndexSettings indexSettings = indexSettings("foo");
+        get(loader, indexSettings, "first");
+        assertBusy(() -> assertEquals(2, created.size()));
+
+        // the index is closed, its settings updated and it is reopened, with the same uuid
+        IndexSettings updated = indexSettings("bar");
+        assertEquals(indexSettings.getUUID(), updated.getUUID());
+        assertEquals("bar", get(loader, updated, "second").settings.get("stopwords"));
+        assertEquals("bar", get(loader, updated, "first").settings.get("stopwords"));
+    }
+
+    public void testTimeout() throws Exception {
+        FilterBatchLoader loader = loader(TimeValue.timeValueMillis(100));
+        IndexSettings indexSettings = indexSettings("foo");
+        blockingLatch = new CountDownLatch(1);
+
+        ElasticsearchTimeoutException thrown = expectThrows(ElasticsearchTimeoutException.class,
+                () -> get(loader, indexSettings, "first"));
+        assertEquals("timed out after [100ms] creating filter [first]", thrown.getMessage());
+
+        // the batch is discarded
+        blockingLatch.countDown();
+        blockingLatch = null;
+        assertBusy(() -> assertEquals(2, created.size()));
+        RecordedFilter second = get(loader, indexSettings, "second");
+        assertFalse(created.subList(0, 2).contains(second));
+    }
+
+    private FilterBatchLoader loader(TimeValue timeout) {
+        AnalysisModule.AnalysisProvider<TokenFilterFactory> provider = (indexSettings, env, name, settings) -> {
+            CountDownLatch latch = blockingLatch;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            if (name.equals(failingFilter)) {
+                throw new IllegalArgumentException("failed to create [" + name + "]");
+            }
+            RecordedFilter filter = new RecordedFilter(name, settings);
+            created.add(filter);
+            return filter;
+        };
+        return new FilterBatchLoader(service, Collections.singletonMap("uber_stop", provider), timeout);
+    }
+
+    private RecordedFilter get(FilterBatchLoader loader, IndexSettings indexSettings, String name) throws IOException {
+        Settings settings = AnalysisRegistry.getSettingsFromIndexSettings(indexSettings,
+                AnalysisRegistry.INDEX_ANALYSIS_FILTER + "." + name);
+        return (RecordedFilter) loader.get("uber_stop", indexSettings, environment, name, settings);
+    }
+
+    /*
+     * Two uber filters and a standard one, always the same index uuid
+     */
+    private static IndexSettings indexSettings(String stopwords) {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetaData.SETTING_INDEX_UUID, "uuid")
+                .put("index.analysis.filter.first.type", "uber_stop")
+                .put("index.analysis.filter.first.stopwords", stopwords)
+                .put("index.analysis.filter.second.type", "uber_stop")
+                .put("index.analysis.filter.second.stopwords", stopwords)
+                .put("index.analysis.filter.standard.type", "stop")
+                .build();
+        return IndexSettingsModule.newIndexSettings("test", settings);
+    }
+
+    private static class RecordedFilter implements TokenFilterFactory {
+
+        private final String name;
+        private final Settings settings;
+
+        RecordedFilter(String name, Settings settings) {
+            this.name = name;
+            this.settings = settings;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public TokenStream create(TokenStream tokenStream) {
+            return tokenStream;
+        }
+    }
+}
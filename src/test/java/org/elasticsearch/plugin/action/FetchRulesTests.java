@@ -0,0 +1,326 @@
+package org.elasticsearch.plugin.action;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.discovery.MasterNotDiscoveredException;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.index.analysis.analysis.UberStopTokenFilterFactory;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+import org.elasticsearch.test.client.NoOpClient;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+
+/**
+ * Tests of nodes fetching their rules from the elected master ({@code uber_filters.load_on: master}). The master
+ * loads the rules from a local stand-in for an object store, the other nodes must never request it.
+ */
+@SuppressForbidden(reason = "uses the JDK http server as object store")
+public class FetchRulesTests extends ESTestCase {
+
+    private HttpServer server;
+    private final List<String> objectRequests = new CopyOnWriteArrayList<>();
+    private static final String STOPWORDS = "foo\nbar\n";
+
+    private UberFiltersService master;
+    private Settings nodeSettings;
+    private final List<String> fetchedHashes = new CopyOnWriteArrayList<>();
+    private volatile boolean masterAvailable = true;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        Settings masterSettings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        master = new UberFiltersService(masterSettings);
+        master.setFilterProviders(Collections.singletonMap("uber_stop", (indexSettings, environment, name, settings) ->
+                new UberStopTokenFilterFactory(indexSettings, environment, name, settings, master)));
+
+        // the other nodes, they share the same data path to test restarts
+        nodeSettings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .put(UberFiltersService.LOAD_ON.getKey(), "master")
+                .build();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        master.close();
+        server.stop(0);
+        super.tearDown();
+    }
+
+    public void testNodesFetchRulesFromMaster() throws IOException {
+        IndexSettings indexSettings = indexSettings();
+
+        for (int i = 0; i < 2; i++) {
+            // two nodes sharing the same snapshots on disk, or a node restarted
+            try (NoOpClient client = new MasterClient()) {
+                UberFiltersService service = new UberFiltersService(nodeSettings);
+                service.setCluster(client, () -> false);
+                assertAnalyzed(createFilter(service, indexSettings), "foo bar baz", "baz");
+
+                LoadStats stats = service.getFilterStats().get(0).getLoadStats();
+                assertEquals(i == 0 ? LoadStats.Source.MASTER : LoadStats.Source.SNAPSHOT, stats.getSource());
+                service.close();
+            }
+        }
+
+        // the master loaded the rules once, the second node already had them
+        assertEquals("[HEAD /rules/stopwords.txt, GET /rules/stopwords.txt]", objectRequests.toString());
+        assertEquals(2, fetchedHashes.size());
+        assertNull(fetchedHashes.get(0));
+        assertNotNull(fetchedHashes.get(1));
+    }
+
+    public void testMasterUnavailable() throws IOException {
+        IndexSettings indexSettings = indexSettings();
+        masterAvailable = false;
+
+        try (NoOpClient client = new MasterClient()) {
+            UberFiltersService service = new UberFiltersService(nodeSettings);
+            service.setCluster(client, () -> false);
+
+            // no rules and no snapshot, the filter is created without waiting for them
+            TokenFilterFactory filter = createFilter(service, indexSettings);
+            expectThrows(MasterNotDiscoveredException.class, () -> assertAnalyzed(filter, "foo bar baz", "baz"));
+
+            masterAvailable = true;
+            createFilter(service, indexSettings);
+            service.close();
+        }
+
+        masterAvailable = false;
+        try (NoOpClient client = new MasterClient()) {
+            UberFiltersService service = new UberFiltersService(nodeSettings);
+            service.setCluster(client, () -> false);
+
+            // the last rules fetched from the master were persisted
+            assertAnalyzed(createFilter(service, indexSettings), "foo bar baz", "baz");
+            assertEquals(LoadStats.Source.SNAPSHOT, service.getFilterStats().get(0).getLoadStats().getSource());
+            service.close();
+        }
+        assertEquals(1, objectRequests.stream().filter(request -> request.startsWith("GET")).count());
+    }
+
+    public void testPublishedRulesRelease() throws IOException {
+        IndexSettings indexSettings = indexSettings();
+        try (NoOpClient client = new MasterClient()) {
+            UberFiltersService service = new UberFiltersService(nodeSettings);
+            service.setCluster(client, () -> false);
+            createFilter(service, indexSettings);
+
+            // the master holds the rules it published, apart from the indices it holds itself
+            assertEquals(1, master.getRuleCache().size());
+            assertTrue(master.getBreaker().getUsed() > 0);
+            master.getRuleCache().release(indexSettings.getIndex());
+            assertEquals(1, master.getRuleCache().size());
+
+            // ex: the index is closed
+            master.releasePublishedRules(index -> !index.equals(indexSettings.getIndex()));
+            assertEquals(1, master.getRuleCache().size());
+            master.releasePublishedRules(index -> index.equals(indexSettings.getIndex()));
+            assertEquals(0, master.getRuleCache().size());
+            assertEquals(0, master.getBreaker().getUsed());
+            assertTrue(master.getFilterStats().isEmpty());
+
+            // the rules are loaded again once they are asked for
+            UberFiltersService restarted = new UberFiltersService(nodeSettings);
+            restarted.setCluster(client, () -> false);
+            assertAnalyzed(createFilter(restarted, indexSettings), "foo bar baz", "baz");
+            assertEquals(1, master.getRuleCache().size());
+            restarted.close();
+            service.close();
+        }
+        // the master checked the version of the rules again, and restored them from its snapshot
+        assertEquals("[HEAD /rules/stopwords.txt, GET /rules/stopwords.txt, HEAD /rules/stopwords.txt]",
+                objectRequests.toString());
+    }
+
+    public void testPublishedRulesAreLoadedRightAway() throws Exception {
+        // every thread of the load thread pool of the master serves a fetch request
+        ThreadPool threadPool = new ThreadPool(Settings.builder().put("node.name", "master").build(),
+                new FixedExecutorBuilder(Settings.EMPTY, UberFiltersService.LOAD_THREAD_POOL, 1, -1,
+                        "uber_filters.load"));
+        CountDownLatch fetching = new CountDownLatch(1);
+        threadPool.executor(UberFiltersService.LOAD_THREAD_POOL).execute(() -> {
+            try {
+                fetching.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        master.setThreadPool(threadPool);
+        try {
+            IndexSettings indexSettings = IndexSettingsModule.newIndexSettings("test", Settings.builder()
+                    .put(indexSettings().getSettings())
+                    .put("index.analysis.filter.stop.async", true)
+                    .put("index.analysis.filter.stop.async_timeout", "100ms")
+                    .build());
+
+            // the rules of an async filter are not queued behind the fetch requests
+            FetchRulesResponse response = master.publishRules(indexSettings.getIndex(),
+                    indexSettings.getIndexMetaData().getSettings(), "stop", null);
+            assertNotNull(response.getRules());
+        } finally {
+            fetching.countDown();
+            master.setThreadPool(null);
+            ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    public void testElectedMasterLoadsItself() throws IOException {
+        IndexSettings indexSettings = indexSettings();
+
+        try (NoOpClient client = new MasterClient()) {
+            UberFiltersService service = new UberFiltersService(nodeSettings);
+            service.setCluster(client, () -> true);
+            assertAnalyzed(createFilter(service, indexSettings), "foo bar baz", "baz");
+            assertEquals(LoadStats.Source.QUERY, service.getFilterStats().get(0).getLoadStats().getSource());
+            service.close();
+        }
+        assertTrue(fetchedHashes.isEmpty());
+    }
+
+    public void testSerialization() throws IOException {
+        IndexSettings indexSettings = indexSettings();
+        FetchRulesRequest request = new FetchRulesRequest(indexSettings.getIndex(),
+                indexSettings.getIndexMetaData().getSettings(), "stop", "abc");
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        FetchRulesRequest readRequest = new FetchRulesRequest();
+        readRequest.readFrom(out.bytes().streamInput());
+        assertEquals(indexSettings.getIndex(), readRequest.getIndex());
+        assertEquals(indexSettings.getIndexMetaData().getSettings(), readRequest.getIndexSettings());
+        assertEquals("stop", readRequest.getFilter());
+        assertEquals("abc", readRequest.getKnownHash());
+
+        FetchRulesResponse notModified = roundTrip(new FetchRulesResponse("abc", null));
+        assertEquals("abc", notModified.getHash());
+        assertNull(notModified.getRules());
+    }
+
+    private TokenFilterFactory createFilter(UberFiltersService service, IndexSettings indexSettings)
+            throws IOException {
+        // same settings as the ones the analysis registry provides
+        Settings filterSettings = AnalysisRegistry.getSettingsFromIndexSettings(indexSettings,
+                AnalysisRegistry.INDEX_ANALYSIS_FILTER + ".stop");
+        return new UberStopTokenFilterFactory(indexSettings, new Environment(nodeSettings), "stop", filterSettings,
+                service);
+    }
+
+    private static void assertAnalyzed(TokenFilterFactory factory, String text, String... tokens) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        assertTokenStreamContents(factory.create(tokenizer), tokens);
+    }
+
+    private IndexSettings indexSettings() {
+        InetSocketAddress address = server.getAddress();
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put("index.analysis.filter.stop.type", "uber_stop")
+                .put("index.analysis.filter.stop.s3.endpoint",
+                        "http://" + address.getHostString() + ":" + address.getPort())
+                .put("index.analysis.filter.stop.s3.bucket", "rules")
+                .put("index.analysis.filter.stop.s3.key", "stopwords.txt")
+                .build();
+        return IndexSettingsModule.newIndexSettings("test", settings);
+    }
+
+    private static FetchRulesResponse roundTrip(FetchRulesResponse response) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        response.writeTo(out);
+        StreamInput in = out.bytes().streamInput();
+        FetchRulesResponse read = new FetchRulesResponse();
+        read.readFrom(in);
+        return read;
+    }
+
+    /**
+     * Sends the fetch requests to the master service, through the transport serialization
+     */
+    private class MasterClient extends NoOpClient {
+
+        MasterClient() {
+            super(getTestName());
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse,
+                RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>>
+        void doExecute(Action<Request, Response, RequestBuilder> action, Request request,
+                       ActionListener<Response> listener) {
+            assertSame(FetchRulesAction.INSTANCE, action);
+            if (!masterAvailable) {
+                listener.onFailure(new MasterNotDiscoveredException("master left"));
+                return;
+            }
+            FetchRulesRequest fetch = (FetchRulesRequest) request;
+            fetchedHashes.add(fetch.getKnownHash());
+            try {
+                listener.onResponse((Response) roundTrip(master.publishRules(fetch.getIndex(),
+                        fetch.getIndexSettings(), fetch.getFilter(), fetch.getKnownHash())));
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            objectRequests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+            byte[] content = STOPWORDS.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("ETag", "\"" + STOPWORDS.hashCode() + "\"");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
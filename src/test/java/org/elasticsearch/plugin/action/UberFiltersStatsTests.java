@@ -0,0 +1,106 @@
+package org.elasticsearch.plugin.action;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.LocalTransportAddress;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.indices.breaker.CircuitBreakerStats;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.index.analysis.analysis.UberStopTokenFilterFactory;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests of the stats of the uber filters
+ *
+ * Tests are not integration tests, therefore cannot access a database
+ */
+public class UberFiltersStatsTests extends ESTestCase {
+
+    public void testSettingsStats() throws IOException {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        IndexSettings indexSettings = IndexSettingsModule.newIndexSettings("test", settings);
+        Settings filterSettings = Settings.builder().putArray("stopwords", "the", "a").build();
+
+        UberFiltersService service = new UberFiltersService(Settings.EMPTY);
+        new UberStopTokenFilterFactory(indexSettings, new Environment(settings), "stop_uber_test", filterSettings,
+                service);
+
+        List<FilterStats> stats = service.getFilterStats();
+        assertEquals(1, stats.size());
+        FilterStats filter = stats.get(0);
+        assertEquals("test", filter.getIndex());
+        assertEquals("stop_uber_test", filter.getName());
+        assertEquals(LoadStats.Source.SETTINGS, filter.getLoadStats().getSource());
+        assertEquals(0, filter.getLoadStats().getRowsFetched());
+        assertTrue(filter.getLoadStats().getRamBytesUsed() > 0);
+
+        service.unregisterFilters(indexSettings.getIndex());
+        assertTrue(service.getFilterStats().isEmpty());
+        service.close();
+    }
+
+    public void testSerialization() throws IOException {
+        FilterStats stats = new FilterStats("test", "stop_uber_test", "stop",
+                new LoadStats(LoadStats.Source.QUERY, 1500000000000L, 2000000, 5000000, 12, 2, 1024));
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        stats.writeTo(out);
+        StreamInput in = out.bytes().streamInput();
+        FilterStats read = new FilterStats(in);
+
+        assertEquals("test", read.getIndex());
+        assertEquals("stop_uber_test", read.getName());
+        assertEquals("stop", read.getType());
+        assertEquals(LoadStats.Source.QUERY, read.getLoadStats().getSource());
+        assertEquals(1500000000000L, read.getLoadStats().getTimestamp());
+        assertEquals(2000000, read.getLoadStats().getQueryTimeNanos());
+        assertEquals(5000000, read.getLoadStats().getLoadTimeNanos());
+        assertEquals(12, read.getLoadStats().getRowsFetched());
+        assertEquals(2, read.getLoadStats().getRowsSkipped());
+        assertEquals(1024, read.getLoadStats().getRamBytesUsed());
+
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        read.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        assertEquals("{\"index\":\"test\",\"name\":\"stop_uber_test\",\"type\":\"stop\",\"source\":\"query\"," +
+                "\"loaded_at_in_millis\":1500000000000,\"query_time_in_millis\":2,\"load_time_in_millis\":5," +
+                "\"rows_fetched\":12,\"rows_skipped\":2,\"memory_size_in_bytes\":1024}", builder.string());
+    }
+
+    public void testNodeSerialization() throws IOException {
+        DiscoveryNode node = new DiscoveryNode("node_1", LocalTransportAddress.buildUnique(), Version.CURRENT);
+        NodeUberFiltersStats stats = new NodeUberFiltersStats(node, Collections.emptyList(),
+                new CircuitBreakerStats("uber_filters", 2048, 1024, 1.0, 3));
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        stats.writeTo(out);
+        NodeUberFiltersStats read = NodeUberFiltersStats.readNodeStats(out.bytes().streamInput());
+
+        assertEquals(2048, read.getBreaker().getLimit());
+        assertEquals(1024, read.getBreaker().getEstimated());
+        assertEquals(3, read.getBreaker().getTrippedCount());
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        read.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        assertEquals("{\"name\":\"\",\"filters\":[],\"breakers\":{\"uber_filters\":{\"limit_size_in_bytes\":2048," +
+                "\"limit_size\":\"2kb\",\"estimated_size_in_bytes\":1024,\"estimated_size\":\"1kb\"," +
+                "\"overhead\":1.0,\"tripped\":3}}}", builder.string());
+    }
+}
@@ -0,0 +1,81 @@
+package org.elasticsearch.plugin.cache;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Unit tests for {@link RuleCache}
+ */
+public class RuleCacheTests extends ESTestCase {
+
+    public void testIdenticalRulesAreShared() throws IOException {
+        RuleCache cache = new RuleCache();
+        AtomicInteger builds = new AtomicInteger();
+
+        Index first = new Index("first", "uuid1");
+        Index second = new Index("second", "uuid2");
+
+        Object rules = cache.acquire(first, key("select a from b"), () -> new Object[builds.incrementAndGet()]);
+        Object shared = cache.acquire(second, key("select a from b"), () -> new Object[builds.incrementAndGet()]);
+
+        assertThat(shared, sameInstance(rules));
+        assertEquals(1, builds.get());
+        assertEquals(1, cache.size());
+
+        cache.acquire(first, key("select c from d"), () -> new Object[builds.incrementAndGet()]);
+        assertEquals(2, builds.get());
+        assertEquals(2, cache.size());
+    }
+
+    public void testEvictedWithLastIndex() throws IOException {
+        RuleCache cache = new RuleCache();
+
+        Index first = new Index("first", "uuid1");
+        Index second = new Index("second", "uuid2");
+
+        cache.acquire(first, key("select a from b"), Object::new);
+        cache.acquire(second, key("select a from b"), Object::new);
+
+        cache.release(first);
+        assertEquals(1, cache.size());
+
+        cache.release(second);
+        assertEquals(0, cache.size());
+    }
+
+    public void testEvictedRulesAreClosed() throws IOException {
+        RuleCache cache = new RuleCache();
+        Index index = new Index("index", "uuid");
+        AtomicBoolean closed = new AtomicBoolean();
+
+        cache.acquire(index, key("select a from b"), () -> (Closeable) () -> closed.set(true));
+        assertFalse(closed.get());
+
+        cache.release(index);
+        assertTrue(closed.get());
+    }
+
+    public void testFailedBuildIsNotCached() throws IOException {
+        RuleCache cache = new RuleCache();
+        Index index = new Index("index", "uuid");
+
+        expectThrows(IOException.class, () -> cache.acquire(index, key("select a from b"), () -> {
+            throw new IOException("database is down");
+        }));
+        assertEquals(0, cache.size());
+
+        assertNotNull(cache.acquire(index, key("select a from b"), Object::new));
+    }
+
+    private static RuleKey key(String query) {
+        return new RuleKey("stop", "jdbc:test", Settings.builder().put("query", query).build());
+    }
+}
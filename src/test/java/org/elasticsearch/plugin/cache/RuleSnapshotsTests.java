@@ -0,0 +1,140 @@
+package org.elasticsearch.plugin.cache;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.FST;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.rules.KeywordPatterns;
+import org.elasticsearch.plugin.rules.RuleCodecs;
+import org.elasticsearch.plugin.rules.StemmerOverrideRules;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests for {@link RuleSnapshots}
+ */
+public class RuleSnapshotsTests extends ESTestCase {
+
+    public void testTermsRoundTrip() {
+        RuleSnapshots snapshots = new RuleSnapshots(createTempDir());
+        CharArraySet terms = new CharArraySet(Arrays.asList("foo", "bar"), true);
+
+        snapshots.write(key("stop"), "1", terms, RuleCodecs.charArraySet(true));
+        Optional<CharArraySet> restored = snapshots.read(key("stop"), "1", RuleCodecs.charArraySet(true));
+
+        assertTrue(restored.isPresent());
+        assertEquals(2, restored.get().size());
+        assertTrue(restored.get().contains("FOO"));
+        assertTrue(restored.get().contains("bar"));
+    }
+
+    public void testSynonymsRoundTrip() throws IOException, ParseException {
+        SolrSynonymParser parser = new SolrSynonymParser(true, true, new WhitespaceAnalyzer());
+        parser.parse(new StringReader("dog, cat\ni pod => ipod"));
+        SynonymMap synonyms = parser.build();
+
+        RuleSnapshots snapshots = new RuleSnapshots(createTempDir());
+        snapshots.write(key("synonym"), "1", synonyms, RuleCodecs.SYNONYM_MAP);
+        SynonymMap restored = snapshots.read(key("synonym"), "1", RuleCodecs.SYNONYM_MAP).get();
+
+        assertEquals(synonyms.words.size(), restored.words.size());
+        assertEquals(synonyms.maxHorizontalContext, restored.maxHorizontalContext);
+        assertEquals(analyze(synonyms, "my i pod dog"), analyze(restored, "my i pod dog"));
+    }
+
+    public void testStemmerOverridesRoundTrip() throws IOException {
+        StemmerOverrideRules.Builder builder = new StemmerOverrideRules.Builder();
+        builder.add("running", "runn");
+        builder.add("mice", "mouse");
+
+        RuleSnapshots snapshots = new RuleSnapshots(createTempDir());
+        snapshots.write(key("stemmer_override"), "1", builder.build(), RuleCodecs.STEMMER_OVERRIDES);
+        StemmerOverrideRules restored = snapshots.read(key("stemmer_override"), "1", RuleCodecs.STEMMER_OVERRIDES).get();
+
+        FST.BytesReader reader = restored.getMap().getBytesReader();
+        BytesRef override = restored.getMap().get("mice".toCharArray(), 4, new FST.Arc<>(), reader);
+        assertEquals("mouse", override.utf8ToString());
+    }
+
+    public void testKeywordPatternsRoundTrip() {
+        KeywordPatterns.Builder builder = new KeywordPatterns.Builder(10000);
+        builder.add("sku-[0-9]+");
+        builder.add("part-[a-z]{2}");
+
+        RuleSnapshots snapshots = new RuleSnapshots(createTempDir());
+        snapshots.write(key("keyword_pattern"), "1", builder.build(), RuleCodecs.KEYWORD_PATTERNS);
+        KeywordPatterns restored = snapshots.read(key("keyword_pattern"), "1", RuleCodecs.KEYWORD_PATTERNS).get();
+
+        assertTrue(restored.matches("sku-42".toCharArray(), 0, 6));
+        assertTrue(restored.matches("part-ab".toCharArray(), 0, 7));
+        assertFalse(restored.matches("part-abc".toCharArray(), 0, 8));
+    }
+
+    public void testOutdatedVersion() {
+        RuleSnapshots snapshots = new RuleSnapshots(createTempDir());
+        CharArraySet terms = new CharArraySet(Arrays.asList("foo", "bar"), false);
+
+        snapshots.write(key("stop"), "1", terms, RuleCodecs.charArraySet(false));
+
+        assertFalse(snapshots.read(key("stop"), "2", RuleCodecs.charArraySet(false)).isPresent());
+        // last known good rules
+        assertTrue(snapshots.read(key("stop"), null, RuleCodecs.charArraySet(false)).isPresent());
+        assertFalse(snapshots.read(key("keyword_marker"), null, RuleCodecs.charArraySet(false)).isPresent());
+    }
+
+    public void testCorruptedSnapshot() throws IOException {
+        Path path = createTempDir();
+        RuleSnapshots snapshots = new RuleSnapshots(path);
+        CharArraySet terms = new CharArraySet(Arrays.asList("foo", "bar"), false);
+
+        snapshots.write(key("stop"), "1", terms, RuleCodecs.charArraySet(false));
+
+        Path file;
+        try (Stream<Path> files = Files.list(path)) {
+            file = files.filter(p -> p.toString().endsWith(".rules")).findFirst().get();
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 12] ^= 0xFF;
+        Files.write(file, bytes);
+
+        assertFalse(snapshots.read(key("stop"), "1", RuleCodecs.charArraySet(false)).isPresent());
+    }
+
+    private static List<String> analyze(SynonymMap synonyms, String text) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = new SynonymFilter(tokenizer, synonyms, false)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+
+    private static RuleKey key(String type) {
+        return new RuleKey(type, "jdbc:test", Settings.builder().put("query", "select a from b").build());
+    }
+}
@@ -0,0 +1,260 @@
+package org.elasticsearch.plugin.database;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisRegistry;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.plugin.rules.RuleMemoryBreaker;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Load and heap regression tests of the uber filters, on the large synthetic tables of the test database
+ * ({@code tests.large_rules.rows} rows each, see {@code db.SyntheticRules}).
+ *
+ * Each filter type has a budget of wall time, peak heap and retained heap: a fixed allowance plus a cost per row. A
+ * change of the load path that exceeds it fails the build. The peak is sampled while the filter is created, the
+ * retained heap is measured after a full collection, while the filter is still referenced.
+ */
+public class LargeRulesIT extends ESTestCase {
+
+    private static Logger logger = Loggers.getLogger(LargeRulesIT.class);
+
+    private static final int DERBY_PORT = 1527;
+    private static final int ROWS = Integer.parseInt(System.getProperty("tests.large_rules.rows", "100000"));
+
+    private static final long FIXED_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long FIXED_BYTES = new ByteSizeValue(32, ByteSizeUnit.MB).getBytes();
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // the fixture fills the large tables once it accepts connections, the synonyms last
+        assertBusy(() -> assertEquals(ROWS, countRows("large_synonyms")), 10 + ROWS / 100_000, TimeUnit.MINUTES);
+    }
+
+    public void testStop() throws Exception {
+        Map<String, TokenFilterFactory> filters = assertBudget("uber_stop",
+                "select stopword from large_stopwords", new Budget(20_000, 800, 300));
+        assertEquals("[keep]", analyze(filters, "stop0 " + "stop" + lastId() + " keep"));
+    }
+
+    public void testKeywordMarker() throws Exception {
+        Map<String, TokenFilterFactory> filters = assertBudget("uber_keyword_marker",
+                "select keyword_marker from large_keyword_markers", new Budget(20_000, 800, 300));
+        assertEquals("[keyword0*, keyword" + lastId() + "*, other]",
+                analyze(filters, "keyword0 keyword" + lastId() + " other"));
+    }
+
+    public void testStemmerOverride() throws Exception {
+        Map<String, TokenFilterFactory> filters = assertBudget("uber_stemmer_override",
+                "select stemmer_override from large_stemmer_overrides", new Budget(30_000, 1_000, 300));
+        assertEquals("[run0*, run" + lastId() + "*]", analyze(filters, "running0 running" + lastId()));
+    }
+
+    public void testSynonym() throws Exception {
+        Map<String, TokenFilterFactory> filters = assertBudget("uber_synonym",
+                "select synonym from large_synonyms", new Budget(60_000, 2_000, 800));
+        assertEquals("[car0, automobile0]", analyze(filters, "car0"));
+        assertEquals("[new, york, city2]", analyze(filters, "big apple2"));
+    }
+
+    public void testSynonymGraph() throws Exception {
+        Map<String, TokenFilterFactory> filters = assertBudget("uber_synonym_graph",
+                "select synonym from large_synonyms", new Budget(60_000, 2_000, 800));
+        assertEquals("[automobile0, car0]", analyze(filters, "car0"));
+        assertEquals("[new, york, city2]", analyze(filters, "big apple2"));
+    }
+
+    public void testLexicon() throws Exception {
+        String query = "select stopword, 'stop', '' from large_stopwords " +
+                "union all select keyword_marker, 'keyword', '' from large_keyword_markers " +
+                "union all select trim(substr(stemmer_override, 1, locate('=>', stemmer_override) - 1)), " +
+                "'override', trim(substr(stemmer_override, locate('=>', stemmer_override) + 2)) " +
+                "from large_stemmer_overrides";
+        // the rows of the three tables
+        Map<String, TokenFilterFactory> filters = assertBudget("uber_lexicon", query, new Budget(90_000, 2_000, 600));
+        assertEquals("[keyword0*, run0*]", analyze(filters, "stop0 keyword0 running0"));
+    }
+
+    /**
+     * Creates a filter of the given type on the query and checks that loading its rules stays within the budget
+     *
+     * @return the filters of the index, the created filter is named {@code large}
+     */
+    private Map<String, TokenFilterFactory> assertBudget(String type, String query, Budget budget)
+            throws IOException, InterruptedException {
+        Settings nodeSettings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .put("uber_filters.jdbc.driver", "org.apache.derby.jdbc.ClientDriver")
+                .put("uber_filters.jdbc.url", createConnectionUrl(DERBY_PORT))
+                // the budgets are checked against the actual heap, however many rows are configured
+                .put(RuleMemoryBreaker.LIMIT.getKey(), -1)
+                .build();
+        Settings settings = Settings.builder()
+                .put(nodeSettings)
+                .put("index.analysis.filter.large.type", type)
+                .put("index.analysis.filter.large.query", query)
+                .build();
+
+        try (UberTokenFiltersPlugin plugin = new UberTokenFiltersPlugin(nodeSettings)) {
+            IndexSettings indexSettings = IndexSettingsModule.newIndexSettings("large", settings);
+            AnalysisRegistry registry = new AnalysisModule(new Environment(nodeSettings), singletonList(plugin))
+                    .getAnalysisRegistry();
+
+            long baseline = retainedHeap();
+            HeapSampler sampler = new HeapSampler();
+            sampler.start();
+            long start = System.nanoTime();
+            Map<String, TokenFilterFactory> filters = registry.buildTokenFilterFactories(indexSettings);
+            long took = System.nanoTime() - start;
+            sampler.interrupt();
+            sampler.join();
+            long peak = sampler.peak.get() - baseline;
+            long retained = retainedHeap() - baseline;
+
+            logger.info("loaded [{}] rows of [{}] in [{}], peak heap [{}], retained heap [{}]", ROWS, type,
+                    TimeValue.timeValueNanos(took), new ByteSizeValue(peak), new ByteSizeValue(retained));
+            assertTrue("[" + type + "] loaded in [" + TimeValue.timeValueNanos(took) + "], budget [" +
+                    TimeValue.timeValueNanos(budget.nanos()) + "]", took <= budget.nanos());
+            assertTrue("[" + type + "] peak heap [" + new ByteSizeValue(peak) + "], budget [" +
+                    new ByteSizeValue(budget.peakBytes()) + "]", peak <= budget.peakBytes());
+            assertTrue("[" + type + "] retained heap [" + new ByteSizeValue(retained) + "], budget [" +
+                    new ByteSizeValue(budget.retainedBytes()) + "]", retained <= budget.retainedBytes());
+            return filters;
+        }
+    }
+
+    private static String analyze(Map<String, TokenFilterFactory> filters, String text) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+
+        // keywords are marked with a star
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = filters.get("large").create(tokenizer)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            KeywordAttribute keyword = stream.addAttribute(KeywordAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(keyword.isKeyword() ? term + "*" : term.toString());
+            }
+            stream.end();
+        }
+        return tokens.toString();
+    }
+
+    private static String lastId() {
+        return Integer.toString(ROWS - 1, Character.MAX_RADIX);
+    }
+
+    private static long retainedHeap() {
+        MEMORY.gc();
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    private static int countRows(String table) throws Exception {
+        SecurityManager sm = System.getSecurityManager();
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+
+        return AccessController.doPrivileged((PrivilegedExceptionAction<Integer>) () -> {
+            try (Connection connection = DriverManager.getConnection(createConnectionUrl(DERBY_PORT));
+                 Statement statement = connection.createStatement();
+                 ResultSet count = statement.executeQuery("select count(*) from " + table)) {
+                count.next();
+                return count.getInt(1);
+            }
+        });
+    }
+
+    private static String createConnectionUrl(int port) {
+        return "jdbc:derby://localhost:" + port + "/derbyDB";
+    }
+
+    /**
+     * The budget of a filter type, per row loaded on top of the fixed allowance
+     */
+    private static final class Budget {
+
+        private final long nanosPerRow;
+        private final long peakBytesPerRow;
+        private final long retainedBytesPerRow;
+
+        Budget(long nanosPerRow, long peakBytesPerRow, long retainedBytesPerRow) {
+            this.nanosPerRow = nanosPerRow;
+            this.peakBytesPerRow = peakBytesPerRow;
+            this.retainedBytesPerRow = retainedBytesPerRow;
+        }
+
+        long nanos() {
+            return FIXED_NANOS + nanosPerRow * ROWS;
+        }
+
+        long peakBytes() {
+            return FIXED_BYTES + peakBytesPerRow * ROWS;
+        }
+
+        long retainedBytes() {
+            return FIXED_BYTES + retainedBytesPerRow * ROWS;
+        }
+    }
+
+    /**
+     * Samples the used heap until interrupted
+     */
+    private static final class HeapSampler extends Thread {
+
+        private final AtomicLong peak = new AtomicLong();
+
+        @Override
+        public void run() {
+            while (true) {
+                peak.accumulateAndGet(MEMORY.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    peak.accumulateAndGet(MEMORY.getHeapMemoryUsage().getUsed(), Math::max);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+
+/**
+ * Unit tests of the rules loaded in the background ({@code async} setting)
+ */
+public class AsyncRulesTests extends ESTestCase {
+
+    public void testPassUntilLoaded() throws IOException {
+        List<Runnable> tasks = new ArrayList<>();
+        AsyncRules<CharArraySet> rules = new AsyncRules<>("stop", () -> stopWords("the"), tasks::add,
+                AsyncRules.Placeholder.PASS, TimeValue.timeValueMinutes(1));
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new RefreshingTokenFilter<>(tokenizer, rules::current, StopFilter::new);
+        assertEquals(Arrays.asList("the", "quick", "fox"), analyze(tokenizer, stream, "the quick fox"));
+        assertNull(rules.loaded());
+        assertEquals(LoadStats.Source.UNLOADED, rules.getStats().getSource());
+
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        // the same stream is reused, like analyzers do
+        assertEquals(Arrays.asList("quick", "fox"), analyze(tokenizer, stream, "the quick fox"));
+        assertEquals(LoadStats.Source.SETTINGS, rules.getStats().getSource());
+    }
+
+    public void testFailUntilLoaded() {
+        AsyncRules<CharArraySet> rules = new AsyncRules<>("stop", () -> stopWords("the"), task -> {},
+                AsyncRules.Placeholder.FAIL, TimeValue.timeValueMinutes(1));
+
+        IllegalStateException thrown = expectThrows(IllegalStateException.class, rules::current);
+        assertEquals("the rules of [stop] are still loading", thrown.getMessage());
+    }
+
+    public void testWaitUntilLoaded() throws Exception {
+        AsyncRules<CharArraySet> neverLoaded = new AsyncRules<>("stop", () -> stopWords("the"), task -> {},
+                AsyncRules.Placeholder.WAIT, TimeValue.timeValueMillis(10));
+        ElasticsearchTimeoutException thrown = expectThrows(ElasticsearchTimeoutException.class, neverLoaded::current);
+        assertEquals("the rules of [stop] were not loaded within [10ms]", thrown.getMessage());
+
+        CountDownLatch slowQuery = new CountDownLatch(1);
+        AsyncRules<CharArraySet> rules = new AsyncRules<>("stop", () -> {
+            try {
+                slowQuery.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return stopWords("the");
+        }, task -> new Thread(task).start(), AsyncRules.Placeholder.WAIT, TimeValue.timeValueMinutes(1));
+
+        Thread query = new Thread(slowQuery::countDown);
+        query.start();
+        assertTrue(rules.current().contains("the"));
+        query.join();
+    }
+
+    public void testFailedLoadIsRetried() {
+        AtomicInteger loads = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<>();
+        AsyncRules<CharArraySet> rules = new AsyncRules<>("stop", () -> {
+            if (loads.incrementAndGet() == 1) {
+                throw new IllegalArgumentException("database down");
+            }
+            return stopWords("the");
+        }, tasks::add, AsyncRules.Placeholder.PASS, TimeValue.timeValueMinutes(1), TimeValue.ZERO);
+        tasks.remove(0).run();
+
+        // the tokens still pass, the load is started again in the background
+        assertNull(rules.current());
+        assertEquals(LoadStats.Source.UNLOADED, rules.getStats().getSource());
+        assertEquals(1, tasks.size());
+        assertNull(rules.current());
+        assertEquals(1, tasks.size());
+
+        tasks.remove(0).run();
+        assertTrue(rules.current().contains("the"));
+        assertEquals(2, loads.get());
+    }
+
+    public void testPlaceholdersAfterFailure() {
+        for (AsyncRules.Placeholder placeholder : AsyncRules.Placeholder.values()) {
+            AsyncRules<CharArraySet> rules = new AsyncRules<>("stop", () -> {
+                throw new IllegalArgumentException("database down");
+            }, Runnable::run, placeholder, TimeValue.timeValueMinutes(1), TimeValue.timeValueMinutes(1));
+
+            assertNull(rules.loaded());
+            switch (placeholder) {
+                case PASS:
+                    assertNull(rules.current());
+                    break;
+                case FAIL:
+                    assertEquals("the rules of [stop] are still loading",
+                            expectThrows(IllegalStateException.class, rules::current).getMessage());
+                    break;
+                default:
+                    assertEquals("database down",
+                            expectThrows(IllegalArgumentException.class, rules::current).getMessage());
+            }
+            assertEquals(LoadStats.Source.UNLOADED, rules.getStats().getSource());
+        }
+    }
+
+    public void testRetryDelay() {
+        AtomicInteger loads = new AtomicInteger();
+        AsyncRules<CharArraySet> rules = new AsyncRules<>("stop", () -> {
+            loads.incrementAndGet();
+            throw new IllegalArgumentException("database down");
+        }, Runnable::run, AsyncRules.Placeholder.PASS, TimeValue.timeValueMinutes(1), TimeValue.timeValueMinutes(1));
+
+        // every analysis uses the rules, the database is not queried as often
+        for (int i = 0; i < 10; i++) {
+            assertNull(rules.current());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    public void testSettings() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.stop_uber_test.type", "uber_stop")
+                .put("index.analysis.filter.stop_uber_test.async", true)
+                .put("index.analysis.filter.stop_uber_test.async_placeholder", "pass")
+                .putArray("index.analysis.filter.stop_uber_test.stopwords", "the")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        // without a thread pool, the rules are loaded right away
+        TokenFilterFactory tokenFilter = AnalysisTestsHelper.createTestAnalysis(settings,
+                new UberTokenFiltersPlugin()).tokenFilter.get("stop_uber_test");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the quick fox"));
+        assertTokenStreamContents(tokenFilter.create(tokenizer), new String[] {"quick", "fox"});
+
+        Settings unknown = Settings.builder().put(settings)
+                .put("index.analysis.filter.stop_uber_test.async_placeholder", "skip")
+                .build();
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(unknown, new UberTokenFiltersPlugin()));
+        assertEquals("Unknown async_placeholder [skip], expected one of [wait, pass, fail]", thrown.getMessage());
+
+        Settings lazy = Settings.builder().put(settings)
+                .put("index.analysis.filter.stop_uber_test.lazy", true)
+                .build();
+        thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(lazy, new UberTokenFiltersPlugin()));
+        assertEquals("rules are loaded either lazily or asynchronously, not both", thrown.getMessage());
+    }
+
+    private static RefreshableRules<CharArraySet> stopWords(String... words) {
+        RefreshableRules<CharArraySet> rules = new RefreshableRules<>(
+                CharArraySet.unmodifiableSet(new CharArraySet(Arrays.asList(words), false)), null, null);
+        rules.setStats(new LoadStats(LoadStats.Source.SETTINGS, 0, 0, 0, 0, 0, 0));
+        return rules;
+    }
+
+    private static List<String> analyze(Tokenizer tokenizer, TokenStream stream, String text) throws IOException {
+        tokenizer.setReader(new StringReader(text));
+
+        List<String> tokens = new ArrayList<>();
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(term.toString());
+        }
+        stream.end();
+        stream.close();
+        return tokens;
+    }
+}
@@ -0,0 +1,153 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+
+/**
+ * Tests of the rules loaded on the first use of their filter ({@code lazy} setting), served by a local stand-in
+ * for an object store
+ */
+@SuppressForbidden(reason = "uses the JDK http server as object store")
+public class LazyRulesTests extends ESTestCase {
+
+    private HttpServer server;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private volatile boolean available = true;
+
+    private UberFiltersService service;
+    private Settings nodeSettings;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        nodeSettings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        service = new UberFiltersService(nodeSettings);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        service.close();
+        server.stop(0);
+        super.tearDown();
+    }
+
+    public void testLoadedOnFirstUse() throws Exception {
+        TokenFilterFactory factory = createFilter(true);
+        assertTrue(requests.isEmpty());
+        assertTrue(service.getFilterStats().isEmpty());
+
+        // concurrent first uses wait for a single load
+        int threads = randomIntBetween(2, 8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> users = new ArrayList<>();
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread user = new Thread(() -> {
+                try {
+                    start.await();
+                    assertAnalyzed(factory, "foo bar baz", "baz");
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            });
+            user.start();
+            users.add(user);
+        }
+        start.countDown();
+        for (Thread user : users) {
+            user.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals("[HEAD /rules/stopwords.txt, GET /rules/stopwords.txt]", requests.toString());
+        assertEquals(1, service.getFilterStats().size());
+    }
+
+    public void testFailedLoadIsRetried() throws IOException {
+        available = false;
+        TokenFilterFactory factory = createFilter(true);
+
+        // no snapshot to restore either
+        expectThrows(UncheckedIOException.class, () -> assertAnalyzed(factory, "foo bar baz", "baz"));
+
+        available = true;
+        assertAnalyzed(factory, "foo bar baz", "baz");
+    }
+
+    public void testEager() throws IOException {
+        createFilter(false);
+        assertEquals("[HEAD /rules/stopwords.txt, GET /rules/stopwords.txt]", requests.toString());
+    }
+
+    private TokenFilterFactory createFilter(boolean lazy) throws IOException {
+        InetSocketAddress address = server.getAddress();
+        Settings filterSettings = Settings.builder()
+                .put("s3.endpoint", "http://" + address.getHostString() + ":" + address.getPort())
+                .put("s3.bucket", "rules")
+                .put("s3.key", "stopwords.txt")
+                .put("lazy", lazy)
+                .build();
+        return new UberStopTokenFilterFactory(IndexSettingsModule.newIndexSettings("test", nodeSettings),
+                new Environment(nodeSettings), "stop", filterSettings, service);
+    }
+
+    private static void assertAnalyzed(TokenFilterFactory factory, String text, String... tokens) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        assertTokenStreamContents(factory.create(tokenizer), tokens);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath());
+            if (!available) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            byte[] content = "foo\nbar\n".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("ETag", "\"stopwords\"");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
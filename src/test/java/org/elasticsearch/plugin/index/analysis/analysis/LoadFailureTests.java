@@ -0,0 +1,108 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.loader.DatabaseTermLoaderTests;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+
+/**
+ * Tests of the filters whose rules cannot be loaded, with {@code strict} enabled or not, and with or without a
+ * snapshot of the rules on disk. The rules come from a driver serving an in-memory table.
+ */
+public class LoadFailureTests extends ESTestCase {
+
+    private static final String TABLE = "load_failures";
+
+    private DatabaseTermLoaderTests.TableDriver.Table table;
+    private IndexSettings indexSettings;
+    private Environment environment;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        DatabaseTermLoaderTests.TableDriver.register();
+        table = DatabaseTermLoaderTests.TableDriver.addTable(TABLE, "term").row("foo").row("bar");
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        indexSettings = IndexSettingsModule.newIndexSettings("test", settings);
+        // the snapshots are written under the data path of the environment
+        environment = new Environment(settings);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        DatabaseTermLoaderTests.TableDriver.removeTable(TABLE);
+        super.tearDown();
+    }
+
+    public void testStrictFailure() throws IOException {
+        table.setDown(true);
+        UberFiltersService service = service();
+
+        RuntimeException thrown = expectThrows(RuntimeException.class, () -> createFilter(service, true));
+        assertEquals("the database is down", thrown.getCause().getMessage());
+        assertTrue(service.getFilterStats().isEmpty());
+        service.close();
+    }
+
+    public void testSnapshot() throws IOException {
+        UberFiltersService service = service();
+        createFilter(service, false);
+        assertEquals(LoadStats.Source.QUERY, service.getFilterStats().get(0).getLoadStats().getSource());
+        service.close();
+
+        // a node restarting while the database is down
+        table.setDown(true);
+        service = service();
+        UberStopTokenFilterFactory filter = createFilter(service, false);
+        assertEquals(LoadStats.Source.SNAPSHOT, service.getFilterStats().get(0).getLoadStats().getSource());
+        assertFiltered(filter, "fallback", "baz");
+        service.close();
+    }
+
+    public void testStandardParametersFallback() throws IOException {
+        table.setDown(true);
+        UberFiltersService service = service();
+
+        UberStopTokenFilterFactory filter = createFilter(service, false);
+        assertEquals(LoadStats.Source.FALLBACK, service.getFilterStats().get(0).getLoadStats().getSource());
+        assertFiltered(filter, "foo", "bar", "baz");
+        service.close();
+    }
+
+    private UberStopTokenFilterFactory createFilter(UberFiltersService service, boolean strict) throws IOException {
+        return new UberStopTokenFilterFactory(indexSettings, environment, "stop", Settings.builder()
+                .put("query", "select term from " + TABLE)
+                .put("strict", strict)
+                .putArray("stopwords", "fallback")
+                .build(), service);
+    }
+
+    private static UberFiltersService service() {
+        return new UberFiltersService(Settings.builder()
+                .put("uber_filters.jdbc.driver", DatabaseTermLoaderTests.TableDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:table:" + TABLE)
+                .build());
+    }
+
+    private static void assertFiltered(UberStopTokenFilterFactory filter, String... expected) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("foo bar fallback baz"));
+        assertTokenStreamContents(filter.create(tokenizer), expected);
+    }
+}
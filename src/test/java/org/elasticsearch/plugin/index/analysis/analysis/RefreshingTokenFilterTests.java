@@ -0,0 +1,53 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.plugin.rules.RefreshableRules;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link RefreshingTokenFilter}
+ */
+public class RefreshingTokenFilterTests extends ESTestCase {
+
+    public void testRefreshedRulesAppliedOnReset() throws IOException {
+        RefreshableRules<CharArraySet> rules = new RefreshableRules<>(stopWords("the"), null, null);
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new RefreshingTokenFilter<>(tokenizer, rules::get, StopFilter::new);
+
+        assertEquals(Arrays.asList("quick", "a", "fox"), analyze(tokenizer, stream, "the quick a fox"));
+
+        rules.swap(stopWords("a"), "2", null);
+        // the same stream is reused, like analyzers do
+        assertEquals(Arrays.asList("the", "quick", "fox"), analyze(tokenizer, stream, "the quick a fox"));
+    }
+
+    private static CharArraySet stopWords(String... words) {
+        return CharArraySet.unmodifiableSet(new CharArraySet(Arrays.asList(words), false));
+    }
+
+    private static List<String> analyze(Tokenizer tokenizer, TokenStream stream, String text) throws IOException {
+        tokenizer.setReader(new StringReader(text));
+
+        List<String> tokens = new ArrayList<>();
+        CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+        stream.reset();
+        while (stream.incrementToken()) {
+            tokens.add(term.toString());
+        }
+        stream.end();
+        stream.close();
+        return tokens;
+    }
+}
@@ -0,0 +1,159 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.loader.DatabaseTermLoaderTests;
+import org.elasticsearch.plugin.rules.LoadStats;
+import org.elasticsearch.plugin.rules.RuleMemoryBreaker;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of the accounting of the rules, and of their loads, by the {@code uber_filters} circuit breaker. The rules
+ * come from a driver serving an in-memory table.
+ */
+public class RuleMemoryLimitTests extends ESTestCase {
+
+    private static final String TABLE = "memory_rules";
+
+    private DatabaseTermLoaderTests.TableDriver.Table table;
+    private IndexSettings indexSettings;
+    private Environment environment;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        DatabaseTermLoaderTests.TableDriver.register();
+        table = DatabaseTermLoaderTests.TableDriver.addTable(TABLE, "term");
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        indexSettings = IndexSettingsModule.newIndexSettings("test", settings);
+        environment = new Environment(settings);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        DatabaseTermLoaderTests.TableDriver.removeTable(TABLE);
+        super.tearDown();
+    }
+
+    public void testMemoryAccounting() throws IOException {
+        addRows(100);
+        UberFiltersService service = service("1mb");
+        createFilter(service, Settings.EMPTY);
+
+        // the compiled rules remain charged as long as they are used
+        RuleMemoryBreaker breaker = service.getBreaker();
+        assertTrue(breaker.getUsed() > 0);
+        assertEquals(breaker.getUsed(), service.getFilterStats().get(0).getLoadStats().getRamBytesUsed());
+
+        service.getRuleCache().release(indexSettings.getIndex());
+        assertEquals(0, breaker.getUsed());
+        service.close();
+    }
+
+    public void testRulesSharedAcrossIndexVersions() throws IOException {
+        addRows(100);
+        UberFiltersService service = service("1mb");
+        createFilter(service, Settings.builder().put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT).build());
+        long used = service.getBreaker().getUsed();
+
+        // the filter settings of an index come with the version it was created on
+        Settings otherSettings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.V_5_0_0)
+                .put(Environment.PATH_HOME_SETTING.getKey(), environment.settings().get("path.home"))
+                .build();
+        new UberStopTokenFilterFactory(IndexSettingsModule.newIndexSettings("other", otherSettings), environment,
+                "stop", Settings.builder()
+                        .put("query", "select term from " + TABLE)
+                        .put(IndexMetaData.SETTING_VERSION_CREATED, Version.V_5_0_0)
+                        .build(), service);
+        assertEquals(1, service.getRuleCache().size());
+        assertEquals(used, service.getBreaker().getUsed());
+        service.close();
+    }
+
+    public void testMemoryLimit() {
+        // far more rows than the limit allows
+        addRows(100000);
+        UberFiltersService service = service("1mb");
+
+        CircuitBreakingException thrown = expectThrows(CircuitBreakingException.class,
+                () -> createFilter(service, Settings.EMPTY));
+        assertTrue(thrown.getMessage(), thrown.getMessage().startsWith("[uber_filters] Data too large, data for " +
+                "[load of [stop]] would be"));
+        assertEquals(1, service.getBreaker().getTrippedCount());
+        // the rows read until then are released
+        assertEquals(0, service.getBreaker().getUsed());
+        service.close();
+    }
+
+    public void testRefreshOfUnchangedRules() throws Exception {
+        List<Object[]> rows = addRows(20000);
+        ThreadPool threadPool = new ThreadPool(Settings.builder().put("node.name", "test").build(),
+                new FixedExecutorBuilder(Settings.EMPTY, UberFiltersService.LOAD_THREAD_POOL, 1, -1,
+                        "uber_filters.load"));
+        UberFiltersService service = service("-1");
+        service.setThreadPool(threadPool);
+        try {
+            createFilter(service, Settings.builder().put("refresh_interval", "10ms").build());
+            RuleMemoryBreaker breaker = service.getBreaker();
+            long rulesBytes = breaker.getUsed();
+            LoadStats loaded = service.getFilterStats().get(0).getLoadStats();
+
+            // the same rows in another order, as partitioned queries return them
+            Collections.reverse(rows);
+            table.setRows(rows);
+            int rowsRead = DatabaseTermLoaderTests.TableDriver.rowsRead.get();
+            assertBusy(() -> assertTrue(DatabaseTermLoaderTests.TableDriver.rowsRead.get() >= rowsRead + 40000));
+
+            // the rules built by the refreshes are dropped, their rows are no longer charged
+            assertBusy(() -> assertEquals(rulesBytes, breaker.getUsed()));
+            LoadStats current = service.getFilterStats().get(0).getLoadStats();
+            assertEquals(loaded.getTimestamp(), current.getTimestamp());
+            assertEquals(loaded.getLoadTimeNanos(), current.getLoadTimeNanos());
+        } finally {
+            service.close();
+            ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    private List<Object[]> addRows(int count) {
+        List<Object[]> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new Object[] {"term" + i});
+        }
+        table.rows(rows);
+        return rows;
+    }
+    private UberStopTokenFilterFactory createFilter(UberFiltersService service, Settings settings)
+            throws IOException {
+        return new UberStopTokenFilterFactory(indexSettings, environment, "stop", Settings.builder()
+                .put("query", "select term from " + TABLE)
+                .put(settings)
+                .build(), service);
+    }
+
+    private static UberFiltersService service(String limit) {
+        return new UberFiltersService(Settings.builder()
+                .put("uber_filters.jdbc.driver", DatabaseTermLoaderTests.TableDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:table:" + TABLE)
+                .put(RuleMemoryBreaker.LIMIT.getKey(), limit)
+                .build());
+    }
+}
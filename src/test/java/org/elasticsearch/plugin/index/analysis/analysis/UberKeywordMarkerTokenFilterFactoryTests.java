@@ -0,0 +1,77 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.instanceOf;
+
+/**
+ * Unit tests for {@link UberKeywordMarkerTokenFilterFactory}
+ *
+ * Tests are not integration tests, therefore cannot access a database
+ */
+public class UberKeywordMarkerTokenFilterFactoryTests extends ESTestCase {
+
+    public void testKeywordsPattern() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.keyword_uber_test.type", "uber_keyword_marker")
+                .put("index.analysis.filter.keyword_uber_test.keywords_pattern", "sku-[0-9]+|part-[a-z]{2}")
+                .put("index.analysis.filter.keyword_uber_test.ignore_case", true)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        ESTestCase.TestAnalysis analysis = AnalysisTestsHelper.createTestAnalysis
+                (settings, new UberTokenFiltersPlugin());
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("keyword_uber_test");
+        assertThat(tokenFilter, instanceOf(UberKeywordMarkerTokenFilterFactory.class));
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("SKU-123 sku-12a part-ab parts"));
+        TokenStream tokenStream = tokenFilter.create(tokenizer);
+
+        assertThat(tokenStream, instanceOf(AutomatonKeywordMarkerFilter.class));
+        assertEquals(Arrays.asList(true, false, true, false), keywords(tokenStream));
+    }
+
+    public void testKeywordsSet() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.keyword_uber_test.type", "uber_keyword_marker")
+                .putArray("index.analysis.filter.keyword_uber_test.keywords", "running", "jumping")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        ESTestCase.TestAnalysis analysis = AnalysisTestsHelper.createTestAnalysis
+                (settings, new UberTokenFiltersPlugin());
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("keyword_uber_test");
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("running walking"));
+
+        assertEquals(Arrays.asList(true, false), keywords(tokenFilter.create(tokenizer)));
+    }
+
+    private static List<Boolean> keywords(TokenStream tokenStream) throws IOException {
+        List<Boolean> keywords = new ArrayList<>();
+        KeywordAttribute keyword = tokenStream.addAttribute(KeywordAttribute.class);
+        tokenStream.reset();
+        while (tokenStream.incrementToken()) {
+            keywords.add(keyword.isKeyword());
+        }
+        tokenStream.end();
+        tokenStream.close();
+        return keywords;
+    }
+}
@@ -0,0 +1,134 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.plugin.rules.LexiconRules;
+import org.elasticsearch.plugin.rules.RuleCodecs;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+import static org.hamcrest.Matchers.instanceOf;
+
+/**
+ * Unit tests for {@link UberLexiconTokenFilterFactory}
+ *
+ * Tests are not integration tests, therefore cannot access a database
+ */
+public class UberLexiconTokenFilterFactoryTests extends ESTestCase {
+
+    private static final String[] STOP_WORDS = {"the", "a"};
+    private static final String[] KEYWORDS = {"cats", "running"};
+    private static final String[] OVERRIDES = {"running => runn", "flies => fly", "mice => mouse"};
+
+    public void testSameAsChain() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.lexicon.type", "uber_lexicon")
+                .putArray("index.analysis.filter.lexicon.stopwords", STOP_WORDS)
+                .putArray("index.analysis.filter.lexicon.keywords", KEYWORDS)
+                .putArray("index.analysis.filter.lexicon.rules", OVERRIDES)
+                .put("index.analysis.filter.stop.type", "uber_stop")
+                .putArray("index.analysis.filter.stop.stopwords", STOP_WORDS)
+                .put("index.analysis.filter.keywords.type", "uber_keyword_marker")
+                .putArray("index.analysis.filter.keywords.keywords", KEYWORDS)
+                .put("index.analysis.filter.overrides.type", "uber_stemmer_override")
+                .putArray("index.analysis.filter.overrides.rules", OVERRIDES)
+                .put("index.analysis.analyzer.lexicon.tokenizer", "whitespace")
+                .putArray("index.analysis.analyzer.lexicon.filter", "lexicon", "porter_stem")
+                .put("index.analysis.analyzer.chain.tokenizer", "whitespace")
+                .putArray("index.analysis.analyzer.chain.filter", "stop", "keywords", "overrides", "porter_stem")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        TestAnalysis analysis = AnalysisTestsHelper.createTestAnalysis(settings, new UberTokenFiltersPlugin());
+        assertThat(analysis.tokenFilter.get("lexicon"), instanceOf(UberLexiconTokenFilterFactory.class));
+
+        String[] words = {"the", "a", "cats", "running", "flies", "mice", "jumping", "dogs", "The"};
+        for (int i = 0; i < 20; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = randomIntBetween(1, 10); j > 0; j--) {
+                text.append(randomFrom(words)).append(' ');
+            }
+            String expected = tokens(analysis.indexAnalyzers.get("chain").tokenStream("f", text.toString()));
+            assertEquals(text.toString(), expected,
+                    tokens(analysis.indexAnalyzers.get("lexicon").tokenStream("f", text.toString())));
+        }
+
+        // like the stemmer override filter, keywords are not overridden
+        assertEquals("[cats/2, running/1, fly/1, jump/1]",
+                tokens(analysis.indexAnalyzers.get("lexicon").tokenStream("f", "the cats running flies jumping")));
+    }
+
+    public void testQueryRows() throws IOException {
+        LexiconRules.Builder builder = new LexiconRules.Builder(true);
+        builder.add("The", "stop", "");
+        builder.add("Running", "OVERRIDE", "runn");
+        builder.add("running", "override", "ran");
+        builder.add("Cats", "keyword", null);
+        LexiconRules rules = builder.build();
+
+        // the rules are identical once restored from a snapshot
+        byte[] bytes = new byte[1024];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        RuleCodecs.LEXICON.write(out, rules);
+        LexiconRules restored = RuleCodecs.LEXICON.read(new ByteArrayDataInput(bytes, 0, out.getPosition()));
+        assertTrue(restored.isIgnoreCase());
+
+        for (LexiconRules lexicon : new LexiconRules[] {rules, restored}) {
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("the THE running CATS dogs"));
+            assertTokenStreamContents(new LexiconFilter(tokenizer, lexicon), new String[] {"runn", "CATS", "dogs"},
+                    new int[] {3, 1, 1});
+        }
+
+        // no rows
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the cats"));
+        assertTokenStreamContents(new LexiconFilter(tokenizer, new LexiconRules.Builder(false).build()),
+                new String[] {"the", "cats"});
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> builder.add("dogs", "stem", "dog"));
+        assertEquals("Unknown lexicon action [stem] for term [dogs], expected one of [stop, keyword, override]",
+                thrown.getMessage());
+        thrown = expectThrows(IllegalArgumentException.class, () -> builder.add("dogs", "override", ""));
+        assertEquals("lexicon override of term [dogs] has no payload", thrown.getMessage());
+    }
+
+    public void testRequiresRules() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.lexicon.type", "uber_lexicon")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(settings, new UberTokenFiltersPlugin()));
+        assertEquals("uber lexicon filter requires either `query`, `stopwords`, `keywords` or `rules` " +
+                "(or their `_path`) to be configured", thrown.getMessage());
+    }
+
+    private static String tokens(TokenStream tokenStream) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        CharTermAttribute term = tokenStream.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute increment = tokenStream.addAttribute(PositionIncrementAttribute.class);
+        tokenStream.reset();
+        while (tokenStream.incrementToken()) {
+            tokens.add(term + "/" + increment.getPositionIncrement());
+        }
+        tokenStream.end();
+        tokenStream.close();
+        return tokens.toString();
+    }
+}
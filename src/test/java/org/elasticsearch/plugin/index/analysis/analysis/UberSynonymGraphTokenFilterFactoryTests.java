@@ -0,0 +1,43 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+import static org.hamcrest.Matchers.instanceOf;
+
+/**
+ * Unit tests for {@link UberSynonymGraphTokenFilterFactory}
+ */
+public class UberSynonymGraphTokenFilterFactoryTests extends ESTestCase {
+
+    public void testUberSynonymGraphFilter() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.synonym_graph_test.type", "uber_synonym_graph")
+                .putArray("index.analysis.filter.synonym_graph_test.synonyms", "i-pod, i pod => ipod", "universe, cosmos")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        ESTestCase.TestAnalysis analysis = AnalysisTestsHelper.createTestAnalysis
+                (settings, new UberTokenFiltersPlugin());
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("synonym_graph_test");
+        assertThat(tokenFilter, instanceOf(UberSynonymGraphTokenFilterFactory.class));
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("my i pod"));
+        TokenStream tokenStream = tokenFilter.create(tokenizer);
+
+        assertThat(tokenStream, instanceOf(SynonymGraphFilter.class));
+        assertTokenStreamContents(tokenStream, new String[]{"my", "ipod"});
+    }
+}
@@ -1,13 +1,18 @@
 package org.elasticsearch.plugin.index.analysis.analysis;
 
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
 import org.elasticsearch.plugin.UberTokenFiltersPlugin;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.plugin.loader.DatabaseTermLoaderTests;
 import org.elasticsearch.test.ESTestCase;
 
 import java.io.IOException;
+import java.io.StringReader;
 
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
 import static org.hamcrest.Matchers.instanceOf;
 
 /**
@@ -40,4 +45,134 @@ public class UberSynonymTokenFilterFactoryTests extends ESTestCase {
         assertTrue("Should throw exception", thrown.getMessage().startsWith("Required uber_filters. " +
                 "settings are not defined"));
     }
-}
\ No newline at end of file
+
+    public void testColumnsValidation() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.stop_db_test.type", "uber_synonym")
+                .put("index.analysis.filter.stop_db_test.columns", true)
+                .put("index.analysis.filter.stop_db_test.format", "wordnet")
+                .putArray("index.analysis.filter.stop_db_test.synonyms", "universe, cosmos")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(settings, new UberTokenFiltersPlugin()));
+        assertEquals("columns cannot be used with the wordnet format", thrown.getMessage());
+    }
+
+    public void testCompiledRules() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.synonyms.type", "uber_synonym")
+                .put("index.analysis.filter.synonyms.expand", false)
+                .putArray("index.analysis.filter.synonyms.synonyms", "i-pod, i pod => ipod", "universe, cosmos")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        UberSynonymTokenFilterFactory compiler = (UberSynonymTokenFilterFactory) AnalysisTestsHelper
+                .createTestAnalysis(settings, new UberTokenFiltersPlugin()).tokenFilter.get("synonyms");
+
+        DatabaseTermLoaderTests.TableDriver.register();
+        DatabaseTermLoaderTests.TableDriver.blob = compiler.compile();
+        try {
+            Settings nodeSettings = Settings.builder()
+                    .put("uber_filters.jdbc.driver", DatabaseTermLoaderTests.TableDriver.class.getName())
+                    .put("uber_filters.jdbc.url", "jdbc:table:compiled_rules")
+                    .build();
+            Settings compiledSettings = Settings.builder()
+                    .put("index.analysis.filter.synonyms.type", "uber_synonym")
+                    .put("index.analysis.filter.synonyms.expand", false)
+                    .put("index.analysis.filter.synonyms.query", "select rules from compiled_rules")
+                    .put("index.analysis.filter.synonyms.compiled", true)
+                    .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                    .build();
+            TokenFilterFactory tokenFilter = AnalysisTestsHelper.createTestAnalysis(compiledSettings,
+                    new UberTokenFiltersPlugin(nodeSettings)).tokenFilter.get("synonyms");
+
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("my i pod"));
+            assertTokenStreamContents(tokenFilter.create(tokenizer), new String[] {"my", "ipod"});
+
+            // the rules were compiled without expansion
+            Settings expandSettings = Settings.builder().put(compiledSettings)
+                    .put("index.analysis.filter.synonyms.expand", true)
+                    .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                    .build();
+            IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                    () -> AnalysisTestsHelper.createTestAnalysis(expandSettings,
+                            new UberTokenFiltersPlugin(nodeSettings)));
+            assertEquals("rules compiled with settings {expand=false} cannot be used with settings {expand=true}",
+                    thrown.getMessage());
+        } finally {
+            DatabaseTermLoaderTests.TableDriver.blob = null;
+        }
+    }
+
+    public void testWordnetSynsets() throws IOException {
+        DatabaseTermLoaderTests.TableDriver.register();
+        DatabaseTermLoaderTests.TableDriver.addTable("wordnet_synsets", "rule")
+                .row("s(100000001,1,'universe',n,1,0).")
+                .row("s(100000001,2,'cosmos',n,1,0).")
+                .row("s(100000001,3,'macrocosm',n,1,0).")
+                .row("s(100000002,1,'ipod',n,1,0).")
+                .row("s(100000002,2,'i pod',n,1,0).")
+                .row("s(100000003,1,'pod',n,1,0).");
+        try {
+            TokenFilterFactory tokenFilter = AnalysisTestsHelper.createTestAnalysis(wordnetSettings(),
+                    new UberTokenFiltersPlugin(wordnetNodeSettings())).tokenFilter.get("synonyms");
+
+            // the words of a synset map to its first word
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("my cosmos macrocosm i pod"));
+            assertTokenStreamContents(tokenFilter.create(tokenizer),
+                    new String[] {"my", "universe", "universe", "ipod"});
+        } finally {
+            DatabaseTermLoaderTests.TableDriver.removeTable("wordnet_synsets");
+        }
+    }
+
+    public void testInvalidWordnetRule() throws IOException {
+        DatabaseTermLoaderTests.TableDriver.register();
+        DatabaseTermLoaderTests.TableDriver.addTable("wordnet_synsets", "rule")
+                .row("s(100000001,1,'universe',n,1,0).")
+                .row("s(1,2,'cosmos',n,1,0).");
+        try {
+            IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                    () -> AnalysisTestsHelper.createTestAnalysis(wordnetSettings(),
+                            new UberTokenFiltersPlugin(wordnetNodeSettings())));
+            assertEquals("failed to build synonyms", thrown.getMessage());
+            assertEquals("invalid wordnet rule [s(1,2,'cosmos',n,1,0).], expected s(<9 digit synset id>," +
+                    "<word number>,'<word>',...)", thrown.getCause().getMessage());
+        } finally {
+            DatabaseTermLoaderTests.TableDriver.removeTable("wordnet_synsets");
+        }
+    }
+
+    private Settings wordnetSettings() {
+        return Settings.builder()
+                .put("index.analysis.filter.synonyms.type", "uber_synonym")
+                .put("index.analysis.filter.synonyms.format", "wordnet")
+                .put("index.analysis.filter.synonyms.expand", false)
+                .put("index.analysis.filter.synonyms.query", "select rule from wordnet_synsets")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+    }
+
+    private static Settings wordnetNodeSettings() {
+        return Settings.builder()
+                .put("uber_filters.jdbc.driver", DatabaseTermLoaderTests.TableDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:table:wordnet_synsets")
+                .build();
+    }
+
+    public void testCompiledValidation() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.synonyms.type", "uber_synonym")
+                .put("index.analysis.filter.synonyms.compiled", true)
+                .putArray("index.analysis.filter.synonyms.synonyms", "universe, cosmos")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(settings, new UberTokenFiltersPlugin()));
+        assertEquals("compiled rules are loaded by a query or from an object store", thrown.getMessage());
+    }
+}
@@ -0,0 +1,77 @@
+package org.elasticsearch.plugin.index.analysis.analysis;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberTokenFiltersPlugin;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+
+/**
+ * Unit tests of the compact term sets ({@code term_set} setting) of the uber filters
+ *
+ * Tests are not integration tests, therefore cannot access a database
+ */
+public class UberTermSetTokenFilterFactoryTests extends ESTestCase {
+
+    public void testStopFilter() throws IOException {
+        for (String termSet : new String[] {"fst", "mmap"}) {
+            Settings settings = Settings.builder()
+                    .put("index.analysis.filter.stop_uber_test.type", "uber_stop")
+                    .put("index.analysis.filter.stop_uber_test.term_set", termSet)
+                    .put("index.analysis.filter.stop_uber_test.ignore_case", true)
+                    .putArray("index.analysis.filter.stop_uber_test.stopwords", "the", "a")
+                    .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                    .build();
+
+            TokenFilterFactory tokenFilter = AnalysisTestsHelper.createTestAnalysis(settings,
+                    new UberTokenFiltersPlugin()).tokenFilter.get("stop_uber_test");
+
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("The quick fox a day"));
+            assertTokenStreamContents(tokenFilter.create(tokenizer), new String[] {"quick", "fox", "day"});
+        }
+    }
+
+    public void testKeywordMarkerFilter() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.keyword_uber_test.type", "uber_keyword_marker")
+                .put("index.analysis.filter.keyword_uber_test.term_set", "fst")
+                .putArray("index.analysis.filter.keyword_uber_test.keywords", "running")
+                .put("index.analysis.analyzer.test.tokenizer", "whitespace")
+                .putArray("index.analysis.analyzer.test.filter", "keyword_uber_test", "porter_stem")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+
+        TestAnalysis analysis = AnalysisTestsHelper.createTestAnalysis(settings, new UberTokenFiltersPlugin());
+        assertTokenStreamContents(analysis.indexAnalyzers.get("test").tokenStream("field", "running jumping"),
+                new String[] {"running", "jump"});
+    }
+
+    public void testValidation() throws IOException {
+        Settings unknown = Settings.builder()
+                .put("index.analysis.filter.stop_uber_test.type", "uber_stop")
+                .put("index.analysis.filter.stop_uber_test.term_set", "tree")
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(unknown, new UberTokenFiltersPlugin()));
+        assertTrue(thrown.getMessage(), thrown.getMessage().startsWith("Unknown term_set [tree]"));
+
+        Settings suggest = Settings.builder()
+                .put("index.analysis.filter.stop_uber_test.type", "uber_stop")
+                .put("index.analysis.filter.stop_uber_test.term_set", "fst")
+                .put("index.analysis.filter.stop_uber_test.remove_trailing", false)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        thrown = expectThrows(IllegalArgumentException.class,
+                () -> AnalysisTestsHelper.createTestAnalysis(suggest, new UberTokenFiltersPlugin()));
+        assertEquals("remove_trailing cannot be disabled with a compact term_set", thrown.getMessage());
+    }
+}
@@ -0,0 +1,304 @@
+package org.elasticsearch.plugin.loader;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Tests of the lending of the pooled connections and of their statements, with a driver that records the
+ * connections and statements it opens
+ */
+public class ConnectionPoolTests extends ESTestCase {
+
+    public void testBorrowAndRelease() throws SQLException {
+        ConnectionPool pool = pool(Settings.EMPTY);
+
+        PooledConnection first = pool.borrow();
+        PooledConnection second = pool.borrow();
+        assertNotSame(first, second);
+        assertEquals(2, PoolDriver.connections.size());
+
+        // the most recently released connection is lent first
+        pool.release(first, false);
+        pool.release(second, false);
+        assertSame(second, pool.borrow());
+        assertSame(first, pool.borrow());
+        assertEquals(2, PoolDriver.connections.size());
+
+        // broken connections are closed rather than returned
+        pool.release(first, true);
+        assertTrue(PoolDriver.connections.get(0).closed);
+        assertNotSame(first, pool.borrow());
+        assertEquals(3, PoolDriver.connections.size());
+        pool.close();
+    }
+
+    public void testBorrowAfterClose() throws SQLException {
+        ConnectionPool pool = pool(Settings.EMPTY);
+        PooledConnection connection = pool.borrow();
+        pool.close();
+
+        IllegalStateException thrown = expectThrows(IllegalStateException.class, pool::borrow);
+        assertEquals("connection pool to jdbc:pool:test is closed", thrown.getMessage());
+        assertEquals(1, PoolDriver.connections.size());
+
+        // connections lent before are closed when returned
+        pool.release(connection, false);
+        assertTrue(PoolDriver.connections.get(0).closed);
+    }
+
+    public void testCloseClosesIdleConnections() throws SQLException {
+        ConnectionPool pool = pool(Settings.EMPTY);
+        pool.release(pool.borrow(), false);
+        assertFalse(PoolDriver.connections.get(0).closed);
+
+        pool.close();
+        assertTrue(PoolDriver.connections.get(0).closed);
+    }
+
+    public void testEvictIdle() throws Exception {
+        ConnectionPool pool = pool(Settings.builder()
+                .put("uber_filters.jdbc.pool.idle_timeout", "200ms")
+                .build());
+        pool.release(pool.borrow(), false);
+
+        pool.evictIdle();
+        assertFalse(PoolDriver.connections.get(0).closed);
+
+        Thread.sleep(300);
+        pool.evictIdle();
+        assertTrue(PoolDriver.connections.get(0).closed);
+
+        pool.release(pool.borrow(), false);
+        assertEquals(2, PoolDriver.connections.size());
+        pool.close();
+    }
+
+    public void testExpiredConnectionsAreNotLent() throws Exception {
+        ConnectionPool pool = pool(Settings.builder()
+                .put("uber_filters.jdbc.pool.max_lifetime", "10ms")
+                .build());
+        pool.release(pool.borrow(), false);
+
+        Thread.sleep(50);
+        pool.release(pool.borrow(), false);
+        assertEquals(2, PoolDriver.connections.size());
+        assertTrue(PoolDriver.connections.get(0).closed);
+        pool.close();
+    }
+
+    public void testValidation() throws SQLException {
+        ConnectionPool pool = pool(Settings.EMPTY);
+        PooledConnection connection = pool.borrow();
+        pool.release(connection, false);
+
+        // ex: closed by the database while idle
+        PoolDriver.connections.get(0).valid = false;
+        PooledConnection borrowed = pool.borrow();
+        assertNotSame(connection, borrowed);
+        assertTrue(PoolDriver.connections.get(0).closed);
+        assertEquals(2, PoolDriver.connections.size());
+        pool.close();
+    }
+
+    public void testMaxSize() throws SQLException {
+        ConnectionPool pool = pool(Settings.builder()
+                .put("uber_filters.jdbc.pool.max_size", 2)
+                .put("uber_filters.jdbc.pool.acquire_timeout", "10ms")
+                .build());
+        PooledConnection first = pool.borrow();
+        pool.borrow();
+
+        SQLTimeoutException thrown = expectThrows(SQLTimeoutException.class, pool::borrow);
+        assertEquals("no database connection available after 10ms", thrown.getMessage());
+        assertEquals(2, PoolDriver.connections.size());
+
+        // broken or not, a returned connection frees its permit
+        pool.release(first, true);
+        pool.borrow();
+        assertEquals(3, PoolDriver.connections.size());
+        pool.close();
+    }
+
+    public void testFailedConnectionFreesPermit() throws SQLException {
+        ConnectionPool pool = pool(Settings.builder()
+                .put("uber_filters.jdbc.pool.max_size", 1)
+                .put("uber_filters.jdbc.pool.acquire_timeout", "10ms")
+                .build());
+        PoolDriver.down = true;
+        expectThrows(SQLException.class, pool::borrow);
+
+        PoolDriver.down = false;
+        pool.release(pool.borrow(), false);
+        pool.close();
+    }
+
+    public void testStatementCache() throws SQLException {
+        ConnectionPool pool = pool(Settings.builder()
+                .put("uber_filters.jdbc.pool.statement_cache_size", 2)
+                .build());
+        PooledConnection connection = pool.borrow();
+        RecordedConnection recorded = PoolDriver.connections.get(0);
+
+        PreparedStatement a = connection.prepareStatement("select a");
+        PreparedStatement b = connection.prepareStatement("select b");
+        assertSame(a, connection.prepareStatement("select a"));
+        assertEquals(2, recorded.prepared.size());
+
+        // b is the least recently used
+        PreparedStatement c = connection.prepareStatement("select c");
+        assertEquals(3, recorded.prepared.size());
+        assertEquals("[select b]", recorded.closedStatements.toString());
+        assertSame(a, connection.prepareStatement("select a"));
+        assertSame(c, connection.prepareStatement("select c"));
+        assertNotSame(b, connection.prepareStatement("select b"));
+        assertEquals(4, recorded.prepared.size());
+
+        // the cache survives the return of the connection to the pool
+        pool.release(connection, false);
+        connection = pool.borrow();
+        connection.prepareStatement("select b");
+        assertEquals(4, recorded.prepared.size());
+
+        pool.release(connection, true);
+        assertEquals(4, recorded.closedStatements.size());
+        pool.close();
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        PoolDriver.register();
+        PoolDriver.connections.clear();
+        PoolDriver.down = false;
+    }
+
+    private static ConnectionPool pool(Settings settings) {
+        return new ConnectionPool(Settings.builder()
+                .put("uber_filters.jdbc.driver", PoolDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:pool:test")
+                .put(settings)
+                .build());
+    }
+
+    /**
+     * The state of a connection opened by the {@link PoolDriver}
+     */
+    static class RecordedConnection {
+        volatile boolean valid = true;
+        volatile boolean closed;
+        final List<String> prepared = new ArrayList<>();
+        final List<String> closedStatements = new ArrayList<>();
+    }
+
+    /**
+     * Accepts {@code jdbc:pool:} urls, the connections only prepare statements that do nothing
+     */
+    public static class PoolDriver implements Driver {
+
+        static final List<RecordedConnection> connections = new CopyOnWriteArrayList<>();
+        static volatile boolean down;
+
+        private static boolean registered;
+
+        static synchronized void register() throws SQLException {
+            if (!registered) {
+                DriverManager.registerDriver(new PoolDriver());
+                registered = true;
+            }
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            if (down) {
+                throw new SQLException(url + " is down");
+            }
+            RecordedConnection recorded = new RecordedConnection();
+            connections.add(recorded);
+            return proxy(Connection.class, (method, args) -> {
+                switch (method) {
+                    case "isValid":
+                        return recorded.valid && !recorded.closed;
+                    case "close":
+                        recorded.closed = true;
+                        return null;
+                    case "prepareStatement":
+                        String sql = (String) args[0];
+                        recorded.prepared.add(sql);
+                        return proxy(PreparedStatement.class, (statementMethod, statementArgs) -> {
+                            if (statementMethod.equals("close")) {
+                                recorded.closedStatements.add(sql);
+                            }
+                            return null;
+                        });
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, Handler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                    (proxy, method, args) -> {
+                        Object result = handler.handle(method.getName(), args);
+                        if (result == null && method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        return result;
+                    });
+        }
+
+        @FunctionalInterface
+        private interface Handler {
+            Object handle(String method, Object[] args) throws SQLException;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:pool:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
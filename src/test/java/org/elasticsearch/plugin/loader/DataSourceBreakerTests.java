@@ -0,0 +1,71 @@
+package org.elasticsearch.plugin.loader;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+public class DataSourceBreakerTests extends ESTestCase {
+
+    private long now;
+
+    public void testOpensAfterConsecutiveFailures() throws SQLException {
+        DataSourceBreaker breaker = new DataSourceBreaker("test", 3, TimeValue.timeValueMinutes(1), () -> now);
+        SQLException failure = new SQLException("down");
+
+        breaker.onFailure(failure);
+        breaker.onFailure(failure);
+        breaker.onSuccess();
+        breaker.onFailure(failure);
+        breaker.onFailure(failure);
+        breaker.ensureClosed();
+        assertEquals(DataSourceBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(failure);
+        assertEquals(DataSourceBreaker.State.OPEN, breaker.getState());
+        SQLException thrown = expectThrows(SQLTransientConnectionException.class, breaker::ensureClosed);
+        assertTrue(thrown.getMessage(), thrown.getMessage().startsWith("circuit breaker open for test"));
+    }
+
+    public void testHalfOpen() throws SQLException {
+        DataSourceBreaker breaker = new DataSourceBreaker("test", 1, TimeValue.timeValueMinutes(1), () -> now);
+        breaker.onFailure(new SQLException("down"));
+        assertEquals(DataSourceBreaker.State.OPEN, breaker.getState());
+
+        now += TimeValue.timeValueSeconds(59).nanos();
+        expectThrows(SQLTransientConnectionException.class, breaker::ensureClosed);
+
+        // a single query is let through
+        now += TimeValue.timeValueSeconds(1).nanos();
+        breaker.ensureClosed();
+        assertEquals(DataSourceBreaker.State.HALF_OPEN, breaker.getState());
+        expectThrows(SQLTransientConnectionException.class, breaker::ensureClosed);
+
+        // and fails again
+        breaker.onFailure(new SQLException("still down"));
+        assertEquals(DataSourceBreaker.State.OPEN, breaker.getState());
+        expectThrows(SQLTransientConnectionException.class, breaker::ensureClosed);
+
+        now += TimeValue.timeValueMinutes(1).nanos();
+        breaker.ensureClosed();
+        breaker.onSuccess();
+        assertEquals(DataSourceBreaker.State.CLOSED, breaker.getState());
+        breaker.ensureClosed();
+    }
+
+    public void testSkippedQueryOfHalfOpenBreaker() throws SQLException {
+        DataSourceBreaker breaker = new DataSourceBreaker("test", 1, TimeValue.timeValueMinutes(1), () -> now);
+        breaker.onFailure(new SQLException("down"));
+        now += TimeValue.timeValueMinutes(1).nanos();
+        breaker.ensureClosed();
+        assertEquals(DataSourceBreaker.State.HALF_OPEN, breaker.getState());
+
+        // the single query did not reach the data source, the next one is let through
+        breaker.onSkipped();
+        breaker.ensureClosed();
+        assertEquals(DataSourceBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess();
+        assertEquals(DataSourceBreaker.State.CLOSED, breaker.getState());
+    }
+}
@@ -0,0 +1,200 @@
+package org.elasticsearch.plugin.loader;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.set.Sets;
+import org.elasticsearch.test.ESTestCase;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.logging.Logger;
+
+/**
+ * Tests of the named datasources and of the failover of their pools, with a driver that only records the
+ * connections it opens
+ */
+public class DataSourcesTests extends ESTestCase {
+
+    public void testNamedDataSourceSettings() {
+        Settings settings = Settings.builder()
+                .put("uber_filters.jdbc.driver", "org.postgresql.Driver")
+                .put("uber_filters.jdbc.url", "jdbc:postgresql://pg/rules")
+                .put("uber_filters.jdbc.user", "rules")
+                .put("uber_filters.jdbc.pool.max_size", 8)
+                .put("uber_filters.jdbc.query_timeout", "1m")
+                .put("uber_filters.datasources.keywords.driver", "com.mysql.jdbc.Driver")
+                .put("uber_filters.datasources.keywords.url", "jdbc:mysql://replica/products")
+                .put("uber_filters.datasources.keywords.pool.max_size", 2)
+                .put("uber_filters.datasources.synonyms.driver", "org.postgresql.Driver")
+                .put("uber_filters.datasources.synonyms.url", "jdbc:postgresql://synonyms/rules")
+                .build();
+
+        assertEquals(Sets.newHashSet("keywords", "synonyms"), DataSources.names(settings));
+
+        Settings poolSettings = DataSources.poolSettings(settings,
+                DataSources.DATASOURCES.get(settings).getAsSettings("keywords"));
+        assertEquals("jdbc:mysql://replica/products", poolSettings.get("uber_filters.jdbc.url"));
+        assertEquals(2, (int) ConnectionPool.MAX_SIZE.get(poolSettings));
+        // inherited from the default datasource, except the credentials
+        assertEquals("1m", ConnectionPool.QUERY_TIMEOUT.get(poolSettings).toString());
+        assertNull(poolSettings.get("uber_filters.jdbc.user"));
+
+        DataSources dataSources = new DataSources(settings);
+        assertEquals("jdbc:postgresql://pg/rules", dataSources.get(null).getUrl());
+        assertEquals("jdbc:mysql://replica/products", dataSources.get("keywords").getUrl());
+        assertEquals("com.mysql.jdbc.Driver", dataSources.get("keywords").getDriver());
+        assertEquals("jdbc:postgresql://synonyms/rules", dataSources.get("synonyms").getUrl());
+        assertEquals("", dataSources.get("synonyms").getUser());
+        assertNotSame(dataSources.get("synonyms").getBreaker(), dataSources.get(null).getBreaker());
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> dataSources.get("products"));
+        assertEquals("Unknown datasource [products], expected one of [keywords, synonyms]", thrown.getMessage());
+        dataSources.close();
+    }
+
+    public void testDataSourceRequiresUrl() {
+        Settings settings = Settings.builder()
+                .put("uber_filters.jdbc.driver", "org.postgresql.Driver")
+                .put("uber_filters.jdbc.url", "jdbc:postgresql://pg/rules")
+                .put("uber_filters.datasources.keywords.pool.max_size", 2)
+                .build();
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> new DataSources(settings));
+        assertEquals("datasource [keywords] requires both uber_filters.datasources.keywords.driver and " +
+                "uber_filters.datasources.keywords.url", thrown.getMessage());
+    }
+
+    public void testFailoverToReplica() throws SQLException {
+        RecordingDriver.register();
+        RecordingDriver.down.add("jdbc:recording:primary");
+
+        ConnectionPool pool = new ConnectionPool(Settings.builder()
+                .put("uber_filters.jdbc.driver", RecordingDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:recording:primary")
+                .putArray("uber_filters.jdbc.replicas", "jdbc:recording:replica1", "jdbc:recording:replica2")
+                .put("uber_filters.jdbc.breaker.reset_timeout", "1h")
+                .build());
+
+        PooledConnection first = pool.borrow();
+        PooledConnection second = pool.borrow();
+        assertEquals("[jdbc:recording:replica1, jdbc:recording:replica1]", RecordingDriver.opened.toString());
+
+        // the replica keeps being used until the reset timeout, even though the primary is back
+        RecordingDriver.down.clear();
+        RecordingDriver.down.add("jdbc:recording:replica1");
+        pool.release(first, true);
+        pool.release(second, true);
+        pool.borrow();
+        assertEquals("[jdbc:recording:replica1, jdbc:recording:replica1, jdbc:recording:replica2]",
+                RecordingDriver.opened.toString());
+
+        RecordingDriver.down.add("jdbc:recording:primary");
+        RecordingDriver.down.add("jdbc:recording:replica2");
+        SQLException thrown = expectThrows(SQLException.class, pool::borrow);
+        assertEquals("jdbc:recording:replica2 is down", thrown.getMessage());
+        assertEquals(2, thrown.getSuppressed().length);
+        pool.close();
+    }
+
+    public void testRetriesPrimaryAfterResetTimeout() throws SQLException {
+        RecordingDriver.register();
+        RecordingDriver.down.add("jdbc:recording:primary");
+
+        ConnectionPool pool = new ConnectionPool(Settings.builder()
+                .put("uber_filters.jdbc.driver", RecordingDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:recording:primary")
+                .putArray("uber_filters.jdbc.replicas", "jdbc:recording:replica1")
+                .put("uber_filters.jdbc.breaker.reset_timeout", "0s")
+                .build());
+
+        pool.release(pool.borrow(), true);
+        RecordingDriver.down.clear();
+        pool.release(pool.borrow(), true);
+        assertEquals("[jdbc:recording:replica1, jdbc:recording:primary]", RecordingDriver.opened.toString());
+        pool.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        RecordingDriver.down.clear();
+        RecordingDriver.opened.clear();
+        super.tearDown();
+    }
+
+    /**
+     * Accepts {@code jdbc:recording:} urls, the connections do nothing
+     */
+    public static class RecordingDriver implements Driver {
+
+        static final Set<String> down = new CopyOnWriteArraySet<>();
+        static final List<String> opened = new CopyOnWriteArrayList<>();
+
+        private static boolean registered;
+
+        static synchronized void register() throws SQLException {
+            if (!registered) {
+                DriverManager.registerDriver(new RecordingDriver());
+                registered = true;
+            }
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            if (down.contains(url)) {
+                throw new SQLException(url + " is down");
+            }
+            opened.add(url);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("isValid")) {
+                            return true;
+                        }
+                        return method.getReturnType() == boolean.class ? false : null;
+                    });
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:recording:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
@@ -0,0 +1,636 @@
+package org.elasticsearch.plugin.loader;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tests of the queries of the database loader, with a driver that serves an in-memory table
+ */
+public class DatabaseTermLoaderTests extends ESTestCase {
+
+    private static final int ROWS = 100;
+
+    public void testPartitionedQuery() {
+        TableDriver.register();
+        int partitions = randomIntBetween(2, 8);
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term, id from terms")
+                .put("partition_column", "id")
+                .put("partitions", partitions)
+                .build(), pool(2), task -> new Thread(task).start());
+
+        List<String> terms = new ArrayList<>();
+        loader.streamTerms(terms::add);
+        assertEquals(expectedTerms(), new HashSet<>(terms));
+        assertEquals(ROWS + 1, terms.size());
+        assertEquals(ROWS + 1, loader.getLastRowCount());
+
+        assertEquals(partitions, TableDriver.queries.size());
+        Set<Object> queried = new HashSet<>();
+        for (Object[] query : TableDriver.queries) {
+            assertEquals("select * from (select term, id from terms) uber_partition where coalesce(mod(abs(id), " +
+                    partitions + "), 0) = ?", query[0]);
+            queried.add(query[1]);
+        }
+        assertEquals(partitions, queried.size());
+        // one connection per concurrent partition, no more than the pool lends
+        assertTrue(TableDriver.maxConcurrentQueries.get() <= 2);
+
+        List<String[]> rows = new ArrayList<>();
+        loader.streamRows(2, row -> rows.add(row.clone()));
+        assertEquals(ROWS + 1, rows.size());
+    }
+
+    public void testPartitionsOfConcurrentLoads() throws SQLException {
+        TableDriver.register();
+        ConnectionPool pool = new ConnectionPool(Settings.builder()
+                .put("uber_filters.jdbc.driver", TableDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:table:terms")
+                .put("uber_filters.jdbc.pool.max_size", 2)
+                .put("uber_filters.jdbc.pool.acquire_timeout", "100ms")
+                .build());
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term, id from terms")
+                .put("partition_column", "id")
+                .put("partitions", 8)
+                .build(), pool, task -> new Thread(task).start());
+
+        // another load uses one of the connections, the partitions run one at a time on the other one instead of
+        // waiting for it longer than the acquire timeout
+        PooledConnection connection = pool.borrow();
+        List<String> terms = new ArrayList<>();
+        loader.streamTerms(term -> {
+            if (terms.isEmpty()) {
+                sleepQuietly(200);
+            }
+            terms.add(term);
+        });
+        assertEquals(expectedTerms(), new HashSet<>(terms));
+        assertEquals(8, TableDriver.queries.size());
+        assertEquals(1, TableDriver.maxConcurrentQueries.get());
+
+        pool.release(connection, false);
+        pool.close();
+    }
+
+    public void testPartitionedGroups() {
+        TableDriver.register();
+        // rules spanning several rows, partitioned by their group
+        TableDriver.Table table = TableDriver.addTable("groups", "group_id", "term");
+        int groups = 8;
+        int groupSize = 50;
+        for (int group = 0; group < groups; group++) {
+            for (int i = 0; i < groupSize; i++) {
+                table.row(String.valueOf(group), "term" + group + "_" + i);
+            }
+        }
+        try {
+            DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                    .put("query", "select group_id, term from groups")
+                    .put("partition_column", "group_id")
+                    .put("partitions", 4)
+                    .build(), pool(4, "groups"), task -> new Thread(task).start());
+
+            // the first row waits for all the partitions to be read concurrently
+            List<String> groupIds = new ArrayList<>();
+            loader.streamRows(2, row -> {
+                if (groupIds.isEmpty()) {
+                    awaitConcurrentQueries(4);
+                }
+                groupIds.add(row[0]);
+            });
+            assertEquals(groups * groupSize, groupIds.size());
+            // the rows of a group are never interleaved with the rows of the other partitions
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < groupIds.size(); i += groupSize) {
+                String group = groupIds.get(i);
+                assertTrue("group " + group + " is split", seen.add(group));
+                assertEquals(Collections.nCopies(groupSize, group), groupIds.subList(i, i + groupSize));
+            }
+
+            // the terms are the first column, the group id
+            TableDriver.maxConcurrentQueries.set(0);
+            List<String> terms = new ArrayList<>();
+            loader.streamTerms(term -> {
+                if (terms.isEmpty()) {
+                    awaitConcurrentQueries(4);
+                }
+                terms.add(term);
+            });
+            assertEquals(groups * groupSize, terms.size());
+            for (int i = 0; i < terms.size(); i += groupSize) {
+                assertEquals(Collections.nCopies(groupSize, terms.get(i)), terms.subList(i, i + groupSize));
+            }
+        } finally {
+            TableDriver.removeTable("groups");
+        }
+    }
+
+    public void testStreaming() {
+        TableDriver.register();
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term, id from terms")
+                .build(), pool(1), Runnable::run);
+
+        // each row is pushed as soon as it is read, before the next one
+        AtomicInteger pushed = new AtomicInteger();
+        loader.streamTerms(term -> assertEquals(pushed.incrementAndGet(), TableDriver.rowsRead.get()));
+        assertEquals(ROWS + 1, pushed.get());
+
+        pushed.set(0);
+        TableDriver.rowsRead.set(0);
+        loader.streamRows(2, row -> assertEquals(pushed.incrementAndGet(), TableDriver.rowsRead.get()));
+        assertEquals(ROWS + 1, pushed.get());
+    }
+
+    public void testAbortedLoadCancelsTheQuery() {
+        TableDriver.register();
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term, id from terms")
+                .build(), pool(1), Runnable::run);
+
+        // ex: the rows exceed the memory limit
+        IllegalStateException thrown = expectThrows(IllegalStateException.class, () -> loader.streamTerms(term -> {
+            throw new IllegalStateException("too many rows");
+        }));
+        assertEquals("too many rows", thrown.getMessage());
+        assertEquals(1, TableDriver.cancelledQueries.get());
+        assertEquals(1, TableDriver.rowsRead.get());
+
+        // the rows are all read otherwise
+        List<String> terms = new ArrayList<>();
+        loader.streamTerms(terms::add);
+        assertEquals(ROWS + 1, terms.size());
+        assertEquals(1, TableDriver.cancelledQueries.get());
+    }
+
+    public void testNotPartitioned() {
+        TableDriver.register();
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term from terms")
+                .put("partition_column", "id")
+                .build(), pool(4), task -> {
+                    throw new AssertionError("a single query runs on the loading thread");
+                });
+
+        List<String> terms = new ArrayList<>();
+        loader.streamTerms(terms::add);
+        assertEquals(expectedTerms(), new HashSet<>(terms));
+        assertEquals(1, TableDriver.queries.size());
+        assertEquals("select term from terms", TableDriver.queries.get(0)[0]);
+    }
+
+    public void testFailedPartition() {
+        TableDriver.register();
+        TableDriver.failingPartition = 1;
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term, id from terms")
+                .put("partition_column", "id")
+                .put("partitions", 3)
+                .build(), pool(3), Runnable::run);
+
+        RuntimeException thrown = expectThrows(RuntimeException.class, () -> loader.streamTerms(term -> {}));
+        assertEquals("partition 1 failed", thrown.getCause().getMessage());
+    }
+
+    public void testBusyPoolDoesNotOpenTheBreaker() throws SQLException {
+        TableDriver.register();
+        ConnectionPool pool = new ConnectionPool(Settings.builder()
+                .put("uber_filters.jdbc.driver", TableDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:table:terms")
+                .put("uber_filters.jdbc.pool.max_size", 1)
+                .put("uber_filters.jdbc.pool.acquire_timeout", "10ms")
+                .put("uber_filters.jdbc.breaker.failure_threshold", 1)
+                .build());
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term from terms")
+                .build(), pool, Runnable::run);
+
+        // the only connection is used by another load
+        PooledConnection connection = pool.borrow();
+        RuntimeException thrown = expectThrows(RuntimeException.class, () -> loader.streamTerms(term -> {}));
+        assertEquals("no database connection available after 10ms", thrown.getCause().getMessage());
+        assertEquals(DataSourceBreaker.State.CLOSED, pool.getBreaker().getState());
+
+        pool.release(connection, false);
+        List<String> terms = new ArrayList<>();
+        loader.streamTerms(terms::add);
+        assertEquals(expectedTerms(), new HashSet<>(terms));
+        pool.close();
+    }
+
+    public void testDeltaQuery() {
+        TableDriver.register();
+        TableDriver.Table table = TableDriver.addTable("stopwords", "stopword", "updated_at", "deleted");
+        table.row("the", "2017-01-01 10:00:00", "0").row("a", "2017-01-02 10:00:00", "0");
+        try {
+            DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                    .put("query", "select stopword, updated_at from stopwords")
+                    .put("delta_query", "select stopword, updated_at, deleted from stopwords where updated_at > ?")
+                    .build(), pool(1, "stopwords"), Runnable::run);
+
+            // no watermark until a full load completed (ex: the rules were restored from a snapshot), the caller
+            // loads the rules in full instead
+            assertFalse(loader.streamChanges((term, deleted) -> fail("no changes without a watermark")));
+            assertEquals(0, TableDriver.queries.size());
+
+            List<String> terms = new ArrayList<>();
+            loader.streamTerms(terms::add);
+            assertEquals(Arrays.asList("the", "a"), terms);
+
+            // an insert and a delete
+            table.row("an", "2017-01-03 10:00:00", "0").row("the", "2017-01-04 10:00:00", "1");
+            Map<String, Boolean> changes = new LinkedHashMap<>();
+            assertTrue(loader.streamChanges(changes::put));
+            Map<String, Boolean> expected = new LinkedHashMap<>();
+            expected.put("an", false);
+            expected.put("the", true);
+            assertEquals(expected, changes);
+            assertEquals(2, loader.getLastRowCount());
+            assertEquals("2017-01-02 10:00:00", TableDriver.queries.get(TableDriver.queries.size() - 1)[1]);
+
+            // the watermark advanced past the changes read
+            changes.clear();
+            assertTrue(loader.streamChanges(changes::put));
+            assertEquals(Collections.emptyMap(), changes);
+            assertEquals("2017-01-04 10:00:00", TableDriver.queries.get(TableDriver.queries.size() - 1)[1]);
+        } finally {
+            TableDriver.removeTable("stopwords");
+        }
+    }
+
+    public void testPartitionSettings() {
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> new DatabaseTermLoader(Settings.builder()
+                        .put("query", "select term from terms")
+                        .put("partitions", 4)
+                        .build(), pool(1), Runnable::run));
+        assertEquals("partitions require a partition_column", thrown.getMessage());
+
+        thrown = expectThrows(IllegalArgumentException.class, () -> new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term from terms")
+                .put("partition_column", "id")
+                .put("partitions", 0)
+                .build(), pool(1), Runnable::run));
+        assertEquals("partitions must be at least 1, got [0]", thrown.getMessage());
+    }
+
+    public void testLoadBlob() {
+        TableDriver.register();
+        TableDriver.blob = new byte[] {1, 2, 3};
+        DatabaseTermLoader loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select rules from compiled_rules")
+                .build(), pool(1), Runnable::run);
+
+        assertArrayEquals(new byte[] {1, 2, 3}, loader.loadBlob());
+        assertEquals(1, loader.getLastRowCount());
+
+        loader = new DatabaseTermLoader(Settings.builder()
+                .put("query", "select term from terms")
+                .build(), pool(1), Runnable::run);
+        TableDriver.blob = null;
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class, loader::loadBlob);
+        assertEquals("query must return a single row of compiled rules", thrown.getMessage());
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        // other tests use the driver too (ex: to serve compiled rules)
+        TableDriver.blob = null;
+        TableDriver.queries.clear();
+        TableDriver.maxConcurrentQueries.set(0);
+        TableDriver.cancelledQueries.set(0);
+        TableDriver.rowsRead.set(0);
+        TableDriver.failingPartition = -1;
+    }
+
+    private static ConnectionPool pool(int maxSize) {
+        return pool(maxSize, "terms");
+    }
+
+    private static ConnectionPool pool(int maxSize, String table) {
+        return new ConnectionPool(Settings.builder()
+                .put("uber_filters.jdbc.driver", TableDriver.class.getName())
+                .put("uber_filters.jdbc.url", "jdbc:table:" + table)
+                .put("uber_filters.jdbc.pool.max_size", maxSize)
+                .build());
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void awaitConcurrentQueries(int queries) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (TableDriver.maxConcurrentQueries.get() < queries && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static Set<String> expectedTerms() {
+        Set<String> terms = new HashSet<>();
+        for (int id = -ROWS / 2; id < ROWS / 2; id++) {
+            terms.add("term" + id);
+        }
+        terms.add("term");
+        return terms;
+    }
+
+    /**
+     * Accepts {@code jdbc:table:} urls, the queries return the terms {@code term<id>} with their id from -50 to 49,
+     * and the term {@code term} without id. Partitioned queries only return the rows of their partition. When a blob
+     * is set, the queries return it as their single row instead.
+     *
+     * The queries to a {@code jdbc:table:<name>} url of a table added by {@link #addTable(String, String...)} return
+     * the rows of the table instead, in order. Their condition {@code <column> > ?} is applied, the other ones are not.
+     */
+    public static class TableDriver implements Driver {
+
+        private static final Pattern PARTITIONS = Pattern.compile("mod\\(abs\\((\\w+)\\), (\\d+)\\)");
+        private static final Pattern SINCE = Pattern.compile("(\\w+) > \\?");
+
+        // the sql and partition of each query run
+        static final List<Object[]> queries = new CopyOnWriteArrayList<>();
+        static final AtomicInteger maxConcurrentQueries = new AtomicInteger();
+        static final AtomicInteger cancelledQueries = new AtomicInteger();
+        // the rows read from the result sets so far
+        public static final AtomicInteger rowsRead = new AtomicInteger();
+        static volatile int failingPartition = -1;
+        public static volatile byte[] blob;
+
+        private static final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+        private static final AtomicInteger concurrentQueries = new AtomicInteger();
+        private static boolean registered;
+
+        public static synchronized void register() {
+            if (!registered) {
+                try {
+                    DriverManager.registerDriver(new TableDriver());
+                } catch (SQLException e) {
+                    throw new AssertionError(e);
+                }
+                registered = true;
+            }
+        }
+
+        /**
+         * Adds a table, the tests using it remove it with {@link #removeTable(String)}
+         */
+        public static Table addTable(String name, String... columns) {
+            Table table = new Table(columns);
+            tables.put(name, table);
+            return table;
+        }
+
+        public static void removeTable(String name) {
+            tables.remove(name);
+        }
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            Table table = tables.get(url.substring("jdbc:table:".length()));
+            DatabaseMetaData metaData = proxy(DatabaseMetaData.class, (method, args) ->
+                    method.equals("getDatabaseProductName") ? "Table" : null);
+            return proxy(Connection.class, (method, args) -> {
+                switch (method) {
+                    case "isValid":
+                    case "getAutoCommit":
+                        return true;
+                    case "getMetaData":
+                        return metaData;
+                    case "prepareStatement":
+                        return statement((String) args[0], table);
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private static PreparedStatement statement(String sql, Table table) {
+            Map<Integer, Object> params = new HashMap<>();
+            return proxy(PreparedStatement.class, (method, args) -> {
+                switch (method) {
+                    case "setObject":
+                    case "setString":
+                        params.put((Integer) args[0], args[1]);
+                        return null;
+                    case "clearParameters":
+                        params.clear();
+                        return null;
+                    case "executeQuery":
+                        return query(sql, params.get(1), table);
+                    case "cancel":
+                        cancelledQueries.incrementAndGet();
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        private static ResultSet query(String sql, Object partition, Table table) throws SQLException {
+            queries.add(new Object[] {sql, partition});
+            if (partition != null && partition.equals(failingPartition)) {
+                throw new SQLException("partition " + partition + " failed");
+            }
+            if (table != null && table.down) {
+                throw new SQLException("the database is down");
+            }
+
+            Matcher since = SINCE.matcher(sql);
+            Object sinceValue = null;
+            if (since.find()) {
+                sinceValue = partition;
+                partition = null;
+            }
+            Matcher matcher = PARTITIONS.matcher(sql);
+            int partitions = matcher.find() ? Integer.parseInt(matcher.group(2)) : 1;
+            List<String> columns = table == null ? Arrays.asList("term", "id") : table.columns;
+            List<Object[]> rows = new ArrayList<>();
+            if (table != null) {
+                int partitionColumn = partition == null ? -1 : columns.indexOf(matcher.group(1));
+                for (Object[] row : table.rows) {
+                    if (sinceValue != null && row[columns.indexOf(since.group(1))].toString()
+                            .compareTo(sinceValue.toString()) <= 0) {
+                        continue;
+                    }
+                    Object value = partitionColumn == -1 ? null : row[partitionColumn];
+                    int rowPartition = value == null ? 0 : Math.abs(Integer.parseInt(value.toString())) % partitions;
+                    if (partition == null || rowPartition == (Integer) partition) {
+                        rows.add(row);
+                    }
+                }
+            } else if (blob != null) {
+                rows.add(new Object[] {blob, null});
+            } else {
+                for (int id = -ROWS / 2; id < ROWS / 2; id++) {
+                    if (partition == null || Math.abs(id) % partitions == (Integer) partition) {
+                        rows.add(new Object[] {"term" + id, String.valueOf(id)});
+                    }
+                }
+                if (partition == null || partition.equals(0)) {
+                    rows.add(new Object[] {"term", null});
+                }
+            }
+
+            maxConcurrentQueries.accumulateAndGet(concurrentQueries.incrementAndGet(), Math::max);
+            int[] next = {-1};
+            ResultSetMetaData metaData = proxy(ResultSetMetaData.class, (method, args) ->
+                    method.equals("getColumnCount") ? columns.size() : null);
+            return proxy(ResultSet.class, (method, args) -> {
+                switch (method) {
+                    case "next":
+                        if (++next[0] < rows.size()) {
+                            rowsRead.incrementAndGet();
+                            return true;
+                        }
+                        return false;
+                    case "getString":
+                    case "getObject":
+                        int column = args[0] instanceof String ? columns.indexOf(args[0]) : (Integer) args[0] - 1;
+                        return rows.get(next[0])[column];
+                    case "getBoolean":
+                        Object flag = rows.get(next[0])[(Integer) args[0] - 1];
+                        return "1".equals(flag) || "true".equals(flag);
+                    case "getBytes":
+                        Object value = rows.get(next[0])[(Integer) args[0] - 1];
+                        return value instanceof String ? ((String) value).getBytes(StandardCharsets.UTF_8) : value;
+                    case "getMetaData":
+                        return metaData;
+                    case "close":
+                        concurrentQueries.decrementAndGet();
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        /**
+         * The rows of a table, in the order they are returned
+         */
+        public static class Table {
+
+            private final List<String> columns;
+            private volatile List<Object[]> rows = new CopyOnWriteArrayList<>();
+            // the queries to the table fail
+            private volatile boolean down;
+
+            Table(String... columns) {
+                this.columns = Arrays.asList(columns);
+            }
+
+            public Table row(Object... values) {
+                assert values.length == columns.size();
+                rows.add(values);
+                return this;
+            }
+
+            public Table rows(List<Object[]> values) {
+                rows.addAll(values);
+                return this;
+            }
+
+            /**
+             * Replaces all the rows at once
+             */
+            public Table setRows(List<Object[]> values) {
+                rows = new CopyOnWriteArrayList<>(values);
+                return this;
+            }
+
+            public void setDown(boolean down) {
+                this.down = down;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, Handler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                    (proxy, method, args) -> {
+                        Object result = handler.handle(method.getName(), args);
+                        if (result == null && method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        if (result == null && method.getReturnType() == int.class) {
+                            return 0;
+                        }
+                        return result;
+                    });
+        }
+
+        @FunctionalInterface
+        private interface Handler {
+            Object handle(String method, Object[] args) throws SQLException;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:table:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
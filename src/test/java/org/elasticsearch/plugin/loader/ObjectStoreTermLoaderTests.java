@@ -0,0 +1,241 @@
+package org.elasticsearch.plugin.loader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.MockSecureSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.plugin.UberFiltersService;
+import org.elasticsearch.plugin.index.analysis.analysis.UberStopTokenFilterFactory;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.lucene.analysis.BaseTokenStreamTestCase.assertTokenStreamContents;
+
+/**
+ * Tests of the object store term loader against a local stand-in for an S3 compatible object store
+ */
+@SuppressForbidden(reason = "uses the JDK http server as object store")
+public class ObjectStoreTermLoaderTests extends ESTestCase {
+
+    private HttpServer server;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    public void testStreamTerms() throws IOException {
+        objects.put("/rules/stop words.txt", bytes("foo\n\n# comment\n  bar  \n"));
+        ObjectStoreTermLoader loader = new ObjectStoreTermLoader(filterSettings("stop words.txt").build(),
+                new ObjectStoreClient(Settings.EMPTY));
+
+        List<String> terms = new ArrayList<>();
+        loader.streamTerms(terms::add);
+        assertEquals("[foo, bar]", terms.toString());
+        assertEquals(4, loader.getLastRowCount());
+        assertEquals("[GET /rules/stop%20words.txt]", requests.toString());
+    }
+
+    public void testGzipRows() throws IOException {
+        objects.put("/rules/overrides.tsv.gz", gzip(bytes("running\trun\n#\tskipped\nflies\t fly \n")));
+        ObjectStoreTermLoader loader = new ObjectStoreTermLoader(filterSettings("overrides.tsv.gz").build(),
+                new ObjectStoreClient(Settings.EMPTY));
+
+        List<String> rows = new ArrayList<>();
+        loader.streamRows(2, row -> rows.add(row[0] + "=" + row[1]));
+        assertEquals("[running=run, flies=fly]", rows.toString());
+
+        objects.put("/rules/overrides.tsv.gz", gzip(bytes("running\n")));
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> loader.streamRows(2, row -> {}));
+        assertEquals("each line must have 2 tab separated columns, got [running]", thrown.getMessage());
+    }
+
+    public void testLoadBlob() throws IOException {
+        byte[] blob = {0, 1, 2, (byte) 0xff};
+        objects.put("/rules/compiled.bin", blob);
+        objects.put("/rules/compiled.bin.gz", gzip(blob));
+
+        for (String key : new String[] {"compiled.bin", "compiled.bin.gz"}) {
+            ObjectStoreTermLoader loader = new ObjectStoreTermLoader(filterSettings(key).build(),
+                    new ObjectStoreClient(Settings.EMPTY));
+            assertArrayEquals(blob, loader.loadBlob());
+            assertEquals(1, loader.getLastRowCount());
+        }
+    }
+
+    public void testVersionIsEtag() {
+        objects.put("/rules/stopwords.txt", bytes("foo\n"));
+        ObjectStoreTermLoader loader = new ObjectStoreTermLoader(filterSettings("stopwords.txt").build(),
+                new ObjectStoreClient(Settings.EMPTY));
+
+        String version = loader.loadVersion();
+        assertEquals(version, loader.loadVersion());
+        objects.put("/rules/stopwords.txt", bytes("bar\n"));
+        assertNotEquals(version, loader.loadVersion());
+
+        // checking the version never transfers the object
+        assertEquals("[HEAD /rules/stopwords.txt, HEAD /rules/stopwords.txt, HEAD /rules/stopwords.txt]",
+                requests.toString());
+
+        UncheckedIOException thrown = expectThrows(UncheckedIOException.class,
+                () -> new ObjectStoreTermLoader(filterSettings("missing.txt").build(),
+                        new ObjectStoreClient(Settings.EMPTY)).loadVersion());
+        assertTrue(thrown.getCause().getMessage(), thrown.getCause().getMessage().contains("status [404]"));
+    }
+
+    public void testSignedRequests() throws IOException {
+        objects.put("/rules/stopwords.txt", bytes("foo\n"));
+        MockSecureSettings secureSettings = new MockSecureSettings();
+        secureSettings.setString("uber_filters.s3.access_key", "access");
+        secureSettings.setString("uber_filters.s3.secret_key", "secret");
+        Settings nodeSettings = Settings.builder()
+                .put("uber_filters.s3.region", "eu-west-1")
+                .setSecureSettings(secureSettings)
+                .build();
+
+        ObjectStoreTermLoader loader = new ObjectStoreTermLoader(filterSettings("stopwords.txt").build(),
+                new ObjectStoreClient(nodeSettings));
+        loader.streamTerms(term -> {});
+
+        assertEquals(1, authorizations.size());
+        assertTrue(authorizations.get(0), authorizations.get(0).matches("AWS4-HMAC-SHA256 " +
+                "Credential=access/\\d{8}/eu-west-1/s3/aws4_request, " +
+                "SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=[0-9a-f]{64}"));
+    }
+
+    public void testValidation() {
+        ObjectStoreClient client = new ObjectStoreClient(Settings.EMPTY);
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> new ObjectStoreTermLoader(Settings.builder().put("s3.key", "stopwords.txt").build(), client));
+        assertEquals("both s3.bucket and s3.key are required to load the rules from an object store",
+                thrown.getMessage());
+
+        thrown = expectThrows(IllegalArgumentException.class,
+                () -> new ObjectStoreTermLoader(filterSettings("stopwords.txt.zst").build(), client));
+        assertEquals("zstd compressed rules are not supported, use gzip instead", thrown.getMessage());
+    }
+
+    public void testFilterRestoresUnchangedObject() throws IOException {
+        objects.put("/rules/stopwords.txt", bytes("foo\nbar\n"));
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        Settings filterSettings = filterSettings("stopwords.txt").build();
+
+        for (int i = 0; i < 2; i++) {
+            // a new node each time, sharing the snapshots on disk
+            UberFiltersService service = new UberFiltersService(settings);
+            TokenFilterFactory factory = new UberStopTokenFilterFactory(
+                    IndexSettingsModule.newIndexSettings("test", settings), new Environment(settings), "stop",
+                    filterSettings, service);
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("foo bar baz"));
+            assertTokenStreamContents(factory.create(tokenizer), new String[] {"baz"});
+            service.close();
+        }
+
+        // the second node found the same ETag, and restored its snapshot
+        assertEquals("[HEAD /rules/stopwords.txt, GET /rules/stopwords.txt, HEAD /rules/stopwords.txt]",
+                requests.toString());
+    }
+
+    public void testQueryAndObjectStore() {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir().toString())
+                .build();
+        Settings filterSettings = filterSettings("stopwords.txt").put("query", "select stopword from stopwords").build();
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> new UberStopTokenFilterFactory(IndexSettingsModule.newIndexSettings("test", settings),
+                        new Environment(settings), "stop", filterSettings, new UberFiltersService(settings)));
+        assertEquals("rules are loaded either by a query or from an object store (s3.*), not both",
+                thrown.getMessage());
+    }
+
+    private Settings.Builder filterSettings(String key) {
+        InetSocketAddress address = server.getAddress();
+        return Settings.builder()
+                .put("s3.endpoint", "http://" + address.getHostString() + ":" + address.getPort())
+                .put("s3.bucket", "rules")
+                .put("s3.key", key);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            requests.add(method + " " + exchange.getRequestURI().getRawPath());
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization != null) {
+                authorizations.add(authorization);
+            }
+
+            byte[] content = objects.get(exchange.getRequestURI().getPath());
+            if (content == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().add("ETag", "\"" + MessageDigests.toHexString(
+                    MessageDigests.md5().digest(content)) + "\"");
+            if (method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,72 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.fst.FST;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link CompiledRules}
+ */
+public class CompiledRulesTests extends ESTestCase {
+
+    private static final CharArraySet TERMS = new CharArraySet(Arrays.asList("foo", "bar"), true);
+
+    public void testRoundTrip() throws IOException {
+        StemmerOverrideRules.Builder builder = new StemmerOverrideRules.Builder();
+        builder.add("mice", "mouse");
+        byte[] blob = CompiledRules.write("stemmer_override", Collections.emptyMap(), builder.build(),
+                RuleCodecs.STEMMER_OVERRIDES);
+
+        StemmerOverrideRules read = CompiledRules.read(blob, "stemmer_override", Collections.emptyMap(),
+                RuleCodecs.STEMMER_OVERRIDES);
+        FST.BytesReader reader = read.getMap().getBytesReader();
+        BytesRef override = read.getMap().get("mice".toCharArray(), 4, new FST.Arc<>(), reader);
+        assertEquals("mouse", override.utf8ToString());
+
+        CharArraySet terms = CompiledRules.read(CompiledRules.write("stop", settings("ignore_case", "true"), TERMS,
+                RuleCodecs.charArraySet(true)), "stop", settings("ignore_case", "true"), RuleCodecs.charArraySet(true));
+        assertEquals(2, terms.size());
+        assertTrue(terms.contains("FOO"));
+    }
+
+    public void testOtherType() throws IOException {
+        byte[] blob = CompiledRules.write("stop", Collections.emptyMap(), TERMS, RuleCodecs.charArraySet(true));
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> CompiledRules.read(blob, "keyword_marker", Collections.emptyMap(), RuleCodecs.charArraySet(true)));
+        assertEquals("compiled rules are [stop] rules, expected [keyword_marker] rules", thrown.getMessage());
+    }
+
+    public void testOtherSettings() throws IOException {
+        Map<String, String> settings = settings("ignore_case", "true");
+        settings.put("0.type", "whitespace");
+        byte[] blob = CompiledRules.write("stop", settings, TERMS, RuleCodecs.charArraySet(true));
+
+        IllegalArgumentException thrown = expectThrows(IllegalArgumentException.class,
+                () -> CompiledRules.read(blob, "stop", settings("ignore_case", "true"), RuleCodecs.charArraySet(true)));
+        assertEquals("rules compiled with settings {0.type=whitespace, ignore_case=true} cannot be used with " +
+                "settings {ignore_case=true}", thrown.getMessage());
+    }
+
+    public void testCorrupted() throws IOException {
+        byte[] blob = CompiledRules.write("stop", Collections.emptyMap(), TERMS, RuleCodecs.charArraySet(true));
+        blob[blob.length - 1] ^= 0xFF;
+
+        expectThrows(CorruptIndexException.class,
+                () -> CompiledRules.read(blob, "stop", Collections.emptyMap(), RuleCodecs.charArraySet(true)));
+    }
+
+    private static Map<String, String> settings(String key, String value) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put(key, value);
+        return settings;
+    }
+}
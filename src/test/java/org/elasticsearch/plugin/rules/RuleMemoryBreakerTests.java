@@ -0,0 +1,87 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.monitor.jvm.JvmInfo;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link RuleMemoryBreaker}, and the accounting of {@link RefreshableRules}
+ */
+public class RuleMemoryBreakerTests extends ESTestCase {
+
+    public void testLimit() {
+        RuleMemoryBreaker breaker = new RuleMemoryBreaker(1000, 1.0);
+        breaker.addEstimateBytesAndMaybeBreak(600, "first");
+
+        CircuitBreakingException thrown = expectThrows(CircuitBreakingException.class,
+                () -> breaker.addEstimateBytesAndMaybeBreak(500, "second"));
+        assertEquals("[uber_filters] Data too large, data for [second] would be [1100/1kb], which is larger than " +
+                "the limit of [1000/1000b]", thrown.getMessage());
+        assertEquals(1, breaker.getTrippedCount());
+        // nothing was added
+        assertEquals(600, breaker.getUsed());
+
+        breaker.addWithoutBreaking(-600);
+        breaker.addEstimateBytesAndMaybeBreak(1000, "third");
+        assertEquals(1000, breaker.getUsed());
+    }
+
+    public void testOverhead() {
+        RuleMemoryBreaker breaker = new RuleMemoryBreaker(1000, 2.0);
+        breaker.addEstimateBytesAndMaybeBreak(500, "first");
+        expectThrows(CircuitBreakingException.class, () -> breaker.addEstimateBytesAndMaybeBreak(1, "second"));
+    }
+
+    public void testDisabled() {
+        RuleMemoryBreaker breaker = new RuleMemoryBreaker(Settings.builder()
+                .put(RuleMemoryBreaker.LIMIT.getKey(), -1)
+                .build());
+        breaker.addEstimateBytesAndMaybeBreak(Long.MAX_VALUE / 2, "huge");
+        assertEquals(Long.MAX_VALUE / 2, breaker.getUsed());
+        assertEquals(0, breaker.getTrippedCount());
+    }
+
+    public void testSettings() {
+        RuleMemoryBreaker breaker = new RuleMemoryBreaker(Settings.EMPTY);
+        assertEquals((long) (JvmInfo.jvmInfo().getMem().getHeapMax().getBytes() * 0.4), breaker.getLimit());
+        assertEquals(1.0, breaker.getOverhead(), 0.0);
+
+        breaker = new RuleMemoryBreaker(Settings.builder()
+                .put(RuleMemoryBreaker.LIMIT.getKey(), "10mb")
+                .put(RuleMemoryBreaker.OVERHEAD.getKey(), 1.5)
+                .build());
+        assertEquals(10 * 1024 * 1024, breaker.getLimit());
+        assertEquals(1.5, breaker.getOverhead(), 0.0);
+    }
+
+    public void testAccountedRules() {
+        CharArraySet small = new CharArraySet(Arrays.asList("foo", "bar"), false);
+        CharArraySet large = new CharArraySet(Arrays.asList("foo", "bar", "baz", "qux", "quux"), false);
+        long smallBytes = RuleRamUsage.ramBytesUsed(small);
+        long largeBytes = RuleRamUsage.ramBytesUsed(large);
+
+        RuleMemoryBreaker breaker = new RuleMemoryBreaker(smallBytes + largeBytes - 1, 1.0);
+        RefreshableRules<CharArraySet> rules = new RefreshableRules<>(null, null, null);
+        rules.account(breaker, "rules of [stop]");
+
+        rules.swap(small, null, null);
+        assertEquals(smallBytes, breaker.getUsed());
+        assertEquals(smallBytes, rules.ramBytesUsed());
+
+        // the current rules are released once the new ones are charged, both do not fit
+        expectThrows(CircuitBreakingException.class, () -> rules.swap(large, null, null));
+        assertSame(small, rules.get());
+        assertEquals(smallBytes, breaker.getUsed());
+
+        rules.swap(new CharArraySet(Arrays.asList("foo"), false), null, null);
+        rules.swap(large, null, null);
+        assertEquals(largeBytes, breaker.getUsed());
+
+        rules.close();
+        assertEquals(0, breaker.getUsed());
+    }
+}
@@ -0,0 +1,34 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.analysis.CharArraySet;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link TermSetChanges}
+ */
+public class TermSetChangesTests extends ESTestCase {
+
+    public void testApplyChanges() {
+        CharArraySet current = CharArraySet.unmodifiableSet(new CharArraySet(Arrays.asList("foo", "bar"), true));
+
+        TermSetChanges changes = new TermSetChanges(true);
+        changes.add("baz", false);
+        changes.add("FOO", true);
+        // last change wins
+        changes.add("qux", false);
+        changes.add("qux", true);
+
+        CharArraySet updated = changes.applyTo(current);
+
+        assertEquals(2, updated.size());
+        assertTrue(updated.contains("bar"));
+        assertTrue(updated.contains("BAZ"));
+        assertFalse(updated.contains("foo"));
+        assertFalse(updated.contains("qux"));
+        // the shared set is left untouched
+        assertTrue(current.contains("foo"));
+        assertFalse(current.contains("baz"));
+    }
+}
@@ -0,0 +1,126 @@
+package org.elasticsearch.plugin.rules;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests for {@link TermSet}
+ */
+// the mapped files must be the only files of their directory, and deletable while open
+@LuceneTestCase.SuppressFileSystems({"ExtrasFS", "WindowsFS"})
+public class TermSetTests extends ESTestCase {
+
+    private static final List<String> TERMS = Arrays.asList("foo", "foobar", "Bar", "ünïcode", "");
+
+    public void testFst() throws IOException {
+        assertTerms(builder(false).buildFst(), false);
+        assertTerms(builder(true).buildFst(), true);
+    }
+
+    public void testMapped() throws IOException {
+        Path directory = createTempDir();
+        assertTerms(builder(false).buildMapped(directory), false);
+        assertTerms(builder(true).buildMapped(directory), true);
+
+        // the files are deleted once mapped
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    public void testEmpty() throws IOException {
+        for (TermSet termSet : Arrays.asList(new TermSet.Builder(false).buildFst(),
+                new TermSet.Builder(false).buildMapped(createTempDir()))) {
+            assertEquals(0, termSet.size());
+            assertFalse(contains(termSet.newMatcher(), "foo"));
+        }
+    }
+
+    public void testRandomTerms() throws IOException {
+        List<String> terms = new ArrayList<>();
+        TermSet.Builder builder = new TermSet.Builder(false);
+        for (int i = 0; i < 1000; i++) {
+            String term = randomUnicodeOfLengthBetween(1, 10);
+            terms.add(term);
+            builder.add(term);
+        }
+        TermSet fst = builder.buildFst();
+        TermSet mapped = builder.buildMapped(createTempDir());
+
+        TermSet.Matcher fstMatcher = fst.newMatcher();
+        TermSet.Matcher mappedMatcher = mapped.newMatcher();
+        for (String term : terms) {
+            assertTrue(contains(fstMatcher, term));
+            assertTrue(contains(mappedMatcher, term));
+        }
+        for (int i = 0; i < 1000; i++) {
+            String term = randomUnicodeOfLengthBetween(1, 10);
+            assertEquals(terms.contains(term), contains(fstMatcher, term));
+            assertEquals(terms.contains(term), contains(mappedMatcher, term));
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        Path directory = createTempDir();
+        for (Path path : Arrays.asList(null, directory)) {
+            RuleCodec<TermSet> codec = RuleCodecs.termSet(true, path);
+            TermSet termSet = builder(true).buildFst();
+
+            byte[] bytes = new byte[1024];
+            ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+            codec.write(out, termSet);
+
+            TermSet read = codec.read(new ByteArrayDataInput(bytes, 0, out.getPosition()));
+            assertTerms(read, true);
+
+            List<BytesRef> expected = new ArrayList<>();
+            termSet.forEachTerm(term -> expected.add(BytesRef.deepCopyOf(term)));
+            List<BytesRef> actual = new ArrayList<>();
+            read.forEachTerm(term -> actual.add(BytesRef.deepCopyOf(term)));
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static TermSet.Builder builder(boolean ignoreCase) {
+        TermSet.Builder builder = new TermSet.Builder(ignoreCase);
+        for (String term : TERMS) {
+            builder.add(term);
+        }
+        // duplicates are ignored
+        builder.add("foo".toCharArray());
+        return builder;
+    }
+
+    private static void assertTerms(TermSet termSet, boolean ignoreCase) throws IOException {
+        assertEquals(TERMS.size(), termSet.size());
+        assertEquals(ignoreCase, termSet.isIgnoreCase());
+
+        TermSet.Matcher matcher = termSet.newMatcher();
+        for (String term : TERMS) {
+            assertTrue(term, contains(matcher, term));
+        }
+        assertFalse(contains(matcher, "fo"));
+        assertFalse(contains(matcher, "foob"));
+        assertFalse(contains(matcher, "foobarz"));
+        assertFalse(contains(matcher, "zzz"));
+        assertEquals(ignoreCase, contains(matcher, "BAR"));
+        assertEquals(ignoreCase, contains(matcher, "ÜNÏCODE"));
+        assertEquals(ignoreCase, contains(matcher, "bar"));
+    }
+
+    private static boolean contains(TermSet.Matcher matcher, String term) throws IOException {
+        char[] buffer = ("x" + term + "y").toCharArray();
+        return matcher.contains(buffer, 1, term.length());
+    }
+}
@@ -0,0 +1,148 @@
+package db;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for an S3 compatible object store, serving the test rules from the {@code rules} bucket:
+ * {@code <type>.txt}, and a gzip compressed copy {@code <type>.txt.gz}.
+ *
+ * Only anonymous, path style {@code GET} and {@code HEAD} requests are supported, along with {@code If-None-Match}.
+ */
+public class ObjectStoreFixture {
+
+    private static final String BUCKET = "rules";
+
+    private static final String[] OBJECTS = {
+            "test-keywordmarkers.txt", "test-stemmeroverrides.txt", "test-stopwords.txt", "test-synonyms.txt"
+    };
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Starting ObjectStoreFixture with args " + Arrays.asList(args));
+
+        if (args.length != 1) {
+            throw new IllegalArgumentException("ObjectStoreFixture <logDirectory>");
+        }
+
+        Map<String, byte[]> objects = new HashMap<>();
+        for (String name : OBJECTS) {
+            byte[] content = read(name);
+            objects.put("/" + BUCKET + "/" + name, content);
+            objects.put("/" + BUCKET + "/" + name + ".gz", gzip(content));
+        }
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> handle(exchange, objects));
+        server.start();
+        System.out.println("ObjectStoreFixture started on " + server.getAddress());
+
+        writeRequiredTestFiles(Paths.get(args[0]), server.getAddress());
+
+        // the fixture thread is required to exist during the integration tests
+        // wait forever, until you kill me
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    private static void handle(HttpExchange exchange, Map<String, byte[]> objects) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            byte[] content = objects.get(exchange.getRequestURI().getPath());
+            System.out.format("%s %s\n", method, exchange.getRequestURI());
+
+            if (content == null || (!method.equals("GET") && !method.equals("HEAD"))) {
+                exchange.sendResponseHeaders(content == null ? 404 : 405, -1);
+                return;
+            }
+
+            String etag = etag(content);
+            exchange.getResponseHeaders().add("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else if (method.equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", Integer.toString(content.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] read(String name) throws IOException {
+        try (InputStream in = ObjectStoreFixture.class.getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static String etag(byte[] content) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        StringBuilder etag = new StringBuilder("\"");
+        for (byte b : md5.digest(content)) {
+            etag.append(String.format("%02x", b));
+        }
+        return etag.append('"').toString();
+    }
+
+    /*
+     * Two files are required to exist for any AntFixture: pid and ports
+     */
+    private static void writeRequiredTestFiles(Path dir, InetSocketAddress bound) throws Exception {
+        // write pid file
+        Path tmp = Files.createTempFile(dir, null, null);
+        String pid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        Files.write(tmp, Collections.singleton(pid));
+        Files.move(tmp, dir.resolve("pid"), StandardCopyOption.ATOMIC_MOVE);
+
+        // write port file
+        tmp = Files.createTempFile(dir, null, null);
+        if (bound.getAddress() instanceof Inet6Address) {
+            Files.write(tmp, Collections.singleton("[" + bound.getHostString() + "]:" + bound.getPort()));
+        } else {
+            Files.write(tmp, Collections.singleton(bound.getHostString() + ":" + bound.getPort()));
+        }
+        Files.move(tmp, dir.resolve("ports"), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
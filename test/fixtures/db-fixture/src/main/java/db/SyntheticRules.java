@@ -0,0 +1,95 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.IntFunction;
+
+/**
+ * Generates large tables of rules, to measure the cost of loading them
+ *
+ * The i-th row of each table is built from i in base 36: stop words are {@code stop<i>}, keyword markers
+ * {@code keyword<i>} and stemmer overrides {@code running<i> => run<i>}. A third of the synonyms are equivalent
+ * single words ({@code car<i>, automobile<i>}), a third equivalent multi-word ({@code new york<i>, ny<i>}) and a
+ * third explicit mappings of multi-word synonyms ({@code big apple<i> => new york city<i>}).
+ */
+public final class SyntheticRules {
+
+    private static final int BATCH_SIZE = 10_000;
+
+    private SyntheticRules() {
+    }
+
+    public static String stopword(int row) {
+        return "stop" + id(row);
+    }
+
+    public static String keywordMarker(int row) {
+        return "keyword" + id(row);
+    }
+
+    public static String stemmerOverride(int row) {
+        return "running" + id(row) + " => run" + id(row);
+    }
+
+    public static String synonym(int row) {
+        String id = id(row);
+        switch (row % 3) {
+            case 0:
+                return "car" + id + ", automobile" + id;
+            case 1:
+                return "new york" + id + ", ny" + id;
+            default:
+                return "big apple" + id + " => new york city" + id;
+        }
+    }
+
+    private static String id(int row) {
+        return Integer.toString(row, Character.MAX_RADIX);
+    }
+
+    /**
+     * Creates and fills the {@code large_stopwords}, {@code large_keyword_markers}, {@code large_stemmer_overrides}
+     * and {@code large_synonyms} tables, with the same columns as the small ones
+     */
+    public static void populate(Connection connection, int rows) throws SQLException {
+        populate(connection, "large_stopwords", "stopword", rows, SyntheticRules::stopword);
+        populate(connection, "large_keyword_markers", "keyword_marker", rows, SyntheticRules::keywordMarker);
+        populate(connection, "large_stemmer_overrides", "stemmer_override", rows, SyntheticRules::stemmerOverride);
+        populate(connection, "large_synonyms", "synonym", rows, SyntheticRules::synonym);
+    }
+
+    private static void populate(Connection connection, String table, String column, int rows,
+                                 IntFunction<String> generator) throws SQLException {
+        System.out.format("populate %s with %d rows\n", table, rows);
+        long start = System.nanoTime();
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE " + table + "(\n" +
+                    "   ID INTEGER NOT NULL GENERATED ALWAYS AS IDENTITY (START WITH 1, INCREMENT BY 1),\n" +
+                    "   " + column + " VARCHAR(100) NOT NULL\n" +
+                    ")");
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(
+                "insert into " + table + " (" + column + ") values (?)")) {
+            for (int row = 0; row < rows; row++) {
+                insert.setString(1, generator.apply(row));
+                insert.addBatch();
+                if ((row + 1) % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        System.out.format("populated %s in %d ms\n", table, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -24,7 +24,8 @@ import java.util.Collections;
 /**
  * Creates a local database server that accepts connections over the network
  *
- * Populates the database with values used for testing
+ * Populates the database with values used for testing, and with large synthetic tables of the given number of rows
+ * (see {@link SyntheticRules})
  */
 public class TestDatabase {
 
@@ -39,15 +40,16 @@ public class TestDatabase {
         System.out.println("Starting TestDatabase with args " + Arrays.asList(args));
         System.out.println(new java.util.Date());
 
-        if (args.length != 1) {
-            throw new IllegalArgumentException("TestDatabase <logDirectory>");
+        if (args.length < 1 || args.length > 2) {
+            throw new IllegalArgumentException("TestDatabase <logDirectory> [<largeRulesRows>]");
         }
 
         Path dir = Paths.get(args[0]);
+        int largeRulesRows = args.length > 1 ? Integer.parseInt(args[1]) : 0;
         writeRequiredTestFiles(dir);
 
         startDatabase();
-        loadTestData();
+        loadTestData(largeRulesRows);
 
         // the fixture thread is required to exist during the integration tests
         // wait forever, until you kill me
@@ -124,7 +126,7 @@ public class TestDatabase {
         return "jdbc:derby://localhost:" + port + "/derbyDB;create=true";
     }
 
-    private static void loadTestData() {
+    private static void loadTestData(int largeRulesRows) {
         try {
             Connection connection = createConnection();
 
@@ -132,6 +134,9 @@ public class TestDatabase {
             populateStemmerOverrides(connection);
             populateStopwords(connection);
             populateSynonyms(connection);
+            if (largeRulesRows > 0) {
+                SyntheticRules.populate(connection, largeRulesRows);
+            }
         } catch (Exception e) {
             System.err.println(e.getMessage());
         }